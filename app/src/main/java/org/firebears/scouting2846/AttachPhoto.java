@@ -0,0 +1,128 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Task to attach a photo to the newest observation of a match / team.
+ * It runs after any pending StoreObservation task (on the same serial
+ * executor), so a new observation is stored before its photo.
+ */
+public class AttachPhoto extends AsyncTask<Void, Void, Boolean> {
+
+	static private final String TAG = "AttachPhoto";
+
+	/** MIME type when the content provider does not report one */
+	static private final String DEFAULT_MIME = "image/jpeg";
+
+	/** Sort order for newest observation first */
+	static private final String ORDER_NEWEST =
+		Scouting2017.COL_OBSERVATION + " DESC";
+
+	private final Scouting2017Activity context;
+
+	private final int scouter;
+
+	private final String match_key;
+
+	private final String team_key;
+
+	private final Uri uri;
+
+	public AttachPhoto(Scouting2017Activity ctx, int s, String mk,
+		String tk, Uri u)
+	{
+		context = ctx;
+		scouter = s;
+		match_key = mk;
+		team_key = tk;
+		uri = u;
+	}
+
+	@Override
+	protected Boolean doInBackground(Void... v) {
+		BlobStore.init(context.getFilesDir(), context.getCacheDir());
+		ContentResolver cr = context.getContentResolver();
+		try {
+			attach(cr, lookupObservation(cr));
+		}
+		catch (IOException e) {
+			Log.e(TAG, "attach: " + e.getMessage());
+			return false;
+		}
+		SyncScheduler.getInstance(context).changed();
+		context.startService(new Intent(context,
+			BluetoothSyncService.class));
+		return true;
+	}
+
+	/** Lookup the newest observation of the match / team */
+	private int lookupObservation(ContentResolver cr) throws IOException {
+		Cursor c = cr.query(Scouting2017.CONTENT_URI,
+			new String[] { Scouting2017.COL_OBSERVATION },
+			Scouting2017.COL_SCOUTER + "=? AND " +
+			Scouting2017.COL_MATCH + "=? AND " +
+			Scouting2017.COL_TEAM_KEY + "=?",
+			new String[] { Integer.toString(scouter), match_key,
+			team_key }, ORDER_NEWEST);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			if (!c.moveToFirst())
+				throw new IOException("No observation");
+			return c.getInt(0);
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Attach the photo to an observation */
+	private void attach(ContentResolver cr, int obs) throws IOException {
+		String mime = cr.getType(uri);
+		InputStream in = cr.openInputStream(uri);
+		if (null == in)
+			throw new IOException("No stream: " + uri);
+		try {
+			Attachment.add(cr, BlobStore.getInstance(), scouter,
+				obs, Attachment.KIND_PHOTO,
+				(mime != null) ? mime : DEFAULT_MIME, in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected void onPostExecute(Boolean ok) {
+		context.showSnack(ok ? R.string.photo_attached
+		                     : R.string.photo_failed);
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * DB stuff for attachments (pit scouting photos and drawings).  Each
+ * attachment belongs to one observation, and names a blob in the blob
+ * store by its hash.  Attachment rows sync like observations; their
+ * chunks sync separately, after observations.  The stored column is
+ * set once all chunks of a blob are in the store.
+ */
+public class Attachment implements BaseColumns {
+
+	static public final String TABLE_NAME = "attachment";
+	static public final String COL_ID = "_id";
+	static public final String COL_SCOUTER = Scouting2017.COL_SCOUTER;
+	static public final String COL_OBSERVATION =
+		Scouting2017.COL_OBSERVATION;
+	static public final String COL_EVENT_KEY = Scouting2017.COL_EVENT_KEY;
+	static public final String COL_TEAM_KEY = Scouting2017.COL_TEAM_KEY;
+	static public final String COL_KIND = "kind";
+	static public final String COL_MIME = "mime";
+	static public final String COL_HASH = "hash";
+	static public final String COL_SIZE = "size";
+	static public final String COL_STORED = "stored";
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+
+	/** Attachment kind for photos */
+	static public final String KIND_PHOTO = "photo";
+
+	/** Attachment kind for drawings */
+	static public final String KIND_DRAWING = "drawing";
+
+	/** Columns synced with peers (no local ID or stored flag) */
+	static private final String[] COLS_SYNC = {
+		COL_SCOUTER, COL_OBSERVATION, COL_EVENT_KEY, COL_TEAM_KEY,
+		COL_KIND, COL_MIME, COL_HASH, COL_SIZE,
+	};
+
+	/** Columns copied from the observation */
+	static private final String[] COLS_OBS = {
+		COL_EVENT_KEY, COL_TEAM_KEY,
+	};
+
+	/** Sort order for digest */
+	static private final String ORDER_DIGEST = COL_SCOUTER + "," +
+		COL_OBSERVATION + "," + COL_HASH;
+
+	/** WHERE clause to select attachments missing chunks */
+	static private final String WHERE_PENDING = COL_STORED + "=0";
+
+	/** WHERE clause to select attachments of a blob */
+	static private final String WHERE_HASH = COL_HASH + "=?";
+
+	/** Add an attachment to one of our observations, putting its blob
+	 * in the store */
+	static public void add(ContentResolver cr, BlobStore store,
+		int scouter, int observation, String kind, String mime,
+		InputStream in) throws IOException
+	{
+		ContentValues cv = new ContentValues();
+		Cursor c = cr.query(Scouting2017.CONTENT_URI, COLS_OBS,
+			COL_SCOUTER + "=? AND " + COL_OBSERVATION + "=?",
+			new String[] { Integer.toString(scouter),
+			Integer.toString(observation) }, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			if (!c.moveToFirst())
+				throw new IOException("No observation");
+			cv.put(COL_EVENT_KEY, c.getString(0));
+			cv.put(COL_TEAM_KEY, c.getString(1));
+		}
+		finally {
+			c.close();
+		}
+		MeteredInputStream mis = new MeteredInputStream(in);
+		cv.put(COL_SCOUTER, scouter);
+		cv.put(COL_OBSERVATION, observation);
+		cv.put(COL_KIND, kind);
+		cv.put(COL_MIME, mime);
+		cv.put(COL_HASH, store.put(mis));
+		cv.put(COL_SIZE, mis.getBytes());
+		cv.put(COL_STORED, 1);
+		cr.insert(CONTENT_URI, cv);
+	}
+
+	/** Open the blob of an attachment (null if any chunk is missing,
+	 * after marking it to be fetched on the next sync) */
+	static public InputStream open(ContentResolver cr, BlobStore store,
+		String hash) throws IOException
+	{
+		InputStream in = store.open(hash);
+		if (null == in)
+			setStored(cr, hash, false);
+		return in;
+	}
+
+	/** Set the stored flag of attachments of a blob */
+	static private void setStored(ContentResolver cr, String hash,
+		boolean stored)
+	{
+		ContentValues cv = new ContentValues();
+		cv.put(COL_STORED, stored ? 1 : 0);
+		cr.update(CONTENT_URI, cv, WHERE_HASH, new String[] { hash });
+	}
+
+	/** Build a WHERE clause for attachments of some events (all events
+	 * if empty), adding another condition */
+	static private String buildWhere(Collection<String> events,
+		String cond)
+	{
+		String scope = SyncEvent.buildWhere(events);
+		return (scope != null) ? scope + " AND " + cond : cond;
+	}
+
+	/** Key of the digest of attachments with no event */
+	static private final String NO_EVENT = "";
+
+	/** Sort order for digests of each event */
+	static private final String ORDER_EVENT_DIGEST = COL_EVENT_KEY + "," +
+		ORDER_DIGEST;
+
+	/** Lookup digests of attachment rows (hex), for each event */
+	static public HashMap<String, String> lookupDigests(ContentResolver cr)
+		throws IOException
+	{
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		Cursor c = cr.query(CONTENT_URI, new String[] { COL_EVENT_KEY,
+			COL_SCOUTER, COL_OBSERVATION, COL_HASH }, null, null,
+			ORDER_EVENT_DIGEST);
+		if (null == c)
+			throw new IOException("No cursor");
+		HashMap<String, String> digests = new HashMap<String, String>();
+		String ev = null;
+		try {
+			while (c.moveToNext()) {
+				String e = c.isNull(0) ? NO_EVENT
+				                       : c.getString(0);
+				// Rows from before hashes were checked
+				if (!BlobStore.isHash(c.getString(3)))
+					continue;
+				if (ev != null && !ev.equals(e))
+					putDigest(digests, ev, md);
+				ev = e;
+				md.update((c.getInt(1) + ":" + c.getInt(2) +
+					":" + c.getString(3) + "\n")
+					.getBytes("UTF-8"));
+			}
+		}
+		finally {
+			c.close();
+		}
+		if (ev != null)
+			putDigest(digests, ev, md);
+		return digests;
+	}
+
+	/** Put the digest of one event (resetting the digest) */
+	static private void putDigest(HashMap<String, String> digests,
+		String ev, MessageDigest md)
+	{
+		byte[] d = md.digest();
+		digests.put(ev, BlobStore.toHex(d, 0, d.length));
+	}
+
+	/** Check if a sender has attachment rows for a receiver.  Only the
+	 * events the receiver selected (all if empty) are compared, since
+	 * only those rows are sent. */
+	static public boolean needsRows(HashMap<String, String> from,
+		HashMap<String, String> to, Set<String> to_events)
+	{
+		for (String e : from.keySet()) {
+			boolean scoped = to_events.isEmpty() ||
+				to_events.contains(e);
+			if (scoped && !from.get(e).equals(to.get(e)))
+				return true;
+		}
+		return false;
+	}
+
+	/** Lookup blobs of attachments missing chunks, for some events (all
+	 * events if empty), newest first */
+	static public ArrayList<String> lookupPending(ContentResolver cr,
+		Collection<String> events) throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, new String[] { COL_HASH },
+			buildWhere(events, WHERE_PENDING), null,
+			COL_ID + " DESC");
+		if (null == c)
+			throw new IOException("No cursor");
+		ArrayList<String> hashes = new ArrayList<String>();
+		try {
+			while (c.moveToNext()) {
+				String h = c.getString(0);
+				// Rows from before hashes were checked
+				if (BlobStore.isHash(h) && !hashes.contains(h))
+					hashes.add(h);
+			}
+		}
+		finally {
+			c.close();
+		}
+		return hashes;
+	}
+
+	/** Mark attachments whose chunks are all in the store (returns
+	 * number of blobs completed) */
+	static public int updateStored(ContentResolver cr, BlobStore store,
+		Collection<String> events) throws IOException
+	{
+		int n = 0;
+		for (String h : lookupPending(cr, events)) {
+			if (store.lookupMissing(h).isEmpty()) {
+				setStored(cr, h, true);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/** Write attachment rows for some events (all if empty) */
+	static public int write(ContentResolver cr, Collection<String> events,
+		JsonWriter jw) throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, COLS_SYNC,
+			SyncEvent.buildWhere(events), null, ORDER_DIGEST);
+		if (null == c)
+			throw new IOException("No cursor");
+		int n = 0;
+		try {
+			int ch = c.getColumnIndex(COL_HASH);
+			jw.beginArray();
+			while (c.moveToNext()) {
+				// Rows from before hashes were checked
+				if (!BlobStore.isHash(c.getString(ch)))
+					continue;
+				jw.beginObject();
+				for (int i = 0; i < COLS_SYNC.length; i++) {
+					String cn = COLS_SYNC[i];
+					jw.name(cn);
+					if (c.isNull(i))
+						jw.nullValue();
+					else if (isString(cn))
+						jw.value(c.getString(i));
+					else
+						jw.value(c.getLong(i));
+				}
+				jw.endObject();
+				n++;
+			}
+			jw.endArray();
+		}
+		finally {
+			c.close();
+		}
+		return n;
+	}
+
+	/** Read attachment rows and insert new ones (returns number
+	 * inserted).  New rows are not stored until their chunks arrive. */
+	static public int apply(ContentResolver cr, JsonReader jr)
+		throws IOException
+	{
+		ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+		jr.beginArray();
+		while (jr.hasNext()) {
+			ContentValues cv = new ContentValues();
+			jr.beginObject();
+			while (jr.hasNext()) {
+				String n = jr.nextName();
+				if (JsonToken.NULL == jr.peek())
+					jr.skipValue();
+				else if (isString(n))
+					cv.put(n, jr.nextString());
+				else if (COL_SIZE.equals(n))
+					cv.put(COL_SIZE, jr.nextLong());
+				else if (COL_SCOUTER.equals(n) ||
+				         COL_OBSERVATION.equals(n))
+					cv.put(n, jr.nextInt());
+				else
+					jr.skipValue();
+			}
+			jr.endObject();
+			if (!BlobStore.isHash(cv.getAsString(COL_HASH)) ||
+			    null == cv.getAsInteger(COL_SCOUTER) ||
+			    null == cv.getAsInteger(COL_OBSERVATION))
+				throw new IOException("Bad attachment");
+			cv.put(COL_STORED, 0);
+			rows.add(cv);
+		}
+		jr.endArray();
+		// Existing rows are ignored on conflict
+		return cr.bulkInsert(CONTENT_URI, rows.toArray(
+			new ContentValues[0]));
+	}
+
+	/** Check if a column is a string column */
+	static private boolean isString(String n) {
+		return COL_EVENT_KEY.equals(n) || COL_TEAM_KEY.equals(n) ||
+		       COL_KIND.equals(n) || COL_MIME.equals(n) ||
+		       COL_HASH.equals(n);
+	}
+}
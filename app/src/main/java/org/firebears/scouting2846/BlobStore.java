@@ -0,0 +1,414 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Content-addressed store for attachment blobs (photos and drawings).
+ * Each blob is split into fixed-length chunks, stored in files named by
+ * the hash of their contents, so identical chunks are stored and sent
+ * only once.  A blob is named by the hash of its manifest, which lists
+ * the hashes of its chunks.  Chunks of our own blobs are kept for good;
+ * chunks received from peers are kept within a quota and evicted least
+ * recently used.
+ */
+public class BlobStore {
+
+	static private final String TAG = "BlobStore";
+
+	/** Length of chunks (except the last chunk of a blob) */
+	static public final int CHUNK_LEN = 64 * 1024;
+
+	/** Length of chunk hashes */
+	static public final int HASH_LEN = 20;
+
+	/** Hash algorithm for chunks and manifests */
+	static private final String ALGORITHM = "SHA-1";
+
+	/** Name of store directories */
+	static private final String DIR_NAME = "blobs";
+
+	/** Maximum total size of received chunk files (bytes) */
+	static private final long MAX_BYTES = 64 * 1024 * 1024;
+
+	/** Store for the application (null if not initialized) */
+	static private BlobStore instance;
+
+	/** Initialize the store.  Our own chunks go in the files
+	 * directory; received chunks go in the cache directory. */
+	static public synchronized void init(File files_dir, File cache_dir) {
+		if (null == instance) {
+			instance = new BlobStore(new File(files_dir, DIR_NAME),
+				new File(cache_dir, DIR_NAME), MAX_BYTES);
+		}
+	}
+
+	/** Get the store for the application (null if not initialized) */
+	static public synchronized BlobStore getInstance() {
+		return instance;
+	}
+
+	/** Create a digest for hashing chunks */
+	static private MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/** Hash a chunk (returns hex string) */
+	static private String hash(MessageDigest md, byte[] b, int off,
+		int len)
+	{
+		md.reset();
+		md.update(b, off, len);
+		byte[] h = md.digest();
+		return toHex(h, 0, h.length);
+	}
+
+	/** Format bytes as a hex string */
+	static public String toHex(byte[] b, int off, int len) {
+		StringBuilder sb = new StringBuilder(len * 2);
+		for (int i = off; i < off + len; i++) {
+			sb.append(Character.forDigit((b[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/** Put a hex hash into a buffer */
+	static public void putHash(byte[] b, int off, String h)
+		throws IOException
+	{
+		checkHash(h);
+		for (int i = 0; i < HASH_LEN; i++) {
+			b[off + i] = (byte) Integer.parseInt(h.substring(i * 2,
+				i * 2 + 2), 16);
+		}
+	}
+
+	/** Check if a string is a chunk hash (lowercase hex).  Hashes from
+	 * peers name files, so nothing else may be used as one. */
+	static public boolean isHash(String h) {
+		if (null == h || h.length() != HASH_LEN * 2)
+			return false;
+		for (int i = 0; i < h.length(); i++) {
+			char c = h.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	/** Check a chunk hash */
+	static private void checkHash(String h) throws IOException {
+		if (!isHash(h))
+			throw new IOException("Bad hash: " + h);
+	}
+
+	/** Parse a manifest (returns chunk hashes) */
+	static public ArrayList<String> parseManifest(byte[] m)
+		throws IOException
+	{
+		if (m.length % HASH_LEN != 0)
+			throw new IOException("Bad manifest");
+		ArrayList<String> hashes = new ArrayList<String>();
+		for (int off = 0; off < m.length; off += HASH_LEN)
+			hashes.add(toHex(m, off, HASH_LEN));
+		return hashes;
+	}
+
+	/** Directory of our own chunks */
+	private final File own;
+
+	/** Directory of received chunks */
+	private final File dir;
+
+	/** Maximum total size of received chunk files (bytes) */
+	private final long max_bytes;
+
+	/** Size of each received chunk file, least recently used first */
+	private final LinkedHashMap<String, Long> files =
+		new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/** Total size of received chunk files */
+	private long total = 0;
+
+	/** Create a blob store, loading received chunks in order of last
+	 * use */
+	BlobStore(File o, File d, long mb) {
+		own = o;
+		dir = d;
+		max_bytes = mb;
+		own.mkdirs();
+		dir.mkdirs();
+		File[] fl = dir.listFiles();
+		if (fl != null) {
+			Arrays.sort(fl, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long ma = a.lastModified();
+					long mb = b.lastModified();
+					return (ma < mb) ? -1 : (ma > mb) ? 1 : 0;
+				}
+			});
+			for (File f : fl) {
+				String fn = f.getName();
+				if (isHash(fn)) {
+					files.put(fn, f.length());
+					total += f.length();
+				} else
+					f.delete();
+			}
+		}
+		evict();
+		Log.d(TAG, "loaded " + files.size() + " chunks, " + total +
+			" bytes");
+	}
+
+	/** Put one of our own blobs (returns blob hash) */
+	public String put(InputStream in) throws IOException {
+		MessageDigest md = createDigest();
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+		byte[] b = new byte[CHUNK_LEN];
+		while (true) {
+			int len = readChunk(in, b);
+			if (0 == len)
+				break;
+			String h = hash(md, b, 0, len);
+			putOwn(h, b, len);
+			byte[] hb = new byte[HASH_LEN];
+			putHash(hb, 0, h);
+			manifest.write(hb, 0, HASH_LEN);
+			if (len < CHUNK_LEN)
+				break;
+		}
+		byte[] m = manifest.toByteArray();
+		String h = hash(md, m, 0, m.length);
+		putOwn(h, m, m.length);
+		return h;
+	}
+
+	/** Read one chunk from a stream (returns length, short at end) */
+	static private int readChunk(InputStream in, byte[] b)
+		throws IOException
+	{
+		int len = 0;
+		while (len < b.length) {
+			int n = in.read(b, len, b.length - len);
+			if (n < 0)
+				break;
+			len += n;
+		}
+		return len;
+	}
+
+	/** Put one of our own chunks, taking it from received chunks if
+	 * it is there */
+	private void putOwn(String h, byte[] b, int len) throws IOException {
+		File f = new File(own, h);
+		if (f.exists())
+			return;
+		synchronized (this) {
+			Long sz = files.remove(h);
+			if (sz != null) {
+				total -= sz;
+				if (new File(dir, h).renameTo(f))
+					return;
+			}
+		}
+		write(own, h, b, 0, len);
+	}
+
+	/** Write a chunk file */
+	private File write(File d, String h, byte[] b, int off, int len)
+		throws IOException
+	{
+		File tmp = File.createTempFile(h, null, d);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(b, off, len);
+		}
+		catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		finally {
+			fos.close();
+		}
+		File f = new File(d, h);
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("rename " + h + " failed");
+		}
+		return f;
+	}
+
+	/** Store a chunk received from a peer (false if its contents do not
+	 * match the hash) */
+	public boolean store(String h, byte[] b, int off, int len)
+		throws IOException
+	{
+		if (!h.equals(hash(createDigest(), b, off, len)))
+			return false;
+		if (has(h))
+			return true;
+		File f = write(dir, h, b, off, len);
+		synchronized (this) {
+			Long old = files.put(h, f.length());
+			if (old != null)
+				total -= old;
+			total += f.length();
+			evict();
+		}
+		return true;
+	}
+
+	/** Check if a chunk is stored */
+	public boolean has(String h) {
+		if (!isHash(h))
+			return false;
+		synchronized (this) {
+			if (files.containsKey(h))
+				return true;
+		}
+		return new File(own, h).exists();
+	}
+
+	/** Get the file for a chunk (null if missing) */
+	private File lookup(String h) {
+		if (!isHash(h))
+			return null;
+		synchronized (this) {
+			if (files.get(h) != null) {
+				File f = new File(dir, h);
+				f.setLastModified(System.currentTimeMillis());
+				return f;
+			}
+		}
+		File f = new File(own, h);
+		return f.exists() ? f : null;
+	}
+
+	/** Read a chunk (null if missing) */
+	public byte[] read(String h) throws IOException {
+		checkHash(h);
+		File f = lookup(h);
+		if (null == f)
+			return null;
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(f);
+		}
+		catch (IOException e) {
+			// Evicted since lookup
+			return null;
+		}
+		try {
+			byte[] b = new byte[(int) f.length()];
+			if (readChunk(fis, b) != b.length)
+				throw new IOException("Short read: " + h);
+			return b;
+		}
+		finally {
+			fis.close();
+		}
+	}
+
+	/** Lookup missing chunks of a blob.  If its manifest is missing,
+	 * that is the only chunk listed, since the others are unknown. */
+	public ArrayList<String> lookupMissing(String h) throws IOException {
+		ArrayList<String> missing = new ArrayList<String>();
+		byte[] m = read(h);
+		if (null == m)
+			missing.add(h);
+		else {
+			for (String c : parseManifest(m)) {
+				if (!has(c))
+					missing.add(c);
+			}
+		}
+		return missing;
+	}
+
+	/** Open a blob for reading (null if any chunk is missing) */
+	public InputStream open(String h) throws IOException {
+		checkHash(h);
+		byte[] m = read(h);
+		if (null == m)
+			return null;
+		Vector<InputStream> chunks = new Vector<InputStream>();
+		try {
+			for (String c : parseManifest(m)) {
+				File f = lookup(c);
+				if (null == f)
+					return null;
+				// Open now, so eviction cannot remove it
+				chunks.add(new FileInputStream(f));
+			}
+			// The enumeration is live, so hand off a copy
+			InputStream in = new SequenceInputStream(
+				new Vector<InputStream>(chunks).elements());
+			chunks.clear();
+			return in;
+		}
+		finally {
+			for (InputStream in : chunks)
+				in.close();
+		}
+	}
+
+	/** Evict least recently used chunks until received chunks fit */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> it =
+			files.entrySet().iterator();
+		while (total > max_bytes && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			total -= e.getValue();
+			it.remove();
+			new File(dir, e.getKey()).delete();
+		}
+	}
+
+	/** Get a summary of store use */
+	public synchronized String getUsage() {
+		return files.size() + " received chunks, " + total + " bytes";
+	}
+}
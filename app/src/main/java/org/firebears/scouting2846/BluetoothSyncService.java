@@ -23,8 +23,6 @@ package org.firebears.scouting2846;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -32,27 +30,62 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.IBinder;
 import android.util.Log;
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.UUID;
-import org.json.JSONException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Service for accepting bluetooth connections to sync data.
+ * Service for accepting bluetooth (and TCP) connections to sync data.
  */
 public class BluetoothSyncService extends Service {
 
 	static private final String TAG = "BluetoothSyncService";
 
-	static private final String SDP_NAME = "BluetoothSync";
+	/** Maximum number of concurrent sync sessions */
+	static private final int MAX_SESSIONS = 3;
 
-	static public final UUID OUR_UUID =
-		UUID.fromString("b9a8fc97-8a4b-4481-b634-856140ed1b7d");
+	/** Maximum number of accepted connections waiting for a session */
+	static private final int MAX_PENDING = 3;
+
+	/** Time without a first connection before a server shuts down (ms) */
+	static private final int IDLE_MS = 10 * 60 * 1000;
 
 	private final BluetoothAdapter adapter =
 		BluetoothAdapter.getDefaultAdapter();
 
+	/** Worker pool for sync sessions */
+	private final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+		MAX_SESSIONS, MAX_SESSIONS, 0, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<Runnable>(MAX_PENDING));
+
+	/** Number of completed sync sessions */
+	private final AtomicInteger n_sessions = new AtomicInteger();
+
+	/** Time of first accepted session */
+	private volatile long first_session = 0;
+
+	/** Handler to run accepted connections on the worker pool */
+	private final SyncServer.SessionHandler session_handler =
+		new SyncServer.SessionHandler()
+	{
+		public void handle(SyncTransport t, SyncConnection c) {
+			doAccept(t, c);
+		}
+	};
+
+	/** Bluetooth RFCOMM server */
+	private final SyncServer rfcomm = new SyncServer(
+		new RfcommTransport(adapter), session_handler, IDLE_MS);
+
+	/** TCP server, or null while TCP sync is off */
+	private SyncServer tcp;
+
+	/** Key of the TCP settings the server was created with */
+	private String tcp_key = "";
+
 	private final BroadcastReceiver receiver =
 		new BroadcastReceiver()
 	{
@@ -65,116 +98,121 @@ public class BluetoothSyncService extends Service {
 					BluetoothAdapter.ERROR);
 				Log.d(TAG, "bt state: " + state);
 				if (BluetoothAdapter.STATE_ON == state)
-					notifyEnable();
+					rfcomm.wake();
 			}
 		}
 	};
 
-	private final Thread thread = new Thread() {
-		public void run() {
-			doRun();
-		}
-	};
-
-	private boolean running = true;
-
-	private void doRun() {
-		Log.d(TAG, "enabled: " + adapter.isEnabled());
-		while (running) {
-			if (adapter.isEnabled())
-				doConnection();
-			else
-				waitForEnable();
-		}
-	}
-
-	private synchronized void waitForEnable() {
+	/** Run an accepted connection on the worker pool */
+	private void doAccept(final SyncTransport t, final SyncConnection c) {
+		Log.d(TAG, "accepted connection: " + c.getPeer());
+		if (0 == first_session)
+			first_session = System.currentTimeMillis();
 		try {
-			wait();
+			pool.execute(new Runnable() {
+				public void run() {
+					doSession(t, c);
+				}
+			});
 		}
-		catch (InterruptedException e) { }
-	}
-
-	private synchronized void notifyEnable() {
-		notify();
-	}
-
-	private void doConnection() {
-		try {
-			doCreateAndAccept();
-		}
-		catch (Exception e) {
-			Log.e(TAG, "exception: " + e.getMessage());
-		}
-	}
-
-	private void doCreateAndAccept() throws IOException, JSONException {
-		BluetoothServerSocket server_sock =
-			adapter.listenUsingRfcommWithServiceRecord(
-			SDP_NAME, OUR_UUID);
-		Log.d(TAG, "got bluetooth server socket");
-		try {
-			while (true) {
-				doAccept(server_sock);
+		catch (RejectedExecutionException e) {
+			Log.e(TAG, "too many sessions, rejected");
+			try {
+				c.close();
+			}
+			catch (IOException e2) {
+				Log.e(TAG, "close exception: " +
+					e2.getMessage());
 			}
-		}
-		finally {
-			server_sock.close();
 		}
 	}
 
-	private void doAccept(BluetoothServerSocket server_sock)
-		throws IOException, JSONException
-	{
+	/** Run one sync session on a worker thread */
+	private void doSession(SyncTransport t, SyncConnection c) {
 		ContentResolver cr = getContentResolver();
-		BluetoothSocket s = server_sock.accept();
-		Log.d(TAG, "accepted bluetooth connection");
+		SyncStats st = new SyncStats(t.getName(), c.getPeer(),
+			SyncStats.ROLE_SERVER);
 		try {
-			doHandleConnection(s);
+			Marshaller.syncObservations(cr, c, st);
+			Log.d(TAG, "complete!");
+			logThroughput(n_sessions.incrementAndGet());
+		}
+		catch (Exception e) {
+			Log.e(TAG, "session exception: " + e.getMessage());
+			st.fail(e);
 		}
 		finally {
-			s.close();
+			st.store(cr);
+			try {
+				c.close();
+			}
+			catch (IOException e) {
+				Log.e(TAG, "close exception: " + e.getMessage());
+			}
 		}
 	}
 
-	private void doHandleConnection(BluetoothSocket s)
-		throws IOException, JSONException
-	{
-		InputStream is = s.getInputStream();
-		OutputStream os = s.getOutputStream();
-		ContentResolver cr = getContentResolver();
-		Marshaller.sendObservations(cr, is, os);
-		try { Thread.sleep(1000); }
-		catch (InterruptedException e) { }
-		Marshaller.recvObservations(cr, is, os);
-		Log.d(TAG, "complete!");
+	/** Log session throughput (sessions per minute) */
+	private void logThroughput(int n) {
+		long ms = Math.max(1,System.currentTimeMillis()-first_session);
+		Log.d(TAG, "sessions: " + n + ", " + (n * 60000L / ms) +
+			" per minute");
 	}
 
 	@Override
 	public void onCreate() {
 		Log.d(TAG, "created");
+		// Peers sync through this device, so cache encoded segments
+		SegmentCache.init(getCacheDir());
+		// The service starts with the app, so attachments can use
+		// the blob store from any thread
+		BlobStore.init(getFilesDir(), getCacheDir());
 		registerReceiver(receiver, new IntentFilter(
 			BluetoothAdapter.ACTION_STATE_CHANGED));
-		if (adapter != null)
-			thread.start();
-		else {
+		if (null == adapter)
 			Log.e(TAG, "bluetooth adapter not found!");
-			stopSelf();
-		}
 	}
 
+	/** Start command, sent when the app starts and on each local
+	 * write; wakes any idle servers */
 	@Override
 	public int onStartCommand(Intent i, int flags, int startId) {
 		Log.d(TAG, "start command");
+		rfcomm.wake();
+		updateTcp();
+		if (tcp != null)
+			tcp.wake();
 		return Service.START_NOT_STICKY;
 	}
 
+	/** Create, replace or stop the TCP server to match the settings */
+	private void updateTcp() {
+		String key = TcpSettings.buildKey(this);
+		if (key.equals(tcp_key))
+			return;
+		tcp_key = key;
+		if (tcp != null) {
+			tcp.stop();
+			Log.d(TAG, tcp.getCounters());
+		}
+		TcpTransport t = TcpSettings.createTransport(this);
+		tcp = (t != null)
+		    ? new SyncServer(t, session_handler, IDLE_MS)
+		    : null;
+		Log.d(TAG, "tcp sync " + ((tcp != null) ? "on" : "off"));
+	}
+
 	@Override
 	public void onDestroy() {
 		Log.d(TAG, "destroy");
 		unregisterReceiver(receiver);
-		running = false;
-		notifyEnable();
+		rfcomm.stop();
+		if (tcp != null)
+			tcp.stop();
+		pool.shutdown();
+		Log.d(TAG, rfcomm.getCounters());
+		if (tcp != null)
+			Log.d(TAG, tcp.getCounters());
 	}
 
 	@Override
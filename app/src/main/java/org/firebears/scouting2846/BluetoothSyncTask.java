@@ -21,78 +21,58 @@
  */
 package org.firebears.scouting2846;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.ContentResolver;
 import android.os.AsyncTask;
 import android.util.Log;
-import java.io.InputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import org.json.JSONException;
 
 /**
- * Task to sync via bluetooth.
+ * Task to sync with a peer (via bluetooth or TCP).
  */
 public class BluetoothSyncTask extends AsyncTask<Void, Void, Void> {
 
 	static private final String TAG = "BluetoothSyncTask";
 
-	private final BluetoothAdapter adapter =
-		BluetoothAdapter.getDefaultAdapter();
-
 	private final EventListActivity context;
 
+	private final SyncTransport transport;
+
 	private final String address;
 
+	private final boolean repair;
+
 	private boolean failed = false;
 
-	public BluetoothSyncTask(EventListActivity ctx, String a) {
+	public BluetoothSyncTask(EventListActivity ctx, SyncTransport t,
+		String a)
+	{
+		this(ctx, t, a, false);
+	}
+
+	public BluetoothSyncTask(EventListActivity ctx, SyncTransport t,
+		String a, boolean r)
+	{
 		context = ctx;
+		transport = t;
 		address = a;
+		repair = r;
 	}
 
 	@Override
 	protected Void doInBackground(Void... v) {
-		if (adapter != null) {
+		if (transport.isAvailable()) {
 			try {
-				syncWithPeer(context.getContentResolver());
+				SyncClient.syncWithPeer(
+					context.getContentResolver(),
+					transport, address, repair);
 			}
 			catch (Exception e) {
 				Log.e(TAG, "exception: " + e.getMessage());
 				failed = true;
 			}
-		}
+		} else
+			failed = true;
 		return null;
 	}
 
-	private void syncWithPeer(ContentResolver cr) throws IOException,
-		JSONException
-	{
-		BluetoothDevice d = adapter.getRemoteDevice(address);
-		BluetoothSocket s = d.createRfcommSocketToServiceRecord(
-			BluetoothSyncService.OUR_UUID);
-		try {
-			Log.d(TAG, "connect: " + address);
-			s.connect();
-			doSync(cr, s);
-		}
-		finally {
-			s.close();
-		}
-	}
-
-	private void doSync(ContentResolver cr, BluetoothSocket s)
-		throws IOException, JSONException
-	{
-		InputStream is = s.getInputStream();
-		OutputStream os = s.getOutputStream();
-		Marshaller.recvObservations(cr, is, os);
-		Marshaller.sendObservations(cr, is, os);
-		Log.d(TAG, "complete!");
-	}
-
 	@Override
 	protected void onPostExecute(Void v) {
 		if (failed)
@@ -0,0 +1,58 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Thread to send reference data bundles to a peer.
+ */
+class BundleSender extends Sender {
+
+	private final ContentResolver cr;
+	private final ArrayList<String> names;
+	private final HashMap<String, Long> versions;
+	private final OutputStream os;
+	private final Codec codec;
+
+	/** Create a sender of reference data bundles */
+	BundleSender(ContentResolver r, ArrayList<String> n,
+		HashMap<String, Long> v, SyncConnection c, OutputStream o,
+		Codec cd)
+	{
+		super(c, null);
+		cr = r;
+		names = n;
+		versions = v;
+		os = o;
+		codec = cd;
+	}
+
+	@Override
+	protected int send() throws IOException {
+		return Marshaller.lookupBundles(cr, names, versions, os, codec);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread to apply decoded chunks and acknowledge them.  Chunks
+ * which are queued while a transaction runs are applied together
+ * in the next one.  The queue is bounded by the peer's window, and
+ * acks are sent only after a chunk is applied, so the peer can't
+ * get ahead of the DB.  Through marks are applied in order with
+ * the chunks; rows in priority order are applied without advancing
+ * them.
+ */
+class ChunkApplier extends Thread {
+
+	/** Decoded chunk of rows, or through marks from a peer */
+	static class Decoded {
+		final ArrayList<ContentValues> rows;
+		final HashMap<Integer, Integer> through;
+		Decoded(ArrayList<ContentValues> r,
+			HashMap<Integer, Integer> t)
+		{
+			rows = r;
+			through = t;
+		}
+	}
+
+	/** Marker for the end of decoded chunks */
+	static private final Decoded END = new Decoded(null, null);
+
+	/** Check if a decoded item is a chunk of rows */
+	static private boolean isRows(Decoded d) {
+		return d != null && d.rows != null;
+	}
+
+	private final ContentResolver cr;
+	private final SyncConnection conn;
+	private final boolean deltas;
+	private final boolean priority;
+	private final Marks marks;
+	private final ChunkWindow window;
+	private final SyncStats stats;
+	private final ArrayBlockingQueue<Decoded> queue =
+		new ArrayBlockingQueue<Decoded>(Marshaller.CHUNK_WINDOW);
+	private volatile IOException error;
+	private volatile int n_applied = 0;
+	private volatile int n_transactions = 0;
+
+	/** Create a chunk applier */
+	ChunkApplier(ContentResolver r, SyncConnection c, boolean d,
+		boolean p, Marks m, ChunkWindow w, SyncStats st)
+	{
+		super("SyncApplier");
+		cr = r;
+		conn = c;
+		deltas = d;
+		priority = p;
+		marks = m;
+		window = w;
+		stats = st;
+	}
+
+	@Override
+	public void run() {
+		try {
+			applyChunks();
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		catch (RuntimeException e) {
+			error = new IOException(e.toString());
+		}
+		catch (InterruptedException e) {
+			// Receiver is finished
+			return;
+		}
+		if (error != null) {
+			// Closing the connection unblocks the receiver
+			window.abort();
+			Marshaller.closeQuietly(conn);
+		}
+	}
+
+	/** Apply chunks until the end marker */
+	private void applyChunks() throws IOException, InterruptedException {
+		ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+		int seq = 0;
+		while (true) {
+			Decoded d = queue.take();
+			if (END == d)
+				break;
+			if (d.through != null) {
+				if (marks != null)
+					marks.advance(cr, d.through);
+				continue;
+			}
+			int n_chunks = 1;
+			batch.addAll(d.rows);
+			while (isRows(queue.peek())) {
+				batch.addAll(queue.poll().rows);
+				n_chunks++;
+			}
+			if (deltas)
+				Marshaller.resolveDeltas(cr, batch, marks);
+			n_applied += Marshaller.insertBatch(cr, batch,
+				priority ? null : marks, stats);
+			n_transactions++;
+			for (int i = 0; i < n_chunks; i++, seq++) {
+				byte[] ack = new byte[4];
+				Marshaller.putInt(ack, 0, seq);
+				window.writeMessage(Marshaller.MSG_ACK, ack,
+					ack.length);
+			}
+		}
+	}
+
+	/** Queue a decoded chunk, waiting for room */
+	void put(Decoded d) throws IOException {
+		try {
+			while (!queue.offer(d, 1, TimeUnit.SECONDS)) {
+				if (!isAlive())
+					throw new IOException(
+						"Applier stopped");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/** Stop after a receive error, dropping queued chunks
+	 * (returns the applier error if it caused the failure) */
+	IOException abort(IOException e) {
+		queue.clear();
+		interrupt();
+		joinQuietly();
+		return (error != null) ? error : e;
+	}
+
+	/** Wait for queued chunks to be applied */
+	void finish() throws IOException {
+		boolean queued = false;
+		try {
+			put(END);
+			queued = true;
+		}
+		finally {
+			if (!queued)
+				interrupt();
+			joinQuietly();
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/** Wait for the thread to exit */
+	private void joinQuietly() {
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/** Get the number of observations applied */
+	int getApplied() {
+		return n_applied;
+	}
+
+	/** Get the number of apply transactions */
+	int getTransactions() {
+		return n_transactions;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Flow control for chunks sent to a peer.  At most a fixed number of
+ * chunks can be waiting for acknowledgement; the sender blocks until the
+ * receiver catches up.  Messages written by the sender and receiver
+ * threads are serialized here.
+ */
+public class ChunkWindow {
+
+	/** Stream to write messages */
+	private final OutputStream os;
+
+	/** Maximum number of unacknowledged chunks */
+	private final int size;
+
+	/** Number of chunks sent */
+	private int n_sent = 0;
+
+	/** Number of chunks acknowledged */
+	private int n_acked = 0;
+
+	/** Flag indicating all chunks have been sent */
+	private boolean all_sent = false;
+
+	/** Flag indicating the exchange was aborted */
+	private boolean aborted = false;
+
+	/** Lengths of chunks in the window */
+	private final int[] lens;
+
+	/** Time the first chunk was sent (ns) */
+	private long first_nanos;
+
+	/** Time of the latest ack (ns) */
+	private long ack_nanos;
+
+	/** Number of chunk bytes acknowledged */
+	private long n_acked_bytes = 0;
+
+	/** Create a chunk window */
+	public ChunkWindow(OutputStream o, int sz) {
+		os = o;
+		size = sz;
+		lens = new int[sz];
+	}
+
+	/** Write one complete message */
+	public void writeMessage(int type, byte[] b, int len)
+		throws IOException
+	{
+		synchronized (os) {
+			FrameOutputStream fos = new FrameOutputStream(os, type);
+			fos.write(b, 0, len);
+			fos.close();
+		}
+	}
+
+	/** Wait for room in the window for a chunk (returns its sequence
+	 * number) */
+	public synchronized int waitSend(int len) throws IOException {
+		while (!aborted && n_sent - n_acked >= size)
+			waitInterruptibly();
+		checkAborted();
+		notifyAll();
+		if (0 == n_sent)
+			first_nanos = System.nanoTime();
+		lens[n_sent % size] = len;
+		return n_sent++;
+	}
+
+	/** Acknowledge a chunk.  Acks must arrive in order. */
+	public synchronized void ack(int seq) throws IOException {
+		if (seq != n_acked || seq >= n_sent)
+			throw new IOException("Bad ack: " + seq);
+		n_acked_bytes += lens[seq % size];
+		ack_nanos = System.nanoTime();
+		n_acked++;
+		notifyAll();
+	}
+
+	/** Mark all chunks sent, then wait until they are acknowledged */
+	public synchronized void finish() throws IOException {
+		all_sent = true;
+		notifyAll();
+		while (!aborted && n_acked < n_sent)
+			waitInterruptibly();
+		checkAborted();
+	}
+
+	/** Wait until an ack is expected or all chunks are acknowledged
+	 * (returns true if an ack is expected) */
+	public synchronized boolean waitOutstanding() throws IOException {
+		while (!aborted && !all_sent && n_acked == n_sent)
+			waitInterruptibly();
+		checkAborted();
+		return n_acked < n_sent;
+	}
+
+	/** Get the throughput of acknowledged chunks (bytes/s), or 0 if
+	 * not yet measured */
+	public synchronized long getRate() {
+		long ns = ack_nanos - first_nanos;
+		if (n_acked > 0 && ns > 0)
+			return Math.round(n_acked_bytes * 1e9 / ns);
+		else
+			return 0;
+	}
+
+	/** Get the number of chunks acknowledged */
+	public synchronized int getAcked() {
+		return n_acked;
+	}
+
+	/** Abort the exchange, waking any waiting threads */
+	public synchronized void abort() {
+		aborted = true;
+		notifyAll();
+	}
+
+	/** Wait for a state change */
+	private void waitInterruptibly() throws IOException {
+		try {
+			wait();
+		}
+		catch (InterruptedException e) {
+			aborted = true;
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Check if the exchange was aborted */
+	private void checkAborted() throws IOException {
+		if (aborted)
+			throw new IOException("Sync aborted");
+	}
+}
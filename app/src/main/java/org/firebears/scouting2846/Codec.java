@@ -0,0 +1,269 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codecs for sync messages.  Peers advertise the codecs they
+ * support in the summary; each message then starts with one byte naming
+ * the codec the sender picked.  Peers which advertise no codecs get
+ * gzip, with no codec byte.
+ */
+public class Codec {
+
+	/** No compression */
+	static public final int NONE = 0;
+
+	/** Gzip compression */
+	static public final int GZIP = 1;
+
+	/** Raw deflate with a preset dictionary */
+	static public final int DEFLATE = 2;
+
+	/** Codec names, indexed by codec.  The dictionary is part of the
+	 * deflate codec, so changing it requires a new name. */
+	static private final String[] NAMES = { "none", "gzip", "deflate1" };
+
+	/** Preset dictionary for deflate codec.  Deflate finds matches
+	 * near the end of the dictionary cheapest, so common strings go
+	 * last. */
+	static private final byte[] DICTIONARY = (
+		"\"" + Scouting2017.COL_AUTO_HIGH_GOAL + "\":" +
+		"\"" + Scouting2017.COL_AUTO_LOW_GOAL + "\":" +
+		"\"" + Scouting2017.COL_AUTO_GEAR + "\":" +
+		"\"" + Scouting2017.COL_AUTO_BASELINE + "\":" +
+		"\"" + Scouting2017.COL_HIGH_GOAL + "\":" +
+		"\"" + Scouting2017.COL_LOW_GOAL + "\":" +
+		"\"" + Scouting2017.COL_PLACE_GEAR + "\":" +
+		"\"" + Scouting2017.COL_CLIMB_ROPE + "\":" +
+		"\"" + Scouting2017.COL_TOUCH_PAD + "\":" +
+		"\"" + Scouting2017.COL_BALL_HUMAN + "\":" +
+		"\"" + Scouting2017.COL_BALL_FLOOR + "\":" +
+		"\"" + Scouting2017.COL_BALL_HOPPER + "\":" +
+		"\"" + Scouting2017.COL_PILOT_EFFECTIVE + "\":" +
+		"\"" + Scouting2017.COL_RELEASE_ROPE + "\":" +
+		"\"" + Scouting2017.COL_LOSE_GEAR + "\":" +
+		"\"" + Scouting2017.COL_NOTES + "\":\"" +
+		"\"" + Scouting2017.COL_SCOUTER + "\":" +
+		"\"" + Scouting2017.COL_OBSERVATION + "\":" +
+		"\"" + Scouting2017.COL_MATCH + "\":\"2017" +
+		"\"" + Scouting2017.COL_TEAM_KEY + "\":\"frc" +
+		"_f1m1_sf1m1_qf1m1_qm1frc1frc2frc3frc4frc5frc6frc7frc8frc9"
+		).getBytes();
+
+	/** Messages smaller than this are not worth compressing with
+	 * gzip */
+	static private final int MIN_COMPRESS_LEN = 128;
+
+	/** Size of compression buffers */
+	static private final int BUF_SZ = 4096;
+
+	/** Get the names of all supported codecs */
+	static public String[] getNames() {
+		return NAMES.clone();
+	}
+
+	/** Codecs supported by the peer */
+	private final boolean[] supported = new boolean[NAMES.length];
+
+	/** Flag indicating messages are tagged with a codec byte */
+	private final boolean tagged;
+
+	/** Total raw bytes compressed */
+	private long n_raw = 0;
+
+	/** Total compressed bytes */
+	private long n_compressed = 0;
+
+	/** Nanoseconds spent compressing */
+	private long n_nanos = 0;
+
+	/** Number of messages sent with each codec */
+	private final int[] n_used = new int[NAMES.length];
+
+	/** Create a codec chooser for the codecs a peer supports */
+	public Codec(HashSet<String> names) {
+		for (int i = 0; i < NAMES.length; i++)
+			supported[i] = names.contains(NAMES[i]);
+		tagged = !names.isEmpty();
+	}
+
+	/** Choose a codec for a message.
+	 *
+	 * @param len Raw length of message (bytes), or -1 if unknown.
+	 * @param rate Measured link throughput (bytes/s), or 0 if unknown.
+	 */
+	public synchronized int choose(int len, long rate) {
+		if (!tagged)
+			return GZIP;
+		// Raw deflate has no header, and the dictionary helps even
+		// tiny messages; gzip only pays off for larger ones
+		int c = supported[DEFLATE] ? DEFLATE : GZIP;
+		if (GZIP == c && len >= 0 && len < MIN_COMPRESS_LEN &&
+		    supported[NONE])
+			return NONE;
+		if (!supported[c])
+			return NONE;
+		if (rate > 0 && n_nanos > 0 && supported[NONE]) {
+			// Compare time to send raw against time to compress
+			// and send compressed, using rates measured so far
+			double ratio = (double) n_compressed / n_raw;
+			double compress_rate = n_raw * 1e9 / n_nanos;
+			double t_raw = 1.0 / rate;
+			double t_comp = 1.0 / compress_rate + ratio / rate;
+			if (t_raw <= t_comp)
+				return NONE;
+		}
+		return c;
+	}
+
+	/** Encode a message with a codec, writing the codec byte if
+	 * needed */
+	public void encode(byte[] b, int off, int len, int c,
+		ByteArrayOutputStream bo) throws IOException
+	{
+		long start = System.nanoTime();
+		int n = bo.size();
+		OutputStream os = openOutput(bo, c);
+		os.write(b, off, len);
+		os.close();
+		if (c != NONE)
+			record(len, bo.size() - n, System.nanoTime() - start);
+	}
+
+	/** Record a message sent with a codec, which was encoded
+	 * earlier */
+	public synchronized void reuse(int c) {
+		n_used[c]++;
+	}
+
+	/** Check if messages are tagged with a codec byte */
+	public boolean isTagged() {
+		return tagged;
+	}
+
+	/** Record compression results */
+	private synchronized void record(int raw, int compressed,
+		long nanos)
+	{
+		n_raw += raw;
+		n_compressed += compressed;
+		n_nanos += nanos;
+	}
+
+	/** Open an output stream for a message, writing the codec byte if
+	 * needed */
+	public OutputStream openOutput(OutputStream os, int c)
+		throws IOException
+	{
+		synchronized (this) {
+			n_used[c]++;
+		}
+		if (tagged)
+			os.write(c);
+		switch (c) {
+		case NONE:
+			return os;
+		case GZIP:
+			return new GZIPOutputStream(os, BUF_SZ);
+		case DEFLATE:
+			return openDeflater(os);
+		default:
+			throw new IOException("Bad codec: " + c);
+		}
+	}
+
+	/** Open a raw deflate stream with the preset dictionary */
+	static private OutputStream openDeflater(OutputStream os) {
+		final Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+		d.setDictionary(DICTIONARY);
+		return new DeflaterOutputStream(os, d, BUF_SZ) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					d.end();
+				}
+			}
+		};
+	}
+
+	/** Open an input stream for a message, reading the codec byte if
+	 * needed */
+	public InputStream openInput(InputStream is) throws IOException {
+		int c = tagged ? is.read() : GZIP;
+		switch (c) {
+		case NONE:
+			return is;
+		case GZIP:
+			return new GZIPInputStream(is, BUF_SZ);
+		case DEFLATE:
+			return openInflater(is);
+		default:
+			throw new IOException("Bad codec: " + c);
+		}
+	}
+
+	/** Open a raw inflate stream with the preset dictionary */
+	static private InputStream openInflater(InputStream is) {
+		final Inflater inf = new Inflater(true);
+		inf.setDictionary(DICTIONARY);
+		return new InflaterInputStream(is, inf, BUF_SZ) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					inf.end();
+				}
+			}
+		};
+	}
+
+	/** Get a summary of codecs used */
+	public synchronized String getUsage() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			if (n_used[i] > 0) {
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(NAMES[i]).append(':').append(n_used[i]);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentValues;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reader for observations in the binary columnar format written by
+ * ColumnarWriter.  Delta rows have a ScoutingEdit.COL_BASE value, and
+ * only the columns in their mask.
+ */
+public class ColumnarReader implements Closeable {
+
+	/** Maximum length of a string */
+	static private final int MAX_STRING_LEN = 65536;
+
+	/** Stream to read batches */
+	private final DataInputStream in;
+
+	/** Flag indicating deltas are enabled */
+	private final boolean deltas;
+
+	/** Column masks for the current batch */
+	private final int[] mask = new int[ColumnarWriter.BATCH_SIZE];
+
+	/** Dictionary of match keys */
+	private final ArrayList<String> matches = new ArrayList<String>();
+
+	/** Dictionary of team keys */
+	private final ArrayList<String> teams = new ArrayList<String>();
+
+	/** Dictionary of event keys */
+	private final ArrayList<String> events = new ArrayList<String>();
+
+	/** Previous scouter / observation (for delta decoding) */
+	private int prev_scouter = 0;
+	private int prev_observation = 0;
+
+	/** Create a columnar reader */
+	public ColumnarReader(InputStream is, boolean d) {
+		in = new DataInputStream(is);
+		deltas = d;
+	}
+
+	/** Create a columnar reader (without deltas) */
+	public ColumnarReader(InputStream is) {
+		this(is, false);
+	}
+
+	/** Read one batch of rows (returns number of rows, 0 at end) */
+	public int readBatch(ArrayList<ContentValues> batch)
+		throws IOException
+	{
+		int n_rows = readVarint();
+		if (n_rows < 0 || n_rows > ColumnarWriter.BATCH_SIZE)
+			throw new IOException("Bad batch size: " + n_rows);
+		if (0 == n_rows)
+			return 0;
+		ContentValues[] rows = new ContentValues[n_rows];
+		for (int r = 0; r < n_rows; r++)
+			rows[r] = new ContentValues();
+		for (ContentValues cv : rows) {
+			prev_scouter += unzigzag(readVarint());
+			cv.put(Scouting2017.COL_SCOUTER, prev_scouter);
+		}
+		for (ContentValues cv : rows) {
+			prev_observation += unzigzag(readVarint());
+			cv.put(Scouting2017.COL_OBSERVATION, prev_observation);
+		}
+		if (deltas)
+			readDeltas(rows);
+		else {
+			for (int r = 0; r < n_rows; r++)
+				mask[r] = ColumnarWriter.MASK_ALL;
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (ColumnarWriter.MASK_ALL == mask[r]) {
+				rows[r].put(Scouting2017.COL_MATCH,
+					readKey(matches));
+			}
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (ColumnarWriter.MASK_ALL == mask[r]) {
+				rows[r].put(Scouting2017.COL_TEAM_KEY,
+					readKey(teams));
+			}
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (ColumnarWriter.MASK_ALL == mask[r]) {
+				rows[r].put(Scouting2017.COL_EVENT_KEY,
+					readKey(events));
+			}
+		}
+		for (String col : ColumnarWriter.COLS_COUNT) {
+			int bit = ScoutingEdit.maskBit(col);
+			for (int r = 0; r < n_rows; r++) {
+				if ((mask[r] & bit) != 0)
+					rows[r].put(col, unzigzag(readVarint()));
+			}
+		}
+		for (String col : ColumnarWriter.COLS_SWITCH)
+			readSwitches(rows, col);
+		int bit = ScoutingEdit.maskBit(Scouting2017.COL_NOTES);
+		for (int r = 0; r < n_rows; r++) {
+			if ((mask[r] & bit) != 0)
+				rows[r].put(Scouting2017.COL_NOTES, readString());
+		}
+		for (ContentValues cv : rows)
+			batch.add(cv);
+		return n_rows;
+	}
+
+	/** Read base and mask columns */
+	private void readDeltas(ContentValues[] rows) throws IOException {
+		for (int r = 0; r < rows.length; r++) {
+			int d = readVarint();
+			if (d > 0) {
+				int o = rows[r].getAsInteger(
+					Scouting2017.COL_OBSERVATION);
+				rows[r].put(ScoutingEdit.COL_BASE, o - d);
+				mask[r] = 0;
+			} else
+				mask[r] = ColumnarWriter.MASK_ALL;
+		}
+		for (int r = 0; r < rows.length; r++) {
+			if (mask[r] != ColumnarWriter.MASK_ALL)
+				mask[r] = readVarint();
+		}
+	}
+
+	/** Read a dictionary-encoded key */
+	private String readKey(ArrayList<String> dict) throws IOException {
+		int i = readVarint();
+		if (i >= 0 && i < dict.size())
+			return dict.get(i);
+		else if (i == dict.size()) {
+			String k = readString();
+			dict.add(k);
+			return k;
+		} else
+			throw new IOException("Bad key index: " + i);
+	}
+
+	/** Read a column of switch values */
+	private void readSwitches(ContentValues[] rows, String col)
+		throws IOException
+	{
+		int bit = ScoutingEdit.maskBit(col);
+		int enc = in.readUnsignedByte();
+		if (ColumnarWriter.ENC_BITSET == enc) {
+			int b = 0;
+			int n = 0;
+			for (int r = 0; r < rows.length; r++) {
+				if ((mask[r] & bit) != 0) {
+					if (0 == n % 8)
+						b = in.readUnsignedByte();
+					rows[r].put(col, (b >> (n % 8)) & 1);
+					n++;
+				}
+			}
+		} else if (ColumnarWriter.ENC_VARINT == enc) {
+			for (int r = 0; r < rows.length; r++) {
+				if ((mask[r] & bit) != 0) {
+					rows[r].put(col,
+						unzigzag(readVarint()));
+				}
+			}
+		} else
+			throw new IOException("Bad encoding: " + enc);
+	}
+
+	/** Read a string (length + 1, or 0 for null, then UTF-8 bytes) */
+	private String readString() throws IOException {
+		int len = readVarint() - 1;
+		if (len < 0)
+			return null;
+		if (len > MAX_STRING_LEN)
+			throw new IOException("Bad string length: " + len);
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	/** Read an unsigned varint */
+	private int readVarint() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Bad varint");
+	}
+
+	/** Decode a zigzag encoded integer */
+	static private int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.database.Cursor;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Writer for observations in a compact binary columnar format.
+ *
+ * Rows are written in batches.  Each batch starts with a varint row count
+ * (zero marks the end), followed by each column for all rows in the batch.
+ * Integers are zigzag varints (scouter and observation as deltas from the
+ * previous row), switches are packed into bitsets, match, team and event
+ * keys are indexes into dictionaries which grow as new keys are seen.  The
+ * event key is the sender's tag, so receivers never have to guess it.
+ *
+ * With deltas enabled, each batch also has a base column (observation
+ * minus base observation, 0 for a full row) and a mask column for delta
+ * rows.  A delta row has no keys, and only the columns in its mask (see
+ * ScoutingEdit.COLS_MASK); the reader takes other columns from the base.
+ */
+public class ColumnarWriter implements Closeable {
+
+	/** Maximum number of rows in one batch */
+	static public final int BATCH_SIZE = 256;
+
+	/** Counter columns */
+	static public final String[] COLS_COUNT = {
+		Scouting2017.COL_AUTO_HIGH_GOAL,Scouting2017.COL_AUTO_LOW_GOAL,
+		Scouting2017.COL_HIGH_GOAL, Scouting2017.COL_LOW_GOAL,
+		Scouting2017.COL_PLACE_GEAR,
+	};
+
+	/** Switch (boolean) columns */
+	static public final String[] COLS_SWITCH = {
+		Scouting2017.COL_AUTO_GEAR, Scouting2017.COL_AUTO_BASELINE,
+		Scouting2017.COL_CLIMB_ROPE, Scouting2017.COL_TOUCH_PAD,
+		Scouting2017.COL_BALL_HUMAN, Scouting2017.COL_BALL_FLOOR,
+		Scouting2017.COL_BALL_HOPPER, Scouting2017.COL_PILOT_EFFECTIVE,
+		Scouting2017.COL_RELEASE_ROPE, Scouting2017.COL_LOSE_GEAR,
+	};
+
+	/** Switch column encoded as a bitset */
+	static public final int ENC_BITSET = 0;
+
+	/** Switch column encoded as varints (values other than 0 or 1) */
+	static public final int ENC_VARINT = 1;
+
+	/** Stream to write batches */
+	private final DataOutputStream out;
+
+	/** Flag indicating deltas are enabled */
+	private final boolean deltas;
+
+	/** Dictionary of match keys */
+	private final HashMap<String, Integer> matches =
+		new HashMap<String, Integer>();
+
+	/** Dictionary of team keys */
+	private final HashMap<String, Integer> teams =
+		new HashMap<String, Integer>();
+
+	/** Dictionary of event keys (null for untagged rows) */
+	private final HashMap<String, Integer> events =
+		new HashMap<String, Integer>();
+
+	/** Cursor column indexes */
+	private int ci_scouter, ci_observation, ci_match, ci_team, ci_notes,
+		ci_event;
+	private final int[] ci_count = new int[COLS_COUNT.length];
+	private final int[] ci_switch = new int[COLS_SWITCH.length];
+
+	/** Column values for the current batch */
+	private final int[] scouter = new int[BATCH_SIZE];
+	private final int[] observation = new int[BATCH_SIZE];
+	private final String[] match = new String[BATCH_SIZE];
+	private final String[] team = new String[BATCH_SIZE];
+	private final String[] event = new String[BATCH_SIZE];
+	private final int[][] count = new int[COLS_COUNT.length][BATCH_SIZE];
+	private final int[][] swtch = new int[COLS_SWITCH.length][BATCH_SIZE];
+	private final String[] notes = new String[BATCH_SIZE];
+	private final int[] base = new int[BATCH_SIZE];
+	private final int[] mask = new int[BATCH_SIZE];
+
+	/** Mask bits for counter and switch columns */
+	private final int[] bit_count = new int[COLS_COUNT.length];
+	private final int[] bit_switch = new int[COLS_SWITCH.length];
+
+	/** Mask bit for notes column */
+	static private final int BIT_NOTES = ScoutingEdit.maskBit(
+		Scouting2017.COL_NOTES);
+
+	/** Mask of a full row */
+	static public final int MASK_ALL = -1;
+
+	/** Included values for the column being written */
+	private final int[] vals = new int[BATCH_SIZE];
+
+	/** Number of rows in the current batch */
+	private int n_rows = 0;
+
+	/** Previous scouter / observation (for delta encoding) */
+	private int prev_scouter = 0;
+	private int prev_observation = 0;
+
+	/** Create a columnar writer */
+	public ColumnarWriter(OutputStream os, boolean d) {
+		out = new DataOutputStream(os);
+		deltas = d;
+		for (int i = 0; i < COLS_COUNT.length; i++)
+			bit_count[i] = ScoutingEdit.maskBit(COLS_COUNT[i]);
+		for (int i = 0; i < COLS_SWITCH.length; i++)
+			bit_switch[i] = ScoutingEdit.maskBit(COLS_SWITCH[i]);
+	}
+
+	/** Create a columnar writer (without deltas) */
+	public ColumnarWriter(OutputStream os) {
+		this(os, false);
+	}
+
+	/** Lookup cursor column indexes */
+	private void lookupColumns(Cursor c) {
+		ci_scouter = c.getColumnIndex(Scouting2017.COL_SCOUTER);
+		ci_observation = c.getColumnIndex(Scouting2017.COL_OBSERVATION);
+		ci_match = c.getColumnIndex(Scouting2017.COL_MATCH);
+		ci_team = c.getColumnIndex(Scouting2017.COL_TEAM_KEY);
+		ci_notes = c.getColumnIndex(Scouting2017.COL_NOTES);
+		ci_event = c.getColumnIndex(Scouting2017.COL_EVENT_KEY);
+		for (int i = 0; i < COLS_COUNT.length; i++)
+			ci_count[i] = c.getColumnIndex(COLS_COUNT[i]);
+		for (int i = 0; i < COLS_SWITCH.length; i++)
+			ci_switch[i] = c.getColumnIndex(COLS_SWITCH[i]);
+	}
+
+	/** Add the current cursor row */
+	public void add(Cursor c) throws IOException {
+		add(c, 0, MASK_ALL);
+	}
+
+	/** Add the current cursor row as a delta from a base observation
+	 * (only columns in the mask are written) */
+	public void add(Cursor c, int b, int m) throws IOException {
+		if (!deltas && m != MASK_ALL)
+			throw new IOException("Deltas not enabled");
+		if (0 == n_rows)
+			lookupColumns(c);
+		scouter[n_rows] = c.getInt(ci_scouter);
+		observation[n_rows] = c.getInt(ci_observation);
+		match[n_rows] = c.getString(ci_match);
+		team[n_rows] = c.getString(ci_team);
+		event[n_rows] = (ci_event >= 0) ? c.getString(ci_event) : null;
+		for (int i = 0; i < COLS_COUNT.length; i++)
+			count[i][n_rows] = c.getInt(ci_count[i]);
+		for (int i = 0; i < COLS_SWITCH.length; i++)
+			swtch[i][n_rows] = c.getInt(ci_switch[i]);
+		notes[n_rows] = c.getString(ci_notes);
+		base[n_rows] = b;
+		mask[n_rows] = m;
+		n_rows++;
+		if (n_rows >= BATCH_SIZE)
+			writeBatch();
+	}
+
+	/** Write the current batch */
+	private void writeBatch() throws IOException {
+		writeVarint(n_rows);
+		for (int r = 0; r < n_rows; r++) {
+			writeVarint(zigzag(scouter[r] - prev_scouter));
+			prev_scouter = scouter[r];
+		}
+		for (int r = 0; r < n_rows; r++) {
+			writeVarint(zigzag(observation[r] - prev_observation));
+			prev_observation = observation[r];
+		}
+		if (deltas)
+			writeDeltas();
+		for (int r = 0; r < n_rows; r++) {
+			if (MASK_ALL == mask[r])
+				writeKey(matches, match[r]);
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (MASK_ALL == mask[r])
+				writeKey(teams, team[r]);
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (MASK_ALL == mask[r])
+				writeKey(events, event[r]);
+		}
+		for (int i = 0; i < COLS_COUNT.length; i++) {
+			for (int r = 0; r < n_rows; r++) {
+				if ((mask[r] & bit_count[i]) != 0)
+					writeVarint(zigzag(count[i][r]));
+			}
+		}
+		for (int i = 0; i < COLS_SWITCH.length; i++)
+			writeSwitches(swtch[i], bit_switch[i]);
+		for (int r = 0; r < n_rows; r++) {
+			if ((mask[r] & BIT_NOTES) != 0)
+				writeString(notes[r]);
+		}
+		n_rows = 0;
+	}
+
+	/** Write base and mask columns */
+	private void writeDeltas() throws IOException {
+		for (int r = 0; r < n_rows; r++) {
+			writeVarint((MASK_ALL == mask[r])
+				? 0 : observation[r] - base[r]);
+		}
+		for (int r = 0; r < n_rows; r++) {
+			if (mask[r] != MASK_ALL)
+				writeVarint(mask[r]);
+		}
+	}
+
+	/** Write a dictionary-encoded key.  An index equal to the
+	 * dictionary size is followed by a new key. */
+	private void writeKey(HashMap<String, Integer> dict, String k)
+		throws IOException
+	{
+		Integer i = dict.get(k);
+		if (i != null)
+			writeVarint(i);
+		else {
+			writeVarint(dict.size());
+			writeString(k);
+			dict.put(k, dict.size());
+		}
+	}
+
+	/** Write a column of switch values (rows with a mask bit) */
+	private void writeSwitches(int[] col, int bit) throws IOException {
+		int n = 0;
+		for (int r = 0; r < n_rows; r++) {
+			if ((mask[r] & bit) != 0)
+				vals[n++] = col[r];
+		}
+		if (isBits(vals, n)) {
+			out.writeByte(ENC_BITSET);
+			for (int r = 0; r < n; r += 8) {
+				int b = 0;
+				for (int i = 0; i < 8 && r + i < n; i++)
+					b |= vals[r + i] << i;
+				out.writeByte(b);
+			}
+		} else {
+			out.writeByte(ENC_VARINT);
+			for (int r = 0; r < n; r++)
+				writeVarint(zigzag(vals[r]));
+		}
+	}
+
+	/** Check if all values in a column are 0 or 1 */
+	static private boolean isBits(int[] col, int n) {
+		for (int r = 0; r < n; r++) {
+			if ((col[r] & ~1) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Write a string (length + 1, or 0 for null, then UTF-8 bytes) */
+	private void writeString(String s) throws IOException {
+		if (s != null) {
+			byte[] b = s.getBytes("UTF-8");
+			writeVarint(b.length + 1);
+			out.write(b);
+		} else
+			writeVarint(0);
+	}
+
+	/** Write an unsigned varint */
+	private void writeVarint(int v) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	/** Zigzag encode a signed integer */
+	static private int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	/** Write any pending rows and the end marker, then close */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (n_rows > 0)
+				writeBatch();
+			writeVarint(0);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
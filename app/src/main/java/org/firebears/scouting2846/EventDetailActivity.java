@@ -21,19 +21,61 @@
  */
 package org.firebears.scouting2846;
 
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.widget.Toolbar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.app.ActionBar;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * An activity representing the details of an FRC event.
  */
 public class EventDetailActivity extends AppCompatActivity {
 
+	static private final String TAG = "EventDetailActivity";
+
+	/** Flag indicating only this event is synced */
+	private boolean sync_event = false;
+
+	/** Task to select events to sync, then check if only this event is
+	 * selected */
+	private class SelectEventTask extends AsyncTask<Void, Void, Boolean> {
+		private final ContentResolver cr = getContentResolver();
+		private final String key = getEventKey();
+		private final Set<String> events;
+		private SelectEventTask(Set<String> e) {
+			events = e;
+		}
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			if (events != null)
+				SyncEvent.select(cr, events);
+			try {
+				return SyncEvent.lookup(cr).equals(
+					Collections.singleton(key));
+			}
+			catch (IOException e) {
+				Log.e(TAG, "lookup: " + e.getMessage());
+				return false;
+			}
+		}
+		@Override
+		protected void onPostExecute(Boolean s) {
+			sync_event = s;
+			invalidateOptionsMenu();
+		}
+	}
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -45,6 +87,7 @@ public class EventDetailActivity extends AppCompatActivity {
 			ab.setDisplayHomeAsUpEnabled(true);
 		if (null == savedInstanceState)
 			addFragment();
+		new SelectEventTask(null).execute();
 	}
 
 	/** Add event detail fragment */
@@ -65,12 +108,28 @@ public class EventDetailActivity extends AppCompatActivity {
 		return b;
 	}
 
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.event_menu, menu);
+		menu.findItem(R.id.action_sync_event).setChecked(sync_event);
+		return true;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		if (android.R.id.home == item.getItemId()) {
 			onBackPressed();
 			return true;
 		}
+		if (R.id.action_sync_event == item.getItemId()) {
+			// Unchecking goes back to syncing all events
+			Set<String> e = sync_event
+			              ? Collections.<String>emptySet()
+			              : Collections.singleton(getEventKey());
+			new SelectEventTask(e).execute();
+			return true;
+		}
 		return super.onOptionsItemSelected(item);
 	}
 
@@ -22,19 +22,25 @@
 package org.firebears.scouting2846;
 
 import android.app.LoaderManager.LoaderCallbacks;
+import android.bluetooth.BluetoothAdapter;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.text.InputType;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.SimpleCursorAdapter;
 import android.widget.ListView;
 
@@ -46,6 +52,15 @@ public class EventListActivity extends AppCompatActivity {
 	/** Loader ID */
 	static private final int EVENT_LOADER_ID = 37;
 
+	/** Request code to select a device to sync */
+	static private final int REQUEST_SYNC = 1;
+
+	/** Request code to select a device to sync with repair */
+	static private final int REQUEST_REPAIR = 2;
+
+	/** Request code to select the lead device */
+	static private final int REQUEST_LEAD = 3;
+
 	/** Columns to retrieve from the loader */
 	static private final String[] COLS = {
 		FRCEvent.COL_WEEK,
@@ -141,6 +156,18 @@ public class EventListActivity extends AppCompatActivity {
 			return onRefreshSelected();
 		else if (R.id.action_bt_sync == item.getItemId())
 			return onBluetoothSyncSelected();
+		else if (R.id.action_tcp_sync == item.getItemId())
+			return onTcpSyncSelected();
+		else if (R.id.action_tcp_settings == item.getItemId())
+			return onTcpSettingsSelected();
+		else if (R.id.action_repair_sync == item.getItemId())
+			return onRepairSyncSelected();
+		else if (R.id.action_lead_device == item.getItemId())
+			return onLeadDeviceSelected();
+		else if (R.id.action_sync_all == item.getItemId())
+			return onSyncAllSelected();
+		else if (R.id.action_sync_log == item.getItemId())
+			return onSyncLogSelected();
 		else
 			return super.onOptionsItemSelected(item);
 	}
@@ -153,10 +180,98 @@ public class EventListActivity extends AppCompatActivity {
 
 	private boolean onBluetoothSyncSelected() {
 		Intent intent = new Intent(this, SelectDeviceActivity.class);
-		startActivityForResult(intent, 1);
+		startActivityForResult(intent, REQUEST_SYNC);
+		return true;
+	}
+
+	private boolean onRepairSyncSelected() {
+		Intent intent = new Intent(this, SelectDeviceActivity.class);
+		startActivityForResult(intent, REQUEST_REPAIR);
+		return true;
+	}
+
+	private boolean onLeadDeviceSelected() {
+		Intent intent = new Intent(this, SelectDeviceActivity.class);
+		startActivityForResult(intent, REQUEST_LEAD);
+		return true;
+	}
+
+	private boolean onSyncAllSelected() {
+		new GossipSyncTask(this, BluetoothAdapter.getDefaultAdapter())
+			.execute();
 		return true;
 	}
 
+	private boolean onSyncLogSelected() {
+		startActivity(new Intent(this, SyncLogActivity.class));
+		return true;
+	}
+
+	private boolean onTcpSyncSelected() {
+		final EditText et = new EditText(this);
+		et.setHint(R.string.tcp_address);
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.action_tcp_sync)
+			.setView(et)
+			.setPositiveButton(android.R.string.ok,
+				new DialogInterface.OnClickListener()
+			{
+				public void onClick(DialogInterface d, int w) {
+					startTcpSync(et.getText().toString()
+						.trim());
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+		return true;
+	}
+
+	private void startTcpSync(String address) {
+		TcpTransport t = TcpSettings.createTransport(this);
+		if (null == t)
+			showSnack(R.string.tcp_off);
+		else if (address.length() > 0)
+			new BluetoothSyncTask(this, t, address).execute();
+	}
+
+	private boolean onTcpSettingsSelected() {
+		final EditText bind = new EditText(this);
+		bind.setHint(R.string.tcp_bind);
+		String b = TcpSettings.lookupBind(this);
+		if (!TcpTransport.LOOPBACK.equals(b))
+			bind.setText(b);
+		final EditText secret = new EditText(this);
+		secret.setHint(R.string.tcp_secret);
+		secret.setInputType(InputType.TYPE_CLASS_TEXT |
+			InputType.TYPE_TEXT_VARIATION_PASSWORD);
+		secret.setText(TcpSettings.lookupSecret(this));
+		LinearLayout ll = new LinearLayout(this);
+		ll.setOrientation(LinearLayout.VERTICAL);
+		ll.addView(bind);
+		ll.addView(secret);
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.action_tcp_settings)
+			.setView(ll)
+			.setPositiveButton(android.R.string.ok,
+				new DialogInterface.OnClickListener()
+			{
+				public void onClick(DialogInterface d, int w) {
+					storeTcpSettings(bind.getText()
+						.toString().trim(), secret
+						.getText().toString());
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+		return true;
+	}
+
+	/** Store TCP settings, and restart the service to apply them */
+	private void storeTcpSettings(String bind, String secret) {
+		TcpSettings.store(this, bind, secret);
+		startService(new Intent(this, BluetoothSyncService.class));
+	}
+
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode,
 		Intent data)
@@ -165,7 +280,16 @@ public class EventListActivity extends AppCompatActivity {
 		case RESULT_OK:
 			String address = data.getStringExtra(
 				SelectDeviceActivity.DEVICE_ADDRESS);
-			new BluetoothSyncTask(this, address).execute();
+			if (REQUEST_LEAD == requestCode) {
+				SyncScheduler.getInstance(this).setLead(
+					address);
+				showSnack(R.string.lead_device_set);
+				break;
+			}
+			new BluetoothSyncTask(this, new RfcommTransport(
+				BluetoothAdapter.getDefaultAdapter()),
+				address, REQUEST_REPAIR == requestCode)
+				.execute();
 			break;
 		case RESULT_CANCELED:
 			int res = data.getIntExtra(
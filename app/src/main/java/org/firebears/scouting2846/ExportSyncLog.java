@@ -0,0 +1,93 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.AsyncTask;
+
+/**
+ * Task to export the sync log as CSV, off the UI thread.
+ */
+public class ExportSyncLog extends AsyncTask<Void, Void, String> {
+
+	private final SyncLogActivity context;
+
+	public ExportSyncLog(SyncLogActivity ctx) {
+		context = ctx;
+	}
+
+	@Override
+	protected String doInBackground(Void... v) {
+		return buildCsv();
+	}
+
+	/** Build CSV text of the sync log */
+	private String buildCsv() {
+		String[] cols = SyncLogActivity.COLS;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cols.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(cols[i]);
+		}
+		sb.append('\n');
+		Cursor c = context.getContentResolver().query(
+			SyncLog.CONTENT_URI, cols, null, null, SyncLog.COL_ID);
+		if (c != null) {
+			try {
+				while (c.moveToNext())
+					appendCsvRow(sb, c);
+			}
+			finally {
+				c.close();
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Append one CSV row */
+	static private void appendCsvRow(StringBuilder sb, Cursor c) {
+		for (int i = 0; i < c.getColumnCount(); i++) {
+			if (i > 0)
+				sb.append(',');
+			String v = c.getString(i);
+			if (v != null) {
+				sb.append('"');
+				sb.append(v.replace("\"", "\"\""));
+				sb.append('"');
+			}
+		}
+		sb.append('\n');
+	}
+
+	@Override
+	protected void onPostExecute(String csv) {
+		Intent intent = new Intent(Intent.ACTION_SEND);
+		intent.setType("text/csv");
+		intent.putExtra(Intent.EXTRA_SUBJECT,
+			context.getString(R.string.title_sync_log));
+		intent.putExtra(Intent.EXTRA_TEXT, csv);
+		context.startActivity(Intent.createChooser(intent,
+			context.getText(R.string.action_export)));
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Thread to send extra observations to a peer.
+ */
+class ExtraSender extends Sender {
+
+	private final ContentResolver cr;
+	private final HashMap<Integer, Integer> mine;
+	private final HashMap<Integer, Integer> map;
+	private final String scope;
+	private final String format;
+	private final OutputStream os;
+	private final ChunkWindow window;
+	private final Codec codec;
+	private final SyncStats stats;
+
+	/** Create a sender of extra observations */
+	ExtraSender(ContentResolver r, HashMap<Integer, Integer> mn,
+		HashMap<Integer, Integer> m, String sc, String f,
+		SyncConnection c, OutputStream o, ChunkWindow w, Codec cd,
+		SyncStats st)
+	{
+		super(c, w);
+		cr = r;
+		mine = mn;
+		map = m;
+		scope = sc;
+		format = f;
+		os = o;
+		window = w;
+		codec = cd;
+		stats = st;
+	}
+
+	@Override
+	protected int send() throws IOException {
+		long start = System.currentTimeMillis();
+		int n = Marshaller.lookupExtraObservations(cr, mine, map, scope,
+			format, os, window, codec, stats);
+		stats.setSendMillis(System.currentTimeMillis() - start);
+		return n;
+	}
+}
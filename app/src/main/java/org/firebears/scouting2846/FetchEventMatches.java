@@ -26,6 +26,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.util.Log;
+import java.io.IOException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -52,30 +53,42 @@ public class FetchEventMatches extends AsyncTask<Void, Void, Void> {
 	protected Void doInBackground(Void... v) {
 		ContentResolver cr = context.getContentResolver();
 		try {
-			insertEventMatches(cr, TBAFetcher.fetchMatches(
-				event_key));
+			if (insertEventMatches(cr, TBAFetcher.fetchMatches(
+				event_key)) > 0)
+			{
+				// Peers get the new matches in a bundle
+				RefBundle.touch(cr, event_key,
+					RefBundle.KIND_MATCHES);
+			}
 		}
 		catch (JSONException e) {
 			Log.e(TAG, "exception " + e.getMessage());
 		}
+		catch (IOException e) {
+			Log.e(TAG, "exception " + e.getMessage());
+		}
 		return null;
 	}
 
 	static private final String[] COLS_KEY = { Match.COL_KEY, };
 	static private final String[] COLS_ID = { Match.COL_ID, };
 
-	private void insertEventMatches(ContentResolver cr, String js)
+	/** Insert event matches (returns number inserted) */
+	private int insertEventMatches(ContentResolver cr, String js)
 		throws JSONException
 	{
+		int n = 0;
 		JSONArray ar = new JSONArray(js);
 		for (int i = 0; i < ar.length(); i++) {
 			JSONObject jo = ar.getJSONObject(i);
 			ContentValues cv = Match.parse(jo, event_id);
-			if (cv != null)
+			if (cv != null) {
 				insertOrUpdate(cr, cv);
-			else
+				n++;
+			} else
 				Log.e(TAG, "parse error " + jo);
 		}
+		return n;
 	}
 
 	private void insertOrUpdate(ContentResolver cr, ContentValues cv) {
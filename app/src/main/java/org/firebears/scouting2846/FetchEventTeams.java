@@ -26,6 +26,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.util.Log;
+import java.io.IOException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -52,20 +53,31 @@ public class FetchEventTeams extends AsyncTask<Void, Void, Void> {
 	protected Void doInBackground(Void... v) {
 		ContentResolver cr = context.getContentResolver();
 		try {
-			insertEventTeams(cr, TBAFetcher.fetchTeams(event_key));
+			if (insertEventTeams(cr, TBAFetcher.fetchTeams(
+				event_key)) > 0)
+			{
+				// Peers get the new teams in a bundle
+				RefBundle.touch(cr, event_key,
+					RefBundle.KIND_TEAMS);
+			}
 		}
 		catch (JSONException e) {
 			Log.e(TAG, e.getMessage());
 		}
+		catch (IOException e) {
+			Log.e(TAG, e.getMessage());
+		}
 		return null;
 	}
 
 	static private final String[] COLS_KEY = { Team.COL_KEY, };
 	static private final String[] COLS_ID = { Team.COL_ID, };
 
-	private void insertEventTeams(ContentResolver cr, String js)
+	/** Insert event teams (returns number inserted) */
+	private int insertEventTeams(ContentResolver cr, String js)
 		throws JSONException
 	{
+		int n = 0;
 		JSONArray ar = new JSONArray(js);
 		for (int i = 0; i < ar.length(); i++) {
 			JSONObject jo = ar.getJSONObject(i);
@@ -73,9 +85,11 @@ public class FetchEventTeams extends AsyncTask<Void, Void, Void> {
 			if (cv != null) {
 				insertOrUpdate(cr, cv);
 				insertRelation(cr, createRelationVals(cr, cv));
+				n++;
 			} else
 				Log.e(TAG, "parse " + jo);
 		}
+		return n;
 	}
 
 	private void insertOrUpdate(ContentResolver cr, ContentValues cv) {
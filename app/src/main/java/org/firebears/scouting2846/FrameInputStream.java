@@ -0,0 +1,132 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * Input stream to read a message from a sequence of frames.
+ */
+public class FrameInputStream extends InputStream {
+
+	/** Type to accept any message */
+	static public final int ANY = -1;
+
+	/** Stream to read frames */
+	private final DataInputStream in;
+
+	/** Expected message type */
+	private int type;
+
+	/** Buffer for the current frame payload */
+	private final byte[] buf = new byte[FrameOutputStream.MAX_FRAME_LEN];
+
+	/** Number of bytes in the current frame */
+	private int n_buf = 0;
+
+	/** Position in the current frame */
+	private int pos = 0;
+
+	/** Flag indicating the end of the message was read */
+	private boolean done = false;
+
+	/** Total number of payload bytes read */
+	private long n_total = 0;
+
+	/** Create a frame input stream */
+	public FrameInputStream(InputStream is, int t) {
+		in = new DataInputStream(is);
+		type = t;
+	}
+
+	/** Create a frame input stream for any message type */
+	public FrameInputStream(InputStream is) {
+		this(is, ANY);
+	}
+
+	/** Get the message type (reads the first frame) */
+	public int getType() throws IOException {
+		readFrame();
+		return type;
+	}
+
+	/** Get the total number of payload bytes read */
+	public long getTotal() {
+		return n_total;
+	}
+
+	/** Read the next frame (false at end of message) */
+	private boolean readFrame() throws IOException {
+		while (!done && pos >= n_buf) {
+			int magic = in.readUnsignedShort();
+			if (magic != FrameOutputStream.MAGIC)
+				throw new IOException("Bad magic: " + magic);
+			int t = in.readUnsignedByte();
+			if (ANY == type)
+				type = t;
+			else if (t != type)
+				throw new IOException("Unexpected message: " + t);
+			int len = in.readInt();
+			if (len < 0 || len > FrameOutputStream.MAX_FRAME_LEN)
+				throw new IOException("Bad length: " + len);
+			in.readFully(buf, 0, len);
+			n_total += len;
+			n_buf = len;
+			pos = 0;
+			if (0 == len)
+				done = true;
+		}
+		return !done;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return readFrame() ? (buf[pos++] & 0xFF) : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (0 == len)
+			return 0;
+		if (!readFrame())
+			return -1;
+		int n = Math.min(len, n_buf - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return n_buf - pos;
+	}
+
+	/** Skip to end of message (the underlying stream is left open) */
+	@Override
+	public void close() throws IOException {
+		pos = n_buf;
+		while (readFrame())
+			pos = n_buf;
+	}
+}
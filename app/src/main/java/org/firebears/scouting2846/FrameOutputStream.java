@@ -0,0 +1,116 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream to write a message as a sequence of frames.  Each frame
+ * has a header (magic, type and length), and an empty frame marks the end.
+ */
+public class FrameOutputStream extends OutputStream {
+
+	/** Magic number at the start of every frame header */
+	static public final int MAGIC = 0x2846;
+
+	/** Length of frame header (magic, type and length) */
+	static public final int HEADER_LEN = 7;
+
+	/** Maximum length of a frame payload */
+	static public final int MAX_FRAME_LEN = 8192;
+
+	/** Stream to write frames */
+	private final DataOutputStream out;
+
+	/** Message type */
+	private final int type;
+
+	/** Buffer for the current frame payload */
+	private final byte[] buf = new byte[MAX_FRAME_LEN];
+
+	/** Number of bytes in the current frame */
+	private int n_buf = 0;
+
+	/** Total number of payload bytes written */
+	private long n_total = 0;
+
+	/** Create a frame output stream */
+	public FrameOutputStream(OutputStream os, int t) {
+		out = new DataOutputStream(new BufferedOutputStream(os,
+			HEADER_LEN + MAX_FRAME_LEN));
+		type = t;
+	}
+
+	/** Get the total number of payload bytes written */
+	public long getTotal() {
+		return n_total;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (n_buf >= MAX_FRAME_LEN)
+			writeFrame();
+		buf[n_buf++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (n_buf >= MAX_FRAME_LEN)
+				writeFrame();
+			int n = Math.min(len, MAX_FRAME_LEN - n_buf);
+			System.arraycopy(b, off, buf, n_buf, n);
+			n_buf += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Write the current frame */
+	private void writeFrame() throws IOException {
+		out.writeShort(MAGIC);
+		out.writeByte(type);
+		out.writeInt(n_buf);
+		out.write(buf, 0, n_buf);
+		n_total += n_buf;
+		n_buf = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (n_buf > 0)
+			writeFrame();
+		out.flush();
+	}
+
+	/** Close the message (the underlying stream is left open) */
+	@Override
+	public void close() throws IOException {
+		if (n_buf > 0)
+			writeFrame();
+		writeFrame();	// empty frame marks end of message
+		out.flush();
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.ContentResolver;
+import android.os.AsyncTask;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Task to sync automatically with all paired devices.
+ *
+ * Peers are synced in rounds, in random order, until a round where no
+ * observations are exchanged with any peer (all watermarks agree).
+ */
+public class GossipSyncTask extends AsyncTask<Void, Void, Integer> {
+
+	static private final String TAG = "GossipSyncTask";
+
+	/** Maximum number of concurrent connections */
+	static private final int MAX_CONNECTIONS = 2;
+
+	/** Maximum number of sync rounds */
+	static private final int MAX_ROUNDS = 5;
+
+	private final EventListActivity context;
+
+	private final SyncTransport transport;
+
+	/** Addresses of peers to sync */
+	private final ArrayList<String> peers = new ArrayList<String>();
+
+	public GossipSyncTask(EventListActivity ctx, BluetoothAdapter ba) {
+		context = ctx;
+		transport = new RfcommTransport(ba);
+		if (ba != null && ba.isEnabled()) {
+			for (BluetoothDevice d : ba.getBondedDevices())
+				peers.add(d.getAddress());
+		}
+	}
+
+	@Override
+	protected Integer doInBackground(Void... v) {
+		if (!transport.isAvailable())
+			return R.string.bt_disabled;
+		if (peers.isEmpty())
+			return R.string.bt_no_devices;
+		ExecutorService pool = Executors.newFixedThreadPool(
+			MAX_CONNECTIONS);
+		try {
+			return doRounds(pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Sync in rounds until converged */
+	private int doRounds(ExecutorService pool) {
+		long start = System.currentTimeMillis();
+		int n_peers = peers.size();
+		for (int r = 1; r <= MAX_ROUNDS; r++) {
+			int n = doRound(pool);
+			long ms = System.currentTimeMillis() - start;
+			Log.d(TAG, "round " + r + ": " + n + " observations, " +
+				peers.size() + " peers, " + ms + " ms");
+			if (peers.isEmpty())
+				return R.string.sync_failed;
+			if (0 == n) {
+				Log.d(TAG, "converged: " + r + " rounds, " + ms +
+					" ms");
+				return (peers.size() == n_peers)
+				      ? R.string.sync_complete
+				      : R.string.sync_partial;
+			}
+		}
+		return R.string.sync_partial;
+	}
+
+	/** Sync with each peer once, in random order.  Peers which fail
+	 * are dropped from later rounds.  Returns number of observations
+	 * exchanged. */
+	private int doRound(ExecutorService pool) {
+		Collections.shuffle(peers);
+		ArrayList<Future<Integer>> res = new ArrayList<Future<Integer>>();
+		for (String p : peers)
+			res.add(pool.submit(createSync(p)));
+		int n = 0;
+		ArrayList<String> failed = new ArrayList<String>();
+		for (int i = 0; i < res.size(); i++) {
+			try {
+				n += res.get(i).get();
+			}
+			catch (ExecutionException e) {
+				Log.e(TAG, peers.get(i) + " exception: " +
+					e.getCause().getMessage());
+				failed.add(peers.get(i));
+			}
+			catch (InterruptedException e) {
+				failed.add(peers.get(i));
+			}
+		}
+		peers.removeAll(failed);
+		return n;
+	}
+
+	/** Create a callable to sync with one peer */
+	private Callable<Integer> createSync(final String address) {
+		final ContentResolver cr = context.getContentResolver();
+		return new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return SyncClient.syncWithPeer(cr, transport,
+					address);
+			}
+		};
+	}
+
+	@Override
+	protected void onPostExecute(Integer res) {
+		context.showSnack(res);
+	}
+}
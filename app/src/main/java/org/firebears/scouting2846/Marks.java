@@ -0,0 +1,119 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Through marks advanced by received rows, for some events (all events
+ * if empty).
+ */
+class Marks {
+
+	/** Selected events (all events if empty) */
+	private final Set<String> events;
+
+	/** Highest allowed mark of scouters with dropped rows */
+	private final HashMap<Integer, Integer> caps =
+		new HashMap<Integer, Integer>();
+
+	/** Create through marks for some events */
+	Marks(Set<String> e) {
+		events = e;
+	}
+
+	/** Lower the through marks of a scouter to a value, and hold them
+	 * there for the rest of the session */
+	synchronized void cap(ContentResolver cr, int s, int o) {
+		Integer c = caps.get(s);
+		if (null == c || o < c)
+			caps.put(s, o);
+		ContentValues cv = new ContentValues();
+		cv.put(ScouterWatermark.COL_THROUGH, o);
+		cr.update(ScouterWatermark.CONTENT_URI, cv,
+			ScouterWatermark.COL_SCOUTER + '=' + s +
+			" AND " + ScouterWatermark.COL_THROUGH + '>' +
+			o, null);
+		cv.clear();
+		cv.put(EventWatermark.COL_THROUGH, o);
+		cr.update(EventWatermark.CONTENT_URI, cv,
+			EventWatermark.COL_SCOUTER + '=' + s + " AND " +
+			EventWatermark.COL_THROUGH + '>' + o, null);
+	}
+
+	/** Check if any rows were dropped */
+	synchronized boolean isCapped() {
+		return !caps.isEmpty();
+	}
+
+	/** Get the capped through mark of a scouter */
+	private synchronized int capped(int s, int o) {
+		Integer c = caps.get(s);
+		return (c != null) ? Math.min(o, c) : o;
+	}
+
+	/** Advance through marks of scouters.  Each mark is updated
+	 * only after the rows it covers are applied, so it may lag
+	 * behind (and rows get sent again), but it never passes a
+	 * missing row. */
+	void advance(ContentResolver cr, HashMap<Integer, Integer> through) {
+		for (Integer s : through.keySet()) {
+			int o = capped(s, through.get(s));
+			if (events.isEmpty())
+				advance(cr, s, o);
+			else {
+				for (String e : events)
+					advance(cr, s, e, o);
+			}
+		}
+	}
+
+	/** Advance the through mark of a scouter */
+	private void advance(ContentResolver cr, int s, int o) {
+		ContentValues cv = new ContentValues();
+		cv.put(ScouterWatermark.COL_THROUGH, o);
+		cr.update(ScouterWatermark.CONTENT_URI, cv,
+			ScouterWatermark.COL_SCOUTER + '=' + s +
+			" AND " + ScouterWatermark.COL_THROUGH + '<' +
+			o, null);
+	}
+
+	/** Advance the through mark of a scouter for one event */
+	private void advance(ContentResolver cr, int s, String e, int o) {
+		ContentValues cv = new ContentValues();
+		cv.put(EventWatermark.COL_SCOUTER, s);
+		cv.put(EventWatermark.COL_EVENT_KEY, e);
+		cv.put(EventWatermark.COL_THROUGH, o);
+		// Ignored if the scouter already has a mark
+		cr.insert(EventWatermark.CONTENT_URI, cv);
+		cv.clear();
+		cv.put(EventWatermark.COL_THROUGH, o);
+		cr.update(EventWatermark.CONTENT_URI, cv,
+			EventWatermark.COL_SCOUTER + '=' + s + " AND " +
+			EventWatermark.COL_EVENT_KEY + "=? AND " +
+			EventWatermark.COL_THROUGH + '<' + o,
+			new String[] { e });
+	}
+}
@@ -24,164 +24,509 @@ package org.firebears.scouting2846;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Log;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 import java.util.HashMap;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
- * Helper to marshall JSON messages.
+ * Helper to marshall sync messages.
  */
 public class Marshaller {
 
 	static private final String TAG = "Marshaller";
 
-	static private String readMsg(InputStream is) throws IOException {
-		byte[] buf = new byte[1024];
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		while (true) {
-			int n = is.read(buf);
-			if (n <= 0)
-				break;
-			Log.d(TAG, "recv: " + n);
-			out.write(buf, 0, n);
-			// Check for end of message (gap of 500 ms)
-			if (!pollStream(is))
-				break;
-		}
-		if (out.size() == 0)
-			throw new IOException("Read timed out");
-		String data = inflateData(out.toByteArray());
-		Log.d(TAG, "recv uncompressed: " + data.length());
-		return data;
+	/** Message type for final observations (summary) */
+	static private final int MSG_SUMMARY = 1;
+
+	/** Message type for extra observations */
+	static private final int MSG_OBSERVATIONS = 2;
+
+	/** Message type for extra observations (binary columnar format) */
+	static private final int MSG_COLUMNS = 3;
+
+	/** Message type for a chunk of extra observations */
+	static private final int MSG_CHUNK = 4;
+
+	/** Message type for chunk acknowledgement */
+	static final int MSG_ACK = 5;
+
+	/** Message type for end of chunks */
+	static private final int MSG_DONE = 6;
+
+	/** Message type for hashes of observation ranges */
+	static private final int MSG_HASHES = 7;
+
+	/** Message type for repaired observations (binary columnar) */
+	static private final int MSG_REPAIR = 8;
+
+	/** Message type for through marks (scouter and observation pairs) */
+	static private final int MSG_THROUGH = 9;
+
+	/** Message type for a reference data bundle */
+	static private final int MSG_BUNDLE = 10;
+
+	/** Message type for attachment rows */
+	static private final int MSG_ATTACHMENTS = 11;
+
+	/** Message type for wanted blob chunks (hashes) */
+	static private final int MSG_WANT = 12;
+
+	/** Message type for a blob chunk (hash and contents) */
+	static private final int MSG_BLOB = 13;
+
+	/** Name of formats field in summary */
+	static private final String FORMATS = "formats";
+
+	/** Binary columnar format name */
+	static private final String FORMAT_BINARY = "binary";
+
+	/** JSON format name */
+	static private final String FORMAT_JSON = "json";
+
+	/** Acknowledged chunks (binary columnar) format name */
+	static private final String FORMAT_CHUNKS = "chunks";
+
+	/** Acknowledged chunks with delta rows format name */
+	static private final String FORMAT_DELTAS = "deltas";
+
+	/** Acknowledged chunks with delta rows, in priority order with
+	 * through marks, format name */
+	static private final String FORMAT_PRIORITY = "priority";
+
+	/** Hash range (merkle) repair format name.  Ranges are aligned to
+	 * range hash buckets, which "merkle" peers did not do. */
+	static private final String FORMAT_MERKLE = "merkle2";
+
+	/** Name of repair request field in summary */
+	static private final String REPAIR = "repair";
+
+	/** Name of instance ID field in summary */
+	static private final String INSTANCE = "instance";
+
+	/** Name of events field in summary.  A peer which lists events only
+	 * requests observations for them. */
+	static private final String EVENTS = "events";
+
+	/** Name of bundle versions field in summary.  A peer which lists
+	 * bundle versions exchanges newer bundles after observations. */
+	static private final String BUNDLES = "bundles";
+
+	/** Name of attachment digests field in summary.  A peer which lists
+	 * digests (one per event) exchanges attachments after observations.
+	 * Peers which sent one digest for all events used "attachments". */
+	static private final String ATTACHMENTS = "attachment_digests";
+
+	/** Name of missing chunks field in summary */
+	static private final String MISSING = "missing";
+
+	/** Name of resumed cursor token field in summary */
+	static private final String CURSOR = "cursor";
+
+	/** Name of resumed format field in summary.  A peer which resumes
+	 * from a cursor is already sending in this format. */
+	static private final String RESUME = "resume";
+
+	/** Number of sub-ranges to split a mismatched range into */
+	static private final int REPAIR_FANOUT = 16;
+
+	/** Maximum number of rows in a range to send without splitting */
+	static private final int REPAIR_LEAF_ROWS = 64;
+
+	/** Maximum number of ranges compared in one round */
+	static private final int REPAIR_MAX_RANGES = 256;
+
+	/** Maximum number of ranges to query at once */
+	static private final int REPAIR_QUERY_RANGES = 32;
+
+	/** Maximum number of unacknowledged chunks */
+	static final int CHUNK_WINDOW = 4;
+
+	/** Length of chunk header (CRC-32 and sequence number) */
+	static final int CHUNK_HEADER_LEN = 8;
+
+	/** Maximum length of a chunk message */
+	static private final int MAX_CHUNK_LEN = 1 << 20;
+
+	/** Maximum number of blob chunks wanted in one round */
+	static private final int ROUND_CHUNKS = 16;
+
+	/** Maximum number of blob chunks wanted in one session (4 MB), so
+	 * media never holds a peer for long */
+	static private final int SESSION_CHUNKS = 64;
+
+	/** Size of read buffers */
+	static private final int BUF_SZ = 4096;
+
+	/** Name of codecs field in summary */
+	static private final String CODECS = "codecs";
+
+	/** Codec for summaries, which are sent before the peer's codecs
+	 * are known (gzip, with no codec byte) */
+	static private final Codec SUMMARY_CODEC = new Codec(
+		new HashSet<String>());
+
+	/** Open an inflating stream for a message (counting raw bytes) */
+	static private MeteredInputStream openInflater(InputStream is,
+		int type, Codec codec) throws IOException
+	{
+		return new MeteredInputStream(codec.openInput(
+			new FrameInputStream(is, type)));
 	}
 
-	static private boolean pollStream(InputStream is)
-		throws IOException
+	/** Open a deflating stream for a message (counting raw bytes) */
+	static private MeteredOutputStream openDeflater(FrameOutputStream fos,
+		Codec codec) throws IOException
 	{
-		for (int i = 0; i < 5; i++) {
-			if (is.available() > 0)
-				return true;
-			try {
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e) { }
-		}
-		return false;
+		return new MeteredOutputStream(codec.openOutput(fos,
+			codec.choose(-1, 0)));
 	}
 
-	static private String inflateData(byte[] data) throws IOException {
-		ByteArrayInputStream in = new ByteArrayInputStream(data);
-		GZIPInputStream gzin = new GZIPInputStream(in);
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		byte[] buf = new byte[1024];
-		while (gzin.available() > 0) {
-			int n_bytes = gzin.read(buf);
-			if (n_bytes <= 0)
-				break;
-			out.write(buf, 0, n_bytes);
-		}
-		return out.toString("UTF-8");
+	/** Open a JSON reader */
+	static private JsonReader openReader(InputStream in)
+		throws IOException
+	{
+		return new JsonReader(new InputStreamReader(in, "UTF-8"));
 	}
 
-	static private void writeMsg(OutputStream os, String msg)
+	/** Open a JSON writer */
+	static private JsonWriter openWriter(OutputStream out)
 		throws IOException
 	{
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		GZIPOutputStream gzout = new GZIPOutputStream(out);
-		byte[] data = msg.getBytes("UTF-8");
-		Log.d(TAG, "write: " + data.length);
-		gzout.write(data);
-		gzout.close();
-		byte[] buffer = out.toByteArray();
-		Log.d(TAG, "write compressed: " + buffer.length);
-		os.write(buffer);
+		return new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
 	}
 
 	static private final String[] COLS = {
-		Scouting2017.COL_SCOUTER, Scouting2017.COL_OBSERVATION,
+		ScouterWatermark.COL_SCOUTER, ScouterWatermark.COL_OBSERVATION,
+		ScouterWatermark.COL_THROUGH,
 	};
 
-	static private String lookupFinalObservations(ContentResolver cr)
-		throws IOException, JSONException
+	/** Summary of final observations and options from one peer */
+	static private class Summary {
+		private final HashMap<Integer, Integer> map =
+			new HashMap<Integer, Integer>();
+		private final HashSet<String> formats = new HashSet<String>();
+		private final HashSet<String> codecs = new HashSet<String>();
+		private final TreeSet<String> events = new TreeSet<String>();
+		private HashMap<String, Long> bundles;
+		private HashMap<String, String> attachments;
+		private boolean missing;
+		private Integer instance;
+		private Long cursor;
+		private String resume;
+	}
+
+	/** WHERE clause to select the instance ID (our scouter ID, which is
+	 * generated with the DB) */
+	static private final String WHERE_INSTANCE = Param.COL_NAME + "='" +
+		Param.ROW_SCOUTER + "'";
+
+	/** Lookup our instance ID */
+	static int lookupInstance(ContentResolver cr)
+		throws IOException
 	{
-		Cursor c = cr.query(Scouting2017.CONTENT_URI, COLS, null, null,
-			null);
+		Cursor c = cr.query(Param.CONTENT_URI, new String[] {
+			Param.COL_VALUE }, WHERE_INSTANCE, null, null);
+		if (null == c)
+			throw new IOException("No cursor");
 		try {
-			if (c != null)
-				return lookupFinalObservations(c);
+			if (c.moveToFirst())
+				return c.getInt(0);
 			else
-				throw new IOException("No cursor");
+				throw new IOException("No instance");
 		}
 		finally {
-			if (c != null)
-				c.close();
+			c.close();
 		}
 	}
 
-	static private String lookupFinalObservations(Cursor c)
-		throws JSONException
+	/** Lookup and write our final observations for some events (all
+	 * events if empty), resuming from a sync cursor if one is given */
+	static private Summary lookupFinalObservations(ContentResolver cr,
+		boolean repair, TreeSet<String> events, SyncCursor sc,
+		BlobStore blobs, OutputStream os) throws IOException
 	{
-		HashMap<Integer, Integer> map =
+		Summary mine = new Summary();
+		mine.instance = lookupInstance(cr);
+		mine.events.addAll(events);
+		if (sc != null) {
+			mine.cursor = sc.token;
+			mine.resume = sc.format;
+		}
+		mine.map.putAll(lookupMarks(cr, mine.instance, events));
+		mine.bundles = RefBundle.lookupVersions(cr);
+		if (blobs != null) {
+			mine.attachments = Attachment.lookupDigests(cr);
+			mine.missing = !Attachment.lookupPending(cr, events)
+				.isEmpty();
+		}
+		FrameOutputStream fos = new FrameOutputStream(os, MSG_SUMMARY);
+		JsonWriter jw = openWriter(openDeflater(fos, SUMMARY_CODEC));
+		try {
+			buildArray(jw, mine, repair);
+		}
+		finally {
+			jw.close();
+		}
+		Log.d(TAG, "final observations: " + mine.map.size());
+		return mine;
+	}
+
+	/** Lookup through marks of each scouter for some events (all events
+	 * if empty) */
+	static private HashMap<Integer, Integer> lookupMarks(
+		ContentResolver cr, int inst, Set<String> events)
+		throws IOException
+	{
+		HashMap<Integer, Integer> marks =
 			new HashMap<Integer, Integer>();
-		int cs = c.getColumnIndex(Scouting2017.COL_SCOUTER);
-		int co = c.getColumnIndex(Scouting2017.COL_OBSERVATION);
+		Cursor c = cr.query(ScouterWatermark.CONTENT_URI, COLS, null,
+			null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			lookupMarks(c, inst, marks);
+		}
+		finally {
+			c.close();
+		}
+		if (!events.isEmpty())
+			raiseEventMarks(cr, inst, events, marks);
+		return marks;
+	}
+
+	/** Lookup through marks from the watermark table (one row per
+	 * scouter).  Rows above a through mark may be missing, but our own
+	 * scouter has every row up to its watermark. */
+	static private void lookupMarks(Cursor c, int inst,
+		HashMap<Integer, Integer> marks)
+	{
+		int cs = c.getColumnIndex(ScouterWatermark.COL_SCOUTER);
+		int co = c.getColumnIndex(ScouterWatermark.COL_OBSERVATION);
+		int ct = c.getColumnIndex(ScouterWatermark.COL_THROUGH);
 		while (c.moveToNext()) {
 			int s = c.getInt(cs);
-			int o = c.getInt(co);
-			Integer v = map.get(s);
-			if (null == v || v < o)
-				map.put(s, o);
+			marks.put(s, (s == inst) ? c.getInt(co) : c.getInt(ct));
 		}
-		return buildArray(map).toString();
 	}
 
-	static private JSONArray buildArray(HashMap<Integer, Integer> map)
-		throws JSONException
+	static private final String[] COLS_EVENT = {
+		EventWatermark.COL_SCOUTER, EventWatermark.COL_EVENT_KEY,
+		EventWatermark.COL_THROUGH,
+	};
+
+	/** Raise through marks by event marks.  A scouter's mark for some
+	 * events is the lowest of its marks for each one, where a mark for
+	 * all events covers every event. */
+	static private void raiseEventMarks(ContentResolver cr, int inst,
+		Set<String> events, HashMap<Integer, Integer> marks)
+		throws IOException
 	{
-		JSONArray ja = new JSONArray();
-		for (Integer s : map.keySet()) {
-			JSONObject jo = new JSONObject();
-			Integer o = map.get(s);
-			jo.put(Scouting2017.COL_SCOUTER, s);
-			jo.put(Scouting2017.COL_OBSERVATION, o);
-			ja.put(jo);
+		HashMap<Integer, HashMap<String, Integer>> em =
+			new HashMap<Integer, HashMap<String, Integer>>();
+		Cursor c = cr.query(EventWatermark.CONTENT_URI, COLS_EVENT,
+			SyncEvent.buildWhere(events), null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			while (c.moveToNext()) {
+				int s = c.getInt(0);
+				if (!em.containsKey(s)) {
+					em.put(s,
+					       new HashMap<String, Integer>());
+				}
+				em.get(s).put(c.getString(1), c.getInt(2));
+			}
+		}
+		finally {
+			c.close();
+		}
+		for (Integer s : em.keySet()) {
+			Integer o = marks.get(s);
+			if (null == o || s == inst)
+				continue;
+			int m = Integer.MAX_VALUE;
+			for (String e : events) {
+				Integer t = em.get(s).get(e);
+				int eo = (t != null) ? Math.max(o, t) : o;
+				m = Math.min(m, eo);
+			}
+			marks.put(s, m);
 		}
-		Log.d(TAG, "final observations: " + ja.length());
-		return ja;
 	}
 
-	static public String lookupExtraObservations(ContentResolver cr,
-		String msg) throws IOException, JSONException
+	/** Build summary array.  The last element lists supported formats;
+	 * peers which only know JSON skip it, since it has no scouter. */
+	static private void buildArray(JsonWriter jw, Summary mine,
+		boolean repair) throws IOException
 	{
-		HashMap<Integer, Integer> map = parseFinalObservations(msg);
-		return lookupExtraObservations(cr, map).toString();
+		jw.beginArray();
+		for (Integer s : mine.map.keySet()) {
+			Integer o = mine.map.get(s);
+			jw.beginObject();
+			jw.name(Scouting2017.COL_SCOUTER).value(s);
+			jw.name(Scouting2017.COL_OBSERVATION).value(o);
+			jw.endObject();
+		}
+		jw.beginObject();
+		jw.name(FORMATS).beginArray();
+		jw.value(FORMAT_PRIORITY);
+		jw.value(FORMAT_DELTAS);
+		jw.value(FORMAT_CHUNKS);
+		jw.value(FORMAT_BINARY);
+		jw.value(FORMAT_JSON);
+		jw.value(FORMAT_MERKLE);
+		jw.endArray();
+		jw.name(CODECS).beginArray();
+		for (String cn : Codec.getNames())
+			jw.value(cn);
+		jw.endArray();
+		if (repair)
+			jw.name(REPAIR).value(true);
+		if (mine.events.isEmpty())
+			jw.name(INSTANCE).value(mine.instance);
+		else {
+			// No instance, so the peer stores no cursor
+			jw.name(EVENTS).beginArray();
+			for (String e : mine.events)
+				jw.value(e);
+			jw.endArray();
+		}
+		if (mine.resume != null) {
+			jw.name(CURSOR).value(mine.cursor);
+			jw.name(RESUME).value(mine.resume);
+		}
+		jw.name(BUNDLES).beginObject();
+		for (String b : mine.bundles.keySet())
+			jw.name(b).value(mine.bundles.get(b));
+		jw.endObject();
+		if (mine.attachments != null) {
+			jw.name(ATTACHMENTS).beginObject();
+			for (String e : mine.attachments.keySet())
+				jw.name(e).value(mine.attachments.get(e));
+			jw.endObject();
+			jw.name(MISSING).value(mine.missing);
+		}
+		jw.endObject();
+		jw.endArray();
 	}
 
-	static private HashMap<Integer, Integer> parseFinalObservations(
-		String msg) throws JSONException
+	/** Parse final observations of a peer, with supported formats (and
+	 * REPAIR, if the peer requested repair), codecs and cursor */
+	static private Summary parseFinalObservations(InputStream is)
+		throws IOException
 	{
-		HashMap<Integer, Integer> map =
-			new HashMap<Integer, Integer>();
-		JSONArray ja = new JSONArray(msg);
-		for (int i = 0; i < ja.length(); i++) {
-			JSONObject jo = ja.getJSONObject(i);
-			int s = jo.getInt(Scouting2017.COL_SCOUTER);
-			int o = jo.getInt(Scouting2017.COL_OBSERVATION);
-			map.put(s, o);
+		JsonReader jr = openReader(openInflater(is, MSG_SUMMARY,
+			SUMMARY_CODEC));
+		try {
+			return parseFinalObservations(jr);
+		}
+		finally {
+			jr.close();
+		}
+	}
+
+	static private Summary parseFinalObservations(JsonReader jr)
+		throws IOException
+	{
+		Summary peer = new Summary();
+		jr.beginArray();
+		while (jr.hasNext()) {
+			Integer s = null;
+			Integer o = null;
+			jr.beginObject();
+			while (jr.hasNext()) {
+				String n = jr.nextName();
+				if (Scouting2017.COL_SCOUTER.equals(n))
+					s = jr.nextInt();
+				else if (Scouting2017.COL_OBSERVATION.equals(n))
+					o = jr.nextInt();
+				else if (FORMATS.equals(n))
+					parseFormats(jr, peer.formats);
+				else if (CODECS.equals(n))
+					parseFormats(jr, peer.codecs);
+				else if (EVENTS.equals(n))
+					parseFormats(jr, peer.events);
+				else if (REPAIR.equals(n)) {
+					if (jr.nextBoolean())
+						peer.formats.add(REPAIR);
+				}
+				else if (INSTANCE.equals(n))
+					peer.instance = jr.nextInt();
+				else if (CURSOR.equals(n))
+					peer.cursor = jr.nextLong();
+				else if (RESUME.equals(n))
+					peer.resume = jr.nextString();
+				else if (BUNDLES.equals(n))
+					peer.bundles = parseVersions(jr);
+				else if (ATTACHMENTS.equals(n))
+					peer.attachments = parseDigests(jr);
+				else if (MISSING.equals(n))
+					peer.missing = jr.nextBoolean();
+				else
+					jr.skipValue();
+			}
+			jr.endObject();
+			if (s != null && o != null)
+				peer.map.put(s, o);
 		}
-		return map;
+		jr.endArray();
+		return peer;
+	}
+
+	static private void parseFormats(JsonReader jr,
+		Set<String> names) throws IOException
+	{
+		jr.beginArray();
+		while (jr.hasNext())
+			names.add(jr.nextString());
+		jr.endArray();
+	}
+
+	/** Parse bundle versions, by name */
+	static private HashMap<String, Long> parseVersions(JsonReader jr)
+		throws IOException
+	{
+		HashMap<String, Long> versions = new HashMap<String, Long>();
+		jr.beginObject();
+		while (jr.hasNext())
+			versions.put(jr.nextName(), jr.nextLong());
+		jr.endObject();
+		return versions;
+	}
+
+	/** Parse attachment digests of each event */
+	static private HashMap<String, String> parseDigests(JsonReader jr)
+		throws IOException
+	{
+		HashMap<String, String> digests = new HashMap<String, String>();
+		jr.beginObject();
+		while (jr.hasNext())
+			digests.put(jr.nextName(), jr.nextString());
+		jr.endObject();
+		return digests;
 	}
 
-	static private final String[] COLS_ALL = {
+	static final String[] COLS_ALL = {
 		Scouting2017.COL_SCOUTER, Scouting2017.COL_OBSERVATION,
 		Scouting2017.COL_MATCH, Scouting2017.COL_TEAM_KEY,
 		Scouting2017.COL_AUTO_HIGH_GOAL,Scouting2017.COL_AUTO_LOW_GOAL,
@@ -192,43 +537,325 @@ public class Marshaller {
 		Scouting2017.COL_BALL_FLOOR, Scouting2017.COL_BALL_HOPPER,
 		Scouting2017.COL_PILOT_EFFECTIVE,Scouting2017.COL_RELEASE_ROPE,
 		Scouting2017.COL_LOSE_GEAR, Scouting2017.COL_NOTES,
+		Scouting2017.COL_EVENT_KEY,
 	};
 
-	static private JSONArray lookupExtraObservations(ContentResolver cr,
-		HashMap<Integer, Integer> map) throws IOException,
-		JSONException
+	/** Observation columns compared by repair.  Event tags are left
+	 * out; rows tagged before tags were sent may differ between peers,
+	 * and repair could never make them equal. */
+	static private final String[] COLS_HASH = Arrays.copyOf(COLS_ALL,
+		COLS_ALL.length - 1);
+
+	/** All observation columns, plus base and mask of edits */
+	static final String[] COLS_DELTA = buildDeltaCols();
+
+	/** Build array of delta columns */
+	static private String[] buildDeltaCols() {
+		String[] cols = new String[COLS_ALL.length + 2];
+		System.arraycopy(COLS_ALL, 0, cols, 0, COLS_ALL.length);
+		cols[COLS_ALL.length] = ScoutingEdit.COL_BASE;
+		cols[COLS_ALL.length + 1] = ScoutingEdit.COL_MASK;
+		return cols;
+	}
+
+	static int lookupExtraObservations(ContentResolver cr,
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map,
+		String scope, String format, OutputStream os, ChunkWindow w,
+		Codec codec, SyncStats st) throws IOException
 	{
-		Cursor c = cr.query(Scouting2017.CONTENT_URI, COLS_ALL, null,
-			null, null);
+		if (isChunked(format)) {
+			return lookupChunkedObservations(cr, mine, map, scope,
+				hasDeltas(format),
+				FORMAT_PRIORITY.equals(format), w, codec, st);
+		}
+		Cursor c = queryExtraObservations(cr, mine, map, scope);
 		try {
-			if (c != null)
-				return lookupExtraObservations(c, map);
+			if (FORMAT_BINARY.equals(format))
+				return lookupBinaryObservations(c, os,
+					MSG_COLUMNS, codec, st);
 			else
-				throw new IOException("No cursor");
+				return lookupExtraObservations(c, os, codec,
+					st);
 		}
 		finally {
-			if (c != null)
-				c.close();
+			c.close();
 		}
 	}
 
-	static private JSONArray lookupExtraObservations(Cursor c,
-		HashMap<Integer, Integer> map) throws JSONException
+	/** Sort order for extra observations (matches index) */
+	static final String ORDER_OBS = Scouting2017.COL_SCOUTER +
+		"," + Scouting2017.COL_OBSERVATION;
+
+	/** Sort order for extra observations in priority order (newest
+	 * first for each scouter) */
+	static final String ORDER_NEWEST = Scouting2017.COL_SCOUTER +
+		"," + Scouting2017.COL_OBSERVATION + " DESC";
+
+	/** Query extra observations, ordered by (scouter, observation).
+	 * A receiver which applies only part of the rows still has every
+	 * observation up to its through mark, so the next sync resumes
+	 * there. */
+	static private Cursor queryExtraObservations(ContentResolver cr,
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map,
+		String scope) throws IOException
 	{
-		JSONArray ja = new JSONArray();
-		int cs = c.getColumnIndex(Scouting2017.COL_SCOUTER);
-		int co = c.getColumnIndex(Scouting2017.COL_OBSERVATION);
-		while (c.moveToNext()) {
-			int s = c.getInt(cs);
-			int o = c.getInt(co);
-			Integer v = map.get(s);
-			if (null == v || v < o) {
-				JSONObject jo = buildObservation(c);
-				ja.put(jo);
+		return queryObservations(cr, buildExtraWhere(mine, map, scope,
+			true));
+	}
+
+	/** Query observations matching a list of WHERE clauses, in order */
+	static private Cursor queryObservations(ContentResolver cr,
+		List<String> where) throws IOException
+	{
+		Cursor[] cs = new Cursor[where.size()];
+		try {
+			for (int i = 0; i < cs.length; i++) {
+				cs[i] = cr.query(Scouting2017.CONTENT_URI,
+					COLS_ALL, where.get(i), null,
+					ORDER_OBS);
+				if (null == cs[i])
+					throw new IOException("No cursor");
+			}
+		}
+		catch (IOException e) {
+			for (Cursor c : cs) {
+				if (c != null)
+					c.close();
+			}
+			throw e;
+		}
+		return new MergeCursor(cs);
+	}
+
+	/** Write observations in binary columnar format */
+	static private int lookupBinaryObservations(Cursor c, OutputStream os,
+		int type, Codec codec, SyncStats st) throws IOException
+	{
+		int n_obs = 0;
+		FrameOutputStream fos = new FrameOutputStream(os, type);
+		MeteredOutputStream raw = openDeflater(fos, codec);
+		ColumnarWriter cw = new ColumnarWriter(raw);
+		try {
+			while (c.moveToNext()) {
+				cw.add(c);
+				n_obs++;
+			}
+		}
+		finally {
+			cw.close();
+		}
+		st.sent(n_obs, raw.getBytes());
+		Log.d(TAG, "sending " + n_obs + " observations (binary)");
+		Log.d(TAG, "write compressed: " + fos.getTotal());
+		return n_obs;
+	}
+
+	/** Build WHERE clauses selecting observations missing from a peer,
+	 * one for each scouter in our watermarks, in scouter order.  Every
+	 * clause is a range on the (scouter, observation) index, so each
+	 * query is an index search which returns rows in index order without
+	 * sorting.  If the peer applies rows in order, rows above our own
+	 * through marks are held back, so the peer's marks never pass a row
+	 * we are missing.  A scope (for event-scoped sync) limits every
+	 * clause. */
+	static private ArrayList<String> buildExtraWhere(
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map,
+		String scope, boolean ordered)
+	{
+		ArrayList<String> where = new ArrayList<String>();
+		TreeMap<Integer, Integer> sorted =
+			new TreeMap<Integer, Integer>(mine);
+		for (Integer s : sorted.keySet()) {
+			Integer p = map.get(s);
+			int o = sorted.get(s);
+			if (!ordered) {
+				where.add(andWhere(buildScouterWhere(s, p),
+					scope));
+			} else if (null == p || p < o)
+				where.add(andWhere(buildRangeWhere(s, p, o),
+					scope));
+		}
+		return where;
+	}
+
+	/** Build WHERE clause selecting observations of one scouter above
+	 * the peer's through mark */
+	static String buildScouterWhere(int s, Integer p) {
+		String w = Scouting2017.COL_SCOUTER + '=' + s;
+		return (p != null)
+		      ? w + " AND " + Scouting2017.COL_OBSERVATION + '>' + p
+		      : w;
+	}
+
+	/** Build WHERE clause selecting observations of one scouter in a
+	 * range (lo, hi], where either bound may be null */
+	static String buildRangeWhere(int s, Integer lo, Integer hi) {
+		String w = buildScouterWhere(s, lo);
+		return (hi != null)
+		      ? w + " AND " + Scouting2017.COL_OBSERVATION + "<=" + hi
+		      : w;
+	}
+
+	/** Write extra observations in acknowledged chunks.  A page reader
+	 * thread reads and encodes pages of rows, while this thread
+	 * compresses and writes them, so DB reads overlap transmission.
+	 * Each chunk is compressed after encoding, so the codec can be
+	 * chosen from its size and the throughput measured from acks so
+	 * far.  Segments from the segment cache (if any) are already
+	 * encoded, so they are written as-is.  In priority order, through
+	 * marks follow the rows they cover. */
+	static private int lookupChunkedObservations(ContentResolver cr,
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map,
+		String scope, boolean deltas, boolean priority, ChunkWindow w,
+		Codec codec, SyncStats st) throws IOException
+	{
+		int n_deltas = 0;
+		int n_obs = 0;
+		int n_chunks = 0;
+		int n_marks = 0;
+		int n_cached = 0;
+		long n_bytes = 0;
+		long n_stalls = 0;
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		PageReader pr = new PageReader(cr, mine, map, scope, deltas,
+			priority, SegmentCache.getInstance(), codec);
+		pr.start();
+		try {
+			while (true) {
+				PageReader.Page p = pr.poll();
+				if (null == p) {
+					n_stalls++;
+					p = pr.take();
+				}
+				if (PageReader.END == p)
+					break;
+				if (p.through != null) {
+					writeThrough(w, p.through);
+					n_marks += p.through.size();
+					continue;
+				}
+				byte[] b = p.chunk;
+				if (b != null)
+					n_cached++;
+				else {
+					bo.reset();
+					bo.write(new byte[CHUNK_HEADER_LEN]);
+					codec.encode(p.raw, 0, p.raw_len,
+						codec.choose(p.raw_len,
+						w.getRate()), bo);
+					b = bo.toByteArray();
+				}
+				writeChunk(w, b);
+				st.sent(p.n_rows, p.raw_len);
+				n_obs += p.n_rows;
+				n_deltas += p.n_deltas;
+				n_chunks++;
+				n_bytes += b.length;
+			}
+		}
+		finally {
+			pr.finish();
+		}
+		w.finish();
+		w.writeMessage(MSG_DONE, new byte[0], 0);
+		Log.d(TAG, "sending " + n_obs + " observations in " + n_chunks +
+			" chunks (" + n_cached + " segments), " + n_deltas +
+			" deltas (" + codec.getUsage() +
+			"), " + n_marks + " through marks, " + n_stalls +
+			" reader stalls");
+		Log.d(TAG, "write compressed: " + n_bytes);
+		return n_obs;
+	}
+
+	/** Write through marks for rows already written */
+	static private void writeThrough(ChunkWindow w,
+		HashMap<Integer, Integer> through) throws IOException
+	{
+		byte[] b = new byte[through.size() * 8];
+		int off = 0;
+		for (Integer s : through.keySet()) {
+			putInt(b, off, s);
+			putInt(b, off + 4, through.get(s));
+			off += 8;
+		}
+		w.writeMessage(MSG_THROUGH, b, b.length);
+	}
+
+	/** Parse through marks from a peer */
+	static private HashMap<Integer, Integer> parseThrough(byte[] b)
+		throws IOException
+	{
+		if (b.length % 8 != 0)
+			throw new IOException("Bad through length: " +
+				b.length);
+		HashMap<Integer, Integer> through =
+			new HashMap<Integer, Integer>();
+		for (int off = 0; off < b.length; off += 8)
+			through.put(getInt(b, off), getInt(b, off + 4));
+		return through;
+	}
+
+	/** Combine two WHERE clauses (either may be null) */
+	static String andWhere(String a, String b) {
+		if (null == a)
+			return b;
+		else if (null == b)
+			return a;
+		else
+			return a + " AND (" + b + ')';
+	}
+
+
+	/** Write one chunk, after waiting for room in the window */
+	static private void writeChunk(ChunkWindow w, byte[] b)
+		throws IOException
+	{
+		putInt(b, 4, w.waitSend(b.length));
+		CRC32 crc = new CRC32();
+		crc.update(b, 4, b.length - 4);
+		putInt(b, 0, (int) crc.getValue());
+		w.writeMessage(MSG_CHUNK, b, b.length);
+	}
+
+	/** Put a big-endian int into a buffer */
+	static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	/** Get a big-endian int from a buffer */
+	static private int getInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) |
+		       ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	/** Write extra observations, streaming rows from the cursor
+	 * straight to the socket */
+	static private int lookupExtraObservations(Cursor c, OutputStream os,
+		Codec codec, SyncStats st) throws IOException
+	{
+		int n_obs = 0;
+		FrameOutputStream fos = new FrameOutputStream(os,
+			MSG_OBSERVATIONS);
+		MeteredOutputStream raw = openDeflater(fos, codec);
+		JsonWriter jw = openWriter(raw);
+		try {
+			jw.beginArray();
+			while (c.moveToNext()) {
+				buildObservation(jw, c);
+				n_obs++;
 			}
+			jw.endArray();
 		}
-		Log.d(TAG, "sending " + ja.length() + " observations");
-		return ja;
+		finally {
+			jw.close();
+		}
+		st.sent(n_obs, raw.getBytes());
+		Log.d(TAG, "sending " + n_obs + " observations");
+		Log.d(TAG, "write compressed: " + fos.getTotal());
+		return n_obs;
 	}
 
 	static private final String[] COLS_INT = {
@@ -245,54 +872,949 @@ public class Marshaller {
 
 	static private final String[] COLS_STR = {
 		Scouting2017.COL_MATCH, Scouting2017.COL_TEAM_KEY,
-		Scouting2017.COL_NOTES,
+		Scouting2017.COL_NOTES, Scouting2017.COL_EVENT_KEY,
 	};
 
-	static private JSONObject buildObservation(Cursor c)
-		throws JSONException
+	static private void buildObservation(JsonWriter jw, Cursor c)
+		throws IOException
 	{
-		JSONObject jo = new JSONObject();
+		jw.beginObject();
 		for (String i : COLS_INT) {
 			int v = c.getInt(c.getColumnIndex(i));
-			jo.put(i, v);
+			jw.name(i).value(v);
 		}
 		for (String i : COLS_STR) {
 			String v = c.getString(c.getColumnIndex(i));
-			jo.put(i, v);
+			jw.name(i).value(v);
+		}
+		jw.endObject();
+	}
+
+	/** Number of observations to insert in one transaction */
+	static private final int BATCH_SIZE = 256;
+
+	/** Read extra observations, inserting batches of rows as they are
+	 * inflated */
+	static private int parseExtraObservations(ContentResolver cr,
+		InputStream is, Marks marks, Codec codec, SyncStats st)
+		throws IOException
+	{
+		int n_obs = 0;
+		long start = System.currentTimeMillis();
+		ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+		MeteredInputStream raw = openInflater(is, MSG_OBSERVATIONS,
+			codec);
+		JsonReader jr = openReader(raw);
+		try {
+			jr.beginArray();
+			while (jr.hasNext()) {
+				batch.add(Scouting2017.parse(jr));
+				if (batch.size() >= BATCH_SIZE)
+					n_obs += insertBatch(cr, batch, marks,
+						st);
+			}
+			jr.endArray();
+			n_obs += insertBatch(cr, batch, marks, st);
+		}
+		finally {
+			jr.close();
+		}
+		st.received(n_obs, raw.getBytes());
+		long ms = Math.max(1, System.currentTimeMillis() - start);
+		Log.d(TAG, "received " + n_obs + " observations in " + ms +
+			" ms (" + (n_obs * 1000L / ms) + " rows/s)");
+		return n_obs;
+	}
+
+	/** Read observations in binary columnar format.  Extra observations
+	 * are in order, but repaired observations are not (no marks). */
+	static private int parseBinaryObservations(ContentResolver cr,
+		InputStream is, int type, Marks marks, Codec codec,
+		SyncStats st) throws IOException
+	{
+		int n_obs = 0;
+		long start = System.currentTimeMillis();
+		ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+		MeteredInputStream raw = openInflater(is, type, codec);
+		ColumnarReader cr_in = new ColumnarReader(raw);
+		try {
+			while (cr_in.readBatch(batch) > 0) {
+				n_obs += insertBatch(cr, batch, marks,
+					st);
+			}
+		}
+		finally {
+			cr_in.close();
 		}
-		return jo;
+		st.received(n_obs, raw.getBytes());
+		long ms = Math.max(1, System.currentTimeMillis() - start);
+		Log.d(TAG, "received " + n_obs + " observations in " + ms +
+			" ms (" + (n_obs * 1000L / ms) + " rows/s, binary)");
+		return n_obs;
 	}
 
-	static public void parseExtraObservations(ContentResolver cr,
-		String obs) throws JSONException
+	/** Read chunks of extra observations from a peer.  Each chunk is
+	 * decoded on this thread, then applied and acknowledged by a chunk
+	 * applier thread, so DB writes overlap transfer.  Acks for chunks we
+	 * sent are passed to the window.  Reading continues until the peer
+	 * is done and all our chunks are acknowledged. */
+	static private int parseChunks(ContentResolver cr, SyncConnection c,
+		InputStream is, String format, Marks marks, ChunkWindow w,
+		Codec codec, SyncStats st) throws IOException
 	{
-		JSONArray ja = new JSONArray(obs);
-		for (int i = 0; i < ja.length(); i++) {
-			JSONObject jo = ja.getJSONObject(i);
-			ContentValues cv = Scouting2017.parse(jo);
-			cr.insert(Scouting2017.CONTENT_URI, cv);
+		int n_chunks = 0;
+		boolean done = false;
+		boolean deltas = hasDeltas(format);
+		long start = System.currentTimeMillis();
+		ChunkApplier ca = new ChunkApplier(cr, c, deltas,
+			FORMAT_PRIORITY.equals(format), marks, w, st);
+		ca.start();
+		try {
+			while (!done || w.waitOutstanding()) {
+				FrameInputStream fis = new FrameInputStream(is);
+				int type = fis.getType();
+				byte[] b = readMessage(fis);
+				if (MSG_CHUNK == type) {
+					ca.put(new ChunkApplier.Decoded(
+						decodeChunk(b, n_chunks, deltas,
+						codec, st), null));
+					n_chunks++;
+				} else if (MSG_THROUGH == type)
+					ca.put(new ChunkApplier.Decoded(null,
+						parseThrough(b)));
+				else if (MSG_ACK == type && b.length == 4)
+					w.ack(getInt(b, 0));
+				else if (MSG_DONE == type)
+					done = true;
+				else {
+					throw new IOException(
+						"Unexpected message: " + type);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw ca.abort(e);
+		}
+		ca.finish();
+		int n_obs = ca.getApplied();
+		long ms = Math.max(1, System.currentTimeMillis() - start);
+		Log.d(TAG, "received " + n_obs + " observations in " +
+			n_chunks + " chunks, " + ca.getTransactions() +
+			" transactions, " + ms + " ms (" +
+			(n_obs * 1000L / ms) + " rows/s)");
+		return n_obs;
+	}
+
+	/** Read one complete message */
+	static private byte[] readMessage(FrameInputStream fis)
+		throws IOException
+	{
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] buf = new byte[BUF_SZ];
+		try {
+			int n;
+			while ((n = fis.read(buf, 0, buf.length)) >= 0) {
+				if (bo.size() + n > MAX_CHUNK_LEN)
+					throw new IOException(
+						"Message too long");
+				bo.write(buf, 0, n);
+			}
+		}
+		finally {
+			fis.close();
+		}
+		return bo.toByteArray();
+	}
+
+	/** Check and decode one chunk */
+	static private ArrayList<ContentValues> decodeChunk(byte[] b, int seq,
+		boolean deltas, Codec codec, SyncStats st) throws IOException
+	{
+		if (b.length < CHUNK_HEADER_LEN)
+			throw new IOException("Bad chunk length: " + b.length);
+		CRC32 crc = new CRC32();
+		crc.update(b, 4, b.length - 4);
+		if (getInt(b, 0) != (int) crc.getValue())
+			throw new IOException("Bad chunk checksum");
+		if (getInt(b, 4) != seq)
+			throw new IOException("Bad chunk sequence: " +
+				getInt(b, 4));
+		MeteredInputStream raw = new MeteredInputStream(
+			codec.openInput(new ByteArrayInputStream(b,
+			CHUNK_HEADER_LEN, b.length - CHUNK_HEADER_LEN)));
+		ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+		ColumnarReader cr_in = new ColumnarReader(raw, deltas);
+		try {
+			while (cr_in.readBatch(batch) > 0)
+				continue;
+		}
+		finally {
+			cr_in.close();
+		}
+		st.received(batch.size(), raw.getBytes());
+		return batch;
+	}
+
+	/** Fill in unchanged columns of delta rows from their base
+	 * observations.  A row with a missing base is dropped, and the
+	 * scouter's through mark is held below the base, so the next
+	 * session sends the row again (in full). */
+	static void resolveDeltas(ContentResolver cr,
+		ArrayList<ContentValues> batch, Marks marks) throws IOException
+	{
+		Iterator<ContentValues> it = batch.iterator();
+		while (it.hasNext()) {
+			ContentValues cv = it.next();
+			Integer b = cv.getAsInteger(ScoutingEdit.COL_BASE);
+			if (null == b)
+				continue;
+			cv.remove(ScoutingEdit.COL_BASE);
+			if (!lookupBase(cr, cv, b)) {
+				int s = cv.getAsInteger(
+					Scouting2017.COL_SCOUTER);
+				Log.d(TAG, "missing base: " + s + ":" + b);
+				if (marks != null)
+					marks.cap(cr, s, b - 1);
+				it.remove();
+			}
+		}
+	}
+
+	/** Lookup base observation of a delta row, filling in its unchanged
+	 * columns (returns false if base is missing) */
+	static private boolean lookupBase(ContentResolver cr, ContentValues cv,
+		int b) throws IOException
+	{
+		String where = Scouting2017.COL_SCOUTER + '=' +
+			cv.getAsInteger(Scouting2017.COL_SCOUTER) + " AND " +
+			Scouting2017.COL_OBSERVATION + '=' + b;
+		Cursor c = cr.query(Scouting2017.CONTENT_URI, COLS_ALL, where,
+			null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			if (!c.moveToFirst())
+				return false;
+			for (String col : COLS_ALL) {
+				if (!cv.containsKey(col)) {
+					int ci = c.getColumnIndexOrThrow(col);
+					int t = c.getType(ci);
+					if (Cursor.FIELD_TYPE_STRING == t)
+						cv.put(col, c.getString(ci));
+					else if (Cursor.FIELD_TYPE_NULL == t)
+						cv.putNull(col);
+					else
+						cv.put(col, c.getInt(ci));
+				}
+			}
+			return true;
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Insert a batch of observations in one transaction.  If rows
+	 * are received in (scouter, observation) order, the through marks
+	 * are advanced past them after the transaction. */
+	static int insertBatch(ContentResolver cr,
+		ArrayList<ContentValues> batch, Marks marks, SyncStats st)
+	{
+		int n = batch.size();
+		if (n > 0) {
+			HashMap<Integer, Integer> through = (marks != null)
+			      ? buildThrough(batch)
+			      : null;
+			long start = System.nanoTime();
+			cr.bulkInsert(Scouting2017.CONTENT_URI,
+				batch.toArray(new ContentValues[n]));
+			if (through != null)
+				marks.advance(cr, through);
+			st.addApplyNanos(System.nanoTime() - start);
+			batch.clear();
+		}
+		return n;
+	}
+
+	/** Build through marks for a batch of ordered rows (the last
+	 * observation of each scouter) */
+	static private HashMap<Integer, Integer> buildThrough(
+		ArrayList<ContentValues> batch)
+	{
+		HashMap<Integer, Integer> through =
+			new HashMap<Integer, Integer>();
+		for (ContentValues cv : batch) {
+			through.put(cv.getAsInteger(Scouting2017.COL_SCOUTER),
+				cv.getAsInteger(Scouting2017.COL_OBSERVATION));
+		}
+		return through;
+	}
+
+	/** Sync observations with a peer (returns number exchanged).
+	 *
+	 * Both peers run the same exchange at the same time: each sends its
+	 * final observations, then streams the observations the other side
+	 * is missing while receiving from the other side over the full
+	 * duplex connection.  This takes about one round trip plus transfer
+	 * time. */
+	static public int syncObservations(ContentResolver cr,
+		SyncConnection c, SyncStats st) throws IOException
+	{
+		return syncObservations(cr, c, false, st);
+	}
+
+	/** Sync observations with a peer, optionally requesting a repair
+	 * pass to find rows which differ below the watermarks (returns
+	 * number exchanged) */
+	static public int syncObservations(ContentResolver cr,
+		SyncConnection c, boolean repair, SyncStats st)
+		throws IOException
+	{
+		MeteredInputStream is = new MeteredInputStream(
+			c.getInputStream());
+		MeteredOutputStream os = new MeteredOutputStream(
+			c.getOutputStream());
+		try {
+			return syncObservations(cr, c, is, os, repair, st);
+		}
+		finally {
+			st.setWire(os, is);
+		}
+	}
+
+	static private int syncObservations(ContentResolver cr,
+		SyncConnection c, InputStream is, OutputStream os,
+		boolean repair, SyncStats st) throws IOException
+	{
+		TreeSet<String> events = SyncEvent.lookup(cr);
+		// Cursors cover all events, so they are not used when scoped.
+		// The address finds a cursor before the peer's instance is
+		// known; one for another instance fails the token check.
+		SyncCursor sc = events.isEmpty()
+		              ? SyncCursor.lookup(cr, c.getPeer())
+		              : null;
+		BlobStore blobs = BlobStore.getInstance();
+		Summary mine = lookupFinalObservations(cr, repair, events, sc,
+			blobs, os);
+		ChunkWindow w = new ChunkWindow(os, CHUNK_WINDOW);
+		Codec codec = null;
+		String format = null;
+		Sender sender = null;
+		if (sc != null) {
+			// Start sending from the cursor right away
+			codec = new Codec(sc.codecs);
+			format = sc.format;
+			sender = new ExtraSender(cr, mine.map, sc.watermarks,
+				null, format, c, os, w, codec, st);
+			sender.start();
+		}
+		Summary peer;
+		try {
+			peer = parseFinalObservations(is);
+		}
+		catch (IOException e) {
+			if (sender != null)
+				abortSender(sender, w, c);
+			throw e;
+		}
+		st.summaryDone();
+		if (null == sender) {
+			codec = new Codec(peer.codecs);
+			format = chooseFormat(peer.formats);
+			// Marks for the events the peer selected
+			HashMap<Integer, Integer> marks =
+				peer.events.equals(mine.events)
+			      ? mine.map
+			      : lookupMarks(cr, mine.instance, peer.events);
+			sender = new ExtraSender(cr, marks, peer.map,
+				SyncEvent.buildWhere(peer.events), format, c,
+				os, w, codec, st);
+			sender.start();
+		}
+		String recv_format = (peer.resume != null)
+		                   ? peer.resume
+		                   : chooseFormat(peer.formats);
+		boolean resumed = (sc != null) || (peer.resume != null);
+		boolean valid = isCursorValid(sc, peer);
+		if (!valid)
+			Log.d(TAG, "sync cursor out of step, repairing");
+		boolean scoped = !(mine.events.isEmpty() &&
+			peer.events.isEmpty());
+		// Merkle ranges cover all events, so scoped sessions skip them
+		boolean merkle = (repair || !valid ||
+			peer.formats.contains(REPAIR)) &&
+			peer.formats.contains(FORMAT_MERKLE) && !scoped;
+		if (repair && !merkle)
+			Log.d(TAG, "repair not supported by peer");
+		st.setFormat(format + (resumed ? "+" + CURSOR : "") +
+			(scoped ? "+" + EVENTS : "") +
+			(merkle ? "+" + FORMAT_MERKLE : ""));
+		Marks marks = valid ? new Marks(mine.events) : null;
+		long start = System.currentTimeMillis();
+		int n_recv;
+		try {
+			if (isChunked(recv_format)) {
+				n_recv = parseChunks(cr, c, is, recv_format,
+					marks, w, codec, st);
+			}
+			else if (FORMAT_BINARY.equals(recv_format))
+				n_recv = parseBinaryObservations(cr, is,
+					MSG_COLUMNS, marks, codec, st);
+			else
+				n_recv = parseExtraObservations(cr, is, marks,
+					codec, st);
+		}
+		catch (IOException e) {
+			abortSender(sender, w, c);
+			throw e;
+		}
+		st.setRecvMillis(System.currentTimeMillis() - start);
+		int n_sent = sender.finish();
+		Log.d(TAG, "sync done: " + n_sent + " sent, " + n_recv +
+			" received");
+		int n = n_sent + n_recv;
+		if (merkle)
+			n += repairObservations(cr, c, is, os, mine.map,
+				peer.map, codec, st);
+		if (peer.bundles != null)
+			n += syncBundles(cr, c, is, os, mine, peer, codec);
+		// A cursor would pass rows dropped for a missing base
+		boolean capped = (marks != null) && marks.isCapped();
+		if (peer.instance != null) {
+			if (!scoped && !capped) {
+				SyncCursor.create(mine.instance, mine.map,
+					peer.instance, peer.map,
+					chooseFormat(peer.formats),
+					peer.codecs).store(cr, c.getPeer());
+			} else
+				SyncCursor.delete(cr, peer.instance);
+		}
+		// Last, so a cut during media loses no rows or cursor
+		if (mine.attachments != null && peer.attachments != null)
+			n += syncAttachments(cr, c, is, os, mine, peer, blobs,
+				codec);
+		return n;
+	}
+
+	/** Exchange reference data bundles newer than the peer's (returns
+	 * number exchanged).  Each side sends bundles for the events the
+	 * other selected (all if none).  Both choose the same bundles from
+	 * the two summaries, so each knows how many to read. */
+	static private int syncBundles(ContentResolver cr, SyncConnection c,
+		InputStream is, OutputStream os, Summary mine, Summary peer,
+		Codec codec) throws IOException
+	{
+		ArrayList<String> send = RefBundle.chooseNewer(mine.bundles,
+			peer.bundles, peer.events);
+		ArrayList<String> recv = RefBundle.chooseNewer(peer.bundles,
+			mine.bundles, mine.events);
+		if (send.isEmpty() && recv.isEmpty())
+			return 0;
+		Sender sender = new BundleSender(cr, send, mine.bundles, c,
+			os, codec);
+		sender.start();
+		int n_rows = 0;
+		try {
+			for (int i = 0; i < recv.size(); i++)
+				n_rows += parseBundle(cr, is, codec);
+		}
+		catch (IOException e) {
+			abortSender(sender, null, c);
+			throw e;
+		}
+		int n_sent = sender.finish();
+		Log.d(TAG, "bundles done: " + n_sent + " sent, " +
+			recv.size() + " received (" + n_rows + " rows)");
+		return n_sent + recv.size();
+	}
+
+	/** Write reference data bundles (returns number sent) */
+	static int lookupBundles(ContentResolver cr,
+		ArrayList<String> names, HashMap<String, Long> versions,
+		OutputStream os, Codec codec) throws IOException
+	{
+		for (String b : names) {
+			FrameOutputStream fos = new FrameOutputStream(os,
+				MSG_BUNDLE);
+			JsonWriter jw = openWriter(openDeflater(fos, codec));
+			try {
+				RefBundle.write(cr, b, versions.get(b), jw);
+			}
+			finally {
+				jw.close();
+			}
+			Log.d(TAG, "bundle " + b + ": " + fos.getTotal() +
+				" bytes");
+		}
+		return names.size();
+	}
+
+	/** Read one reference data bundle (returns number of rows) */
+	static private int parseBundle(ContentResolver cr, InputStream is,
+		Codec codec) throws IOException
+	{
+		JsonReader jr = openReader(openInflater(is, MSG_BUNDLE,
+			codec));
+		try {
+			return RefBundle.apply(cr, jr);
+		}
+		finally {
+			jr.close();
+		}
+	}
+
+	/** Exchange attachments with a peer (returns number of new rows
+	 * plus chunks exchanged).
+	 *
+	 * Attachment rows are sent only if the digests of the events the
+	 * receiver selected differ.  Then in rounds, each side sends hashes
+	 * of chunks it wants (newest attachments first) and sends the chunks
+	 * the other wants, at low priority.  Each side stops wanting after
+	 * a session limit, leaving the rest for later syncs.  Both stop
+	 * after a round where neither wants anything. */
+	static private int syncAttachments(ContentResolver cr,
+		SyncConnection c, InputStream is, OutputStream os,
+		Summary mine, Summary peer, BlobStore blobs, Codec codec)
+		throws IOException
+	{
+		// Both sides make the same choices from the two summaries
+		boolean send = Attachment.needsRows(mine.attachments,
+			peer.attachments, peer.events);
+		boolean recv = Attachment.needsRows(peer.attachments,
+			mine.attachments, mine.events);
+		int n_new = 0;
+		if (send || recv) {
+			n_new = exchangeAttachments(cr, c, is, os, peer, send,
+				recv, codec);
+		} else if (!mine.missing && !peer.missing)
+			return 0;
+		HashSet<String> tried = new HashSet<String>();
+		int n_sent = 0;
+		int n_recv = 0;
+		while (true) {
+			int max = Math.min(ROUND_CHUNKS, SESSION_CHUNKS -
+				tried.size());
+			ArrayList<String> want = chooseWanted(cr, blobs,
+				mine.events, tried, max);
+			writeWant(os, want);
+			ArrayList<String> wanted = BlobStore.parseManifest(
+				readMessage(new FrameInputStream(is,
+				MSG_WANT)));
+			if (want.isEmpty() && wanted.isEmpty())
+				break;
+			Sender sender = new BlobSender(blobs, wanted, c, os);
+			sender.start();
+			try {
+				n_recv += parseBlobs(blobs, is);
+			}
+			catch (IOException e) {
+				abortSender(sender, null, c);
+				throw e;
+			}
+			n_sent += sender.finish();
+			Attachment.updateStored(cr, blobs, mine.events);
+		}
+		Log.d(TAG, "attachment chunks: " + n_sent + " sent, " + n_recv +
+			" received; " + blobs.getUsage());
+		return n_new + n_sent + n_recv;
+	}
+
+	/** Exchange attachment rows, in the directions where the digests
+	 * differ (returns number of new rows) */
+	static private int exchangeAttachments(ContentResolver cr,
+		SyncConnection c, InputStream is, OutputStream os,
+		Summary peer, boolean send, boolean recv, Codec codec)
+		throws IOException
+	{
+		Sender sender = null;
+		if (send) {
+			sender = new AttachmentSender(cr, peer.events, c, os,
+				codec);
+			sender.start();
+		}
+		int n_new = 0;
+		try {
+			if (recv)
+				n_new = parseAttachments(cr, is, codec);
+		}
+		catch (IOException e) {
+			if (sender != null)
+				abortSender(sender, null, c);
+			throw e;
+		}
+		int n_sent = (sender != null) ? sender.finish() : 0;
+		Log.d(TAG, "attachments: " + n_sent + " sent, " + n_new +
+			" new");
+		return n_new;
+	}
+
+	/** Write attachment rows for some events (returns number sent) */
+	static int lookupAttachments(ContentResolver cr,
+		Set<String> events, OutputStream os, Codec codec)
+		throws IOException
+	{
+		FrameOutputStream fos = new FrameOutputStream(os,
+			MSG_ATTACHMENTS);
+		JsonWriter jw = openWriter(openDeflater(fos, codec));
+		try {
+			return Attachment.write(cr, events, jw);
+		}
+		finally {
+			jw.close();
+		}
+	}
+
+	/** Read attachment rows (returns number of new rows) */
+	static private int parseAttachments(ContentResolver cr,
+		InputStream is, Codec codec) throws IOException
+	{
+		JsonReader jr = openReader(openInflater(is, MSG_ATTACHMENTS,
+			codec));
+		try {
+			return Attachment.apply(cr, jr);
+		}
+		finally {
+			jr.close();
+		}
+	}
+
+	/** Choose chunks to want from a peer, skipping chunks already
+	 * tried in this session */
+	static private ArrayList<String> chooseWanted(ContentResolver cr,
+		BlobStore blobs, Set<String> events, HashSet<String> tried,
+		int max) throws IOException
+	{
+		ArrayList<String> want = new ArrayList<String>();
+		if (max <= 0)
+			return want;
+		for (String h : Attachment.lookupPending(cr, events)) {
+			for (String ch : blobs.lookupMissing(h)) {
+				if (tried.add(ch))
+					want.add(ch);
+				if (want.size() >= max)
+					return want;
+			}
+		}
+		return want;
+	}
+
+	/** Write hashes of wanted chunks */
+	static private void writeWant(OutputStream os,
+		ArrayList<String> want) throws IOException
+	{
+		byte[] b = new byte[want.size() * BlobStore.HASH_LEN];
+		for (int i = 0; i < want.size(); i++)
+			BlobStore.putHash(b, i * BlobStore.HASH_LEN,
+				want.get(i));
+		FrameOutputStream fos = new FrameOutputStream(os, MSG_WANT);
+		try {
+			fos.write(b, 0, b.length);
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	/** Write wanted chunks which are in the store (returns number
+	 * sent) */
+	static int lookupBlobs(BlobStore blobs,
+		ArrayList<String> hashes, OutputStream os) throws IOException
+	{
+		int n = 0;
+		byte[] hb = new byte[BlobStore.HASH_LEN];
+		for (String h : hashes) {
+			byte[] b = blobs.read(h);
+			if (null == b)
+				continue;
+			BlobStore.putHash(hb, 0, h);
+			FrameOutputStream fos = new FrameOutputStream(os,
+				MSG_BLOB);
+			try {
+				fos.write(hb, 0, hb.length);
+				fos.write(b, 0, b.length);
+			}
+			finally {
+				fos.close();
+			}
+			n++;
+		}
+		new FrameOutputStream(os, MSG_DONE).close();
+		return n;
+	}
+
+	/** Read chunks until done, storing them (returns number stored) */
+	static private int parseBlobs(BlobStore blobs, InputStream is)
+		throws IOException
+	{
+		int n = 0;
+		while (true) {
+			FrameInputStream fis = new FrameInputStream(is);
+			int type = fis.getType();
+			byte[] b = readMessage(fis);
+			if (MSG_DONE == type)
+				return n;
+			else if (MSG_BLOB == type &&
+			         b.length >= BlobStore.HASH_LEN)
+			{
+				String h = BlobStore.toHex(b, 0,
+					BlobStore.HASH_LEN);
+				if (blobs.store(h, b, BlobStore.HASH_LEN,
+				    b.length - BlobStore.HASH_LEN))
+					n++;
+				else
+					Log.e(TAG, "bad chunk: " + h);
+			} else
+				throw new IOException("Unexpected message: " +
+					type);
+		}
+	}
+
+	/** Check if a resumed session is valid.  It is valid only if both
+	 * peers resumed with the same token, which shows both stored their
+	 * cursors from the same session.  Both peers get the same result,
+	 * so both agree to repair rows which could be missed when sending
+	 * from a cursor which is out of step. */
+	static private boolean isCursorValid(SyncCursor sc, Summary peer) {
+		if (null == sc && null == peer.resume)
+			return true;
+		else if (null == sc || null == peer.cursor)
+			return false;
+		else
+			return sc.token == peer.cursor;
+	}
+
+	/** Abort a sender after a receive error */
+	static private void abortSender(Sender sender, ChunkWindow w,
+		SyncConnection c) throws IOException
+	{
+		// Closing the connection unblocks the sender
+		if (w != null)
+			w.abort();
+		c.close();
+		try {
+			sender.finish();
+		}
+		catch (IOException e) {
+			Log.e(TAG, "sender exception: " + e.getMessage());
+		}
+	}
+
+	/** Check if a format uses acknowledged chunks */
+	static private boolean isChunked(String format) {
+		return hasDeltas(format) || FORMAT_CHUNKS.equals(format);
+	}
+
+	/** Check if a format has delta rows */
+	static private boolean hasDeltas(String format) {
+		return FORMAT_PRIORITY.equals(format) ||
+		       FORMAT_DELTAS.equals(format);
+	}
+
+	/** Choose the format for extra observations.  Both sides use the
+	 * best format the peer supports, since every peer supports JSON. */
+	static private String chooseFormat(HashSet<String> formats) {
+		if (formats.contains(FORMAT_PRIORITY))
+			return FORMAT_PRIORITY;
+		else if (formats.contains(FORMAT_DELTAS))
+			return FORMAT_DELTAS;
+		else if (formats.contains(FORMAT_CHUNKS))
+			return FORMAT_CHUNKS;
+		else if (formats.contains(FORMAT_BINARY))
+			return FORMAT_BINARY;
+		else
+			return FORMAT_JSON;
+	}
+
+	/** Repair observations which differ below the watermarks (returns
+	 * number exchanged).
+	 *
+	 * Both peers cover each scouter's observations with one range, then
+	 * in rounds exchange hashes of their current ranges.  Matching
+	 * ranges are dropped; mismatched ranges are split on bucket
+	 * boundaries, until they are small enough to send outright.  Both
+	 * sides make the same choices from the same hashes, so no ranges
+	 * need to be sent.  Conflicting
+	 * rows resolve to the newest observation on both sides. */
+	static private int repairObservations(ContentResolver cr,
+		SyncConnection c, InputStream is, OutputStream os,
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map,
+		Codec codec, SyncStats st) throws IOException
+	{
+		RowHashes rh = RowHashes.load(cr, COLS_HASH);
+		ArrayList<RowHashes.Range> ranges = rootRanges(mine, map);
+		ArrayList<RowHashes.Range> leaves =
+			new ArrayList<RowHashes.Range>();
+		int n_rounds = 0;
+		while (!ranges.isEmpty()) {
+			long[] hashes = new long[ranges.size()];
+			int[] counts = new int[ranges.size()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = rh.getHash(ranges.get(i));
+				counts[i] = rh.getCount(ranges.get(i));
+			}
+			writeHashes(os, hashes, counts);
+			ranges = splitRanges(ranges, hashes, counts,
+				readMessage(new FrameInputStream(is,
+				MSG_HASHES)), leaves);
+			n_rounds++;
+		}
+		Log.d(TAG, "repair: " + leaves.size() +
+			" ranges differ after " + n_rounds + " rounds");
+		if (leaves.isEmpty())
+			return 0;
+		Sender sender = new RepairSender(cr, leaves, c, os, codec,
+			st);
+		sender.start();
+		int n_recv;
+		try {
+			n_recv = parseBinaryObservations(cr, is, MSG_REPAIR,
+				null, codec, st);
+		}
+		catch (IOException e) {
+			abortSender(sender, null, c);
+			throw e;
+		}
+		int n_sent = sender.finish();
+		Log.d(TAG, "repair done: " + n_sent + " sent, " + n_recv +
+			" received");
+		return n_sent + n_recv;
+	}
+
+	/** Make one range for each scouter known to either peer */
+	static private ArrayList<RowHashes.Range> rootRanges(
+		HashMap<Integer, Integer> mine, HashMap<Integer, Integer> map)
+	{
+		TreeMap<Integer, Integer> sorted =
+			new TreeMap<Integer, Integer>(mine);
+		for (Integer s : map.keySet()) {
+			Integer o = sorted.get(s);
+			if (null == o || o < map.get(s))
+				sorted.put(s, map.get(s));
+		}
+		ArrayList<RowHashes.Range> ranges =
+			new ArrayList<RowHashes.Range>();
+		for (Integer s : sorted.keySet()) {
+			ranges.add(new RowHashes.Range(s, 0,
+				RowHashes.alignUp(sorted.get(s) + 1L)));
+		}
+		return ranges;
+	}
+
+	/** Write hashes and row counts of ranges */
+	static private void writeHashes(OutputStream os, long[] hashes,
+		int[] counts) throws IOException
+	{
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bo);
+		dos.writeInt(hashes.length);
+		for (int i = 0; i < hashes.length; i++) {
+			dos.writeLong(hashes[i]);
+			dos.writeInt(counts[i]);
 		}
-		Log.d(TAG, "received " + ja.length() + " observations");
+		dos.flush();
+		FrameOutputStream fos = new FrameOutputStream(os, MSG_HASHES);
+		bo.writeTo(fos);
+		fos.close();
 	}
 
-	static public void sendObservations(ContentResolver cr, InputStream is,
-		OutputStream os) throws IOException, JSONException
+	/** Compare range hashes with a peer, adding small mismatched
+	 * ranges to leaves (returns ranges for the next round) */
+	static private ArrayList<RowHashes.Range> splitRanges(
+		ArrayList<RowHashes.Range> ranges, long[] hashes, int[] counts,
+		byte[] b, ArrayList<RowHashes.Range> leaves) throws IOException
 	{
-		Log.d(TAG, "sending...");
-		String msg = readMsg(is);
-		String obs = lookupExtraObservations(cr, msg);
-		writeMsg(os, obs);
-		Log.d(TAG, "send done");
+		DataInputStream dis = new DataInputStream(
+			new ByteArrayInputStream(b));
+		if (b.length != 4 + ranges.size() * 12 ||
+		    dis.readInt() != ranges.size())
+			throw new IOException("Bad hashes length: " + b.length);
+		ArrayList<RowHashes.Range> next =
+			new ArrayList<RowHashes.Range>();
+		for (int i = 0; i < hashes.length; i++) {
+			RowHashes.Range r = ranges.get(i);
+			long h = dis.readLong();
+			int n = Math.max(counts[i], dis.readInt());
+			if (h == hashes[i] && n == counts[i])
+				continue;
+			long width = r.hi - r.lo;
+			if (n <= REPAIR_LEAF_ROWS ||
+			    width <= RangeHash.BUCKET_OBS ||
+			    next.size() + REPAIR_FANOUT > REPAIR_MAX_RANGES)
+			{
+				leaves.add(r);
+				continue;
+			}
+			long step = RowHashes.alignUp((width + REPAIR_FANOUT -
+				1) / REPAIR_FANOUT);
+			for (long lo = r.lo; lo < r.hi; lo += step) {
+				next.add(new RowHashes.Range(r.scouter, lo,
+					Math.min(r.hi, lo + step)));
+			}
+		}
+		return next;
 	}
 
-	static public void recvObservations(ContentResolver cr, InputStream is,
-		OutputStream os) throws IOException, JSONException
+	/** Write observations in mismatched ranges */
+	static int lookupRepairObservations(ContentResolver cr,
+		ArrayList<RowHashes.Range> leaves, OutputStream os,
+		Codec codec, SyncStats st) throws IOException
 	{
-		String msg = lookupFinalObservations(cr);
-		Log.d(TAG, "receiving...");
-		writeMsg(os, msg);
-		String obs = readMsg(is);
-		parseExtraObservations(cr, obs);
-		Log.d(TAG, "receive done");
+		int n_obs = 0;
+		FrameOutputStream fos = new FrameOutputStream(os, MSG_REPAIR);
+		MeteredOutputStream raw = openDeflater(fos, codec);
+		ColumnarWriter cw = new ColumnarWriter(raw);
+		try {
+			for (int i = 0; i < leaves.size();
+			     i += REPAIR_QUERY_RANGES)
+			{
+				int end = Math.min(leaves.size(),
+					i + REPAIR_QUERY_RANGES);
+				n_obs += lookupRanges(cr, leaves.subList(i,
+					end), cw);
+			}
+		}
+		finally {
+			cw.close();
+		}
+		st.sent(n_obs, raw.getBytes());
+		Log.d(TAG, "sending " + n_obs + " observations (repair)");
+		Log.d(TAG, "write compressed: " + fos.getTotal());
+		return n_obs;
+	}
+
+	/** Write observations in a list of ranges */
+	static private int lookupRanges(ContentResolver cr,
+		List<RowHashes.Range> ranges, ColumnarWriter cw)
+		throws IOException
+	{
+		ArrayList<String> where = new ArrayList<String>();
+		for (RowHashes.Range r : ranges) {
+			where.add(Scouting2017.COL_SCOUTER + '=' + r.scouter +
+				" AND " + Scouting2017.COL_OBSERVATION + ">=" +
+				r.lo + " AND " + Scouting2017.COL_OBSERVATION +
+				'<' + r.hi);
+		}
+		int n_obs = 0;
+		Cursor c = queryObservations(cr, where);
+		try {
+			while (c.moveToNext()) {
+				cw.add(c);
+				n_obs++;
+			}
+		}
+		finally {
+			c.close();
+		}
+		return n_obs;
+	}
+
+	/** Close a connection, ignoring errors */
+	static void closeQuietly(SyncConnection c) {
+		try {
+			c.close();
+		}
+		catch (IOException e) {
+			Log.e(TAG, "close exception: " + e.getMessage());
+		}
 	}
 }
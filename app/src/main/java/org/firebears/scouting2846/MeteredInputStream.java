@@ -0,0 +1,85 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which counts bytes read and time spent reading.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+	/** Number of bytes read */
+	private long n_bytes = 0;
+
+	/** Nanoseconds spent reading */
+	private long n_nanos = 0;
+
+	/** Create a metered input stream */
+	public MeteredInputStream(InputStream is) {
+		super(is);
+	}
+
+	/** Get the number of bytes read */
+	public long getBytes() {
+		return n_bytes;
+	}
+
+	/** Get the time spent reading (ms) */
+	public long getMillis() {
+		return n_nanos / 1000000;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int b = in.read();
+		n_nanos += System.nanoTime() - start;
+		if (b >= 0)
+			n_bytes++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int n = in.read(b, off, len);
+		n_nanos += System.nanoTime() - start;
+		if (n > 0)
+			n_bytes += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long s = in.skip(n);
+		n_bytes += s;
+		return s;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream which counts bytes written and time spent writing.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+	/** Number of bytes written */
+	private long n_bytes = 0;
+
+	/** Nanoseconds spent writing */
+	private long n_nanos = 0;
+
+	/** Create a metered output stream */
+	public MeteredOutputStream(OutputStream os) {
+		super(os);
+	}
+
+	/** Get the number of bytes written */
+	public long getBytes() {
+		return n_bytes;
+	}
+
+	/** Get the time spent writing (ms) */
+	public long getMillis() {
+		return n_nanos / 1000000;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		long start = System.nanoTime();
+		out.write(b);
+		n_nanos += System.nanoTime() - start;
+		n_bytes++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		n_nanos += System.nanoTime() - start;
+		n_bytes += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		n_nanos += System.nanoTime() - start;
+	}
+}
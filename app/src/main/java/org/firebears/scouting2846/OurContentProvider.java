@@ -22,18 +22,28 @@
 package org.firebears.scouting2846;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Set;
 
 /**
  * Content provider for DB stuff.
  */
 public class OurContentProvider extends ContentProvider {
 
+	static private final String TAG = "OurContentProvider";
+
 	/** Base content URI */
 	static private final String BASE_URI =
 		"content://org.firebears.scouting2846/";
@@ -46,6 +56,9 @@ public class OurContentProvider extends ContentProvider {
 	/** Our DB helper */
 	private OurDbHelper dbHelper;
 
+	/** Lock to serialize writes (sync sessions run concurrently) */
+	private final Object write_lock = new Object();
+
 	@Override
 	public boolean onCreate() {
 		dbHelper = new OurDbHelper(getContext());
@@ -73,8 +86,32 @@ public class OurContentProvider extends ContentProvider {
 				return Team.TABLE_NAME;
 		} else if (suri.startsWith(Match.CONTENT_URI.toString()))
 			return Match.TABLE_NAME;
+		else if (suri.startsWith(ScoutingEdit.DELTA_URI.toString()))
+			return ScoutingEdit.VIEW_NAME;
+		else if (suri.startsWith(ScoutingEdit.CONTENT_URI.toString()))
+			return ScoutingEdit.TABLE_NAME;
 		else if (suri.startsWith(Scouting2017.CONTENT_URI.toString()))
 			return Scouting2017.TABLE_NAME;
+		else if (suri.startsWith(ScouterWatermark.CONTENT_URI
+			.toString()))
+			return ScouterWatermark.TABLE_NAME;
+		else if (suri.startsWith(SyncLog.CONTENT_URI.toString()))
+			return SyncLog.TABLE_NAME;
+		else if (suri.startsWith(SyncPeer.CONTENT_URI.toString()))
+			return SyncPeer.TABLE_NAME;
+		else if (suri.startsWith(SyncCursor.CONTENT_URI.toString()))
+			return SyncCursor.TABLE_NAME;
+		else if (suri.startsWith(SyncEvent.CONTENT_URI.toString()))
+			return SyncEvent.TABLE_NAME;
+		else if (suri.startsWith(EventWatermark.CONTENT_URI
+			.toString()))
+			return EventWatermark.TABLE_NAME;
+		else if (suri.startsWith(RefBundle.CONTENT_URI.toString()))
+			return RefBundle.TABLE_NAME;
+		else if (suri.startsWith(Attachment.CONTENT_URI.toString()))
+			return Attachment.TABLE_NAME;
+		else if (suri.startsWith(RangeHash.CONTENT_URI.toString()))
+			return RangeHash.TABLE_NAME;
 		else
 			return null;
 	}
@@ -99,12 +136,153 @@ public class OurContentProvider extends ContentProvider {
 		String tn = getTableName(uri, null);
 		if (tn != null) {
 			SQLiteDatabase db = dbHelper.getWritableDatabase();
-			long _id = db.insert(tn, null, cv);
+			long _id;
+			synchronized (write_lock) {
+				_id = db.insert(tn, null, cv);
+			}
 			return ContentUris.withAppendedId(uri, _id);
 		} else
 			return null;
 	}
 
+	/** Insert a batch of rows in one transaction */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		String tn = getTableName(uri, null);
+		if (null == tn || 0 == values.length)
+			return 0;
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		synchronized (write_lock) {
+			db.beginTransaction();
+			try {
+				int n = bulkInsert(db, tn, values);
+				db.setTransactionSuccessful();
+				return n;
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/** Insert a batch of rows, reusing a compiled statement.  Rows which
+	 * are rejected (by a constraint or an ignoring trigger) are skipped
+	 * without failing the batch. */
+	private int bulkInsert(SQLiteDatabase db, String tn,
+		ContentValues[] values)
+	{
+		int n = 0;
+		Set<String> keys = values[0].keySet();
+		String[] cols = keys.toArray(new String[0]);
+		SQLiteStatement stmt = db.compileStatement(
+			buildInsert(tn, cols));
+		try {
+			for (ContentValues cv : values) {
+				if (keys.equals(cv.keySet()))
+					n += executeInsert(tn, stmt, cols, cv);
+				else
+					n += insertOne(db, tn, cv);
+			}
+		}
+		finally {
+			stmt.close();
+		}
+		return n;
+	}
+
+	/** Insert one row with a different set of columns (returns number
+	 * of rows inserted) */
+	static private int insertOne(SQLiteDatabase db, String tn,
+		ContentValues cv)
+	{
+		String[] cols = cv.keySet().toArray(new String[0]);
+		SQLiteStatement stmt = db.compileStatement(
+			buildInsert(tn, cols));
+		try {
+			return executeInsert(tn, stmt, cols, cv);
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+	/** Build an insert statement for a set of columns */
+	static private String buildInsert(String tn, String[] cols) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO ");
+		sb.append(tn);
+		sb.append(" (");
+		for (int i = 0; i < cols.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(cols[i]);
+		}
+		sb.append(") VALUES (");
+		for (int i = 0; i < cols.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append('?');
+		}
+		sb.append(')');
+		return sb.toString();
+	}
+
+	/** Bind values to a compiled insert statement and execute it
+	 * (returns number of rows inserted).  The changed row count is used
+	 * instead of the row ID, which is stale when a trigger ignores the
+	 * row. */
+	static private int executeInsert(String tn, SQLiteStatement stmt,
+		String[] cols, ContentValues cv)
+	{
+		stmt.clearBindings();
+		for (int i = 0; i < cols.length; i++)
+			bindValue(stmt, i + 1, cv.get(cols[i]));
+		try {
+			return stmt.executeUpdateDelete();
+		}
+		catch (SQLiteConstraintException e) {
+			Log.e(TAG, tn + " insert rejected: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/** Bind one value to a compiled statement */
+	static private void bindValue(SQLiteStatement stmt, int i, Object v) {
+		if (null == v)
+			stmt.bindNull(i);
+		else if (v instanceof Integer || v instanceof Long)
+			stmt.bindLong(i, ((Number) v).longValue());
+		else if (v instanceof Boolean)
+			stmt.bindLong(i, ((Boolean) v) ? 1 : 0);
+		else if (v instanceof Float || v instanceof Double)
+			stmt.bindDouble(i, ((Number) v).doubleValue());
+		else if (v instanceof byte[])
+			stmt.bindBlob(i, (byte[]) v);
+		else
+			stmt.bindString(i, v.toString());
+	}
+
+	/** Apply a batch of operations in one transaction */
+	@Override
+	public ContentProviderResult[] applyBatch(
+		ArrayList<ContentProviderOperation> ops)
+		throws OperationApplicationException
+	{
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		synchronized (write_lock) {
+			db.beginTransaction();
+			try {
+				ContentProviderResult[] res =
+					super.applyBatch(ops);
+				db.setTransactionSuccessful();
+				return res;
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+	}
+
 	@Override
 	public int update(Uri uri, ContentValues cv, String selection,
 		String[] selectionArgs)
@@ -112,13 +290,23 @@ public class OurContentProvider extends ContentProvider {
 		String tn = getTableName(uri, null);
 		if (tn != null) {
 			SQLiteDatabase db = dbHelper.getWritableDatabase();
-			return db.update(tn, cv, selection, selectionArgs);
+			synchronized (write_lock) {
+				return db.update(tn, cv, selection,
+					selectionArgs);
+			}
 		} else
 			return 0;
 	}
 
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		return 0;
+		String tn = getTableName(uri, null);
+		if (tn != null) {
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			synchronized (write_lock) {
+				return db.delete(tn, selection, selectionArgs);
+			}
+		} else
+			return 0;
 	}
 }
@@ -30,7 +30,7 @@ import java.security.SecureRandom;
  * Our DB helper.
  */
 public class OurDbHelper extends SQLiteOpenHelper {
-	static public final int DATABASE_VERSION = 1;
+	static public final int DATABASE_VERSION = 14;
 	static public final String DATABASE_NAME = "Scouting.db";
 
 	/** SQL statement to create parameter table */
@@ -181,15 +181,466 @@ public class OurDbHelper extends SQLiteOpenHelper {
 		Scouting2017.COL_RELEASE_ROPE + " INTEGER NOT NULL, " +
 		Scouting2017.COL_LOSE_GEAR + " INTEGER NOT NULL, " +
 		Scouting2017.COL_NOTES + " TEXT NOT NULL, " +
+		Scouting2017.COL_EVENT_KEY + " TEXT, " +
 		"UNIQUE (" + Scouting2017.COL_SCOUTER + ", " +
 		             Scouting2017.COL_MATCH + ", " +
 		             Scouting2017.COL_TEAM_KEY +
 		        ") ON CONFLICT REPLACE)";
 
+	/** SQL statement to create scouting (scouter, observation) index */
+	static private final String SQL_CREATE_SCOUTING_IDX =
+		"CREATE INDEX " + Scouting2017.INDEX_OBSERVATION + " ON " +
+		Scouting2017.TABLE_NAME + " (" +
+		Scouting2017.COL_SCOUTER + ", " +
+		Scouting2017.COL_OBSERVATION + ")";
+
+	/** SQL statement to create scouting (event, scouter, observation)
+	 * index */
+	static private final String SQL_CREATE_SCOUTING_EVENT_IDX =
+		"CREATE INDEX " + Scouting2017.INDEX_EVENT + " ON " +
+		Scouting2017.TABLE_NAME + " (" +
+		Scouting2017.COL_EVENT_KEY + ", " +
+		Scouting2017.COL_SCOUTER + ", " +
+		Scouting2017.COL_OBSERVATION + ")";
+
+	/** SQL statement to add event column to scouting table */
+	static private final String SQL_ADD_SCOUTING_EVENT =
+		"ALTER TABLE " + Scouting2017.TABLE_NAME + " ADD COLUMN " +
+		Scouting2017.COL_EVENT_KEY + " TEXT";
+
+	/** Characters in event keys */
+	static private final String EVENT_CHARS =
+		"0123456789abcdefghijklmnopqrstuvwxyz";
+
+	/** SQL expression for the current event (with the match nearest to
+	 * now) */
+	static private final String SQL_CURRENT_EVENT =
+		"(SELECT " + Match.COL_EVENT_KEY + " FROM " + Match.TABLE_NAME +
+		" WHERE " + Match.COL_TIME + " > 0 ORDER BY ABS(" +
+		Match.COL_TIME + " - strftime('%s','now')) LIMIT 1)";
+
+	/** Build SQL expression for the event of a match key.  Match keys
+	 * start with the event key and '_'; pit rows get the current event.
+	 * Older devices have no instr(), so ltrim() finds the '_'. */
+	static private String buildEventOf(String mk) {
+		String rest = "ltrim(" + mk + ", '" + EVENT_CHARS + "')";
+		return "CASE WHEN substr(" + rest + ", 1, 1) = '_' THEN " +
+			"substr(" + mk + ", 1, length(" + mk + ") - length(" +
+			rest + ")) ELSE " + SQL_CURRENT_EVENT + " END";
+	}
+
+	/** SQL statement to fill event column of scouting table */
+	static private final String SQL_FILL_SCOUTING_EVENT =
+		"UPDATE " + Scouting2017.TABLE_NAME + " SET " +
+		Scouting2017.COL_EVENT_KEY + " = " +
+		buildEventOf(Scouting2017.COL_MATCH);
+
+	/** SQL statement to create trigger to tag new observations with
+	 * their event */
+	static private final String SQL_CREATE_EVENT_TRIGGER =
+		"CREATE TRIGGER " + Scouting2017.TRIGGER_EVENT +
+		" AFTER INSERT ON " + Scouting2017.TABLE_NAME + " WHEN NEW." +
+		Scouting2017.COL_EVENT_KEY + " IS NULL BEGIN " +
+		"UPDATE " + Scouting2017.TABLE_NAME + " SET " +
+		Scouting2017.COL_EVENT_KEY + " = " +
+		buildEventOf("NEW." + Scouting2017.COL_MATCH) + " WHERE " +
+		Scouting2017.COL_ID + " = NEW." + Scouting2017.COL_ID +
+		"; END";
+
+	/** SQL condition matching the same scouter, match and team as a new
+	 * observation.  Match can be NULL, so it is compared with IS; the
+	 * other columns are NOT NULL and use = so the index still applies. */
+	static private final String SQL_SAME_KEY =
+		Scouting2017.COL_SCOUTER + " = NEW." +
+		Scouting2017.COL_SCOUTER + " AND " +
+		Scouting2017.COL_MATCH + " IS NEW." +
+		Scouting2017.COL_MATCH + " AND " +
+		Scouting2017.COL_TEAM_KEY + " = NEW." +
+		Scouting2017.COL_TEAM_KEY;
+
+	/** SQL condition matching newer (or equal) versions of a new
+	 * observation */
+	static private final String SQL_NEWER_VERSION =
+		"EXISTS (SELECT 1 FROM " + Scouting2017.TABLE_NAME +
+		" WHERE " + SQL_SAME_KEY + " AND " +
+		Scouting2017.COL_OBSERVATION + " >= NEW." +
+		Scouting2017.COL_OBSERVATION + ")";
+
+	/** SQL statement to create trigger which keeps the newest
+	 * observation of a scouter for a match/team */
+	static private final String SQL_CREATE_NEWEST_TRIGGER =
+		"CREATE TRIGGER " + Scouting2017.TRIGGER_NEWEST +
+		" BEFORE INSERT ON " + Scouting2017.TABLE_NAME +
+		" WHEN " + SQL_NEWER_VERSION + " BEGIN " +
+		"SELECT RAISE(IGNORE); END";
+
 	/** SQL statement to drop scouting table */
 	static private final String SQL_DROP_SCOUTING =
 		"DROP TABLE IF EXISTS " + Scouting2017.TABLE_NAME;
 
+	/** SQL statement to create scouter watermark table */
+	static private final String SQL_CREATE_WATERMARKS =
+		"CREATE TABLE " + ScouterWatermark.TABLE_NAME + " (" +
+		ScouterWatermark.COL_ID +
+			" INTEGER PRIMARY KEY autoincrement, " +
+		ScouterWatermark.COL_SCOUTER + " INTEGER UNIQUE NOT NULL, " +
+		ScouterWatermark.COL_OBSERVATION + " INTEGER NOT NULL, " +
+		ScouterWatermark.COL_THROUGH + " INTEGER NOT NULL DEFAULT 0)";
+
+	/** SQL statement to fill scouter watermark table */
+	static private final String SQL_FILL_WATERMARKS =
+		"INSERT INTO " + ScouterWatermark.TABLE_NAME + " (" +
+		ScouterWatermark.COL_SCOUTER + ", " +
+		ScouterWatermark.COL_OBSERVATION + ", " +
+		ScouterWatermark.COL_THROUGH + ") SELECT " +
+		Scouting2017.COL_SCOUTER + ", MAX(" +
+		Scouting2017.COL_OBSERVATION + "), MAX(" +
+		Scouting2017.COL_OBSERVATION + ") FROM " +
+		Scouting2017.TABLE_NAME + " GROUP BY " +
+		Scouting2017.COL_SCOUTER;
+
+	/** SQL statement to create trigger to update watermarks on insert */
+	static private final String SQL_CREATE_WATERMARK_TRIGGER =
+		"CREATE TRIGGER " + ScouterWatermark.TRIGGER_NAME +
+		" AFTER INSERT ON " + Scouting2017.TABLE_NAME + " BEGIN " +
+		"INSERT OR IGNORE INTO " + ScouterWatermark.TABLE_NAME + " (" +
+		ScouterWatermark.COL_SCOUTER + ", " +
+		ScouterWatermark.COL_OBSERVATION + ") VALUES (NEW." +
+		Scouting2017.COL_SCOUTER + ", NEW." +
+		Scouting2017.COL_OBSERVATION + "); " +
+		"UPDATE " + ScouterWatermark.TABLE_NAME + " SET " +
+		ScouterWatermark.COL_OBSERVATION + " = NEW." +
+		Scouting2017.COL_OBSERVATION + " WHERE " +
+		ScouterWatermark.COL_SCOUTER + " = NEW." +
+		Scouting2017.COL_SCOUTER + " AND " +
+		ScouterWatermark.COL_OBSERVATION + " < NEW." +
+		Scouting2017.COL_OBSERVATION + "; END";
+
+	/** SQL statement to add through column to scouter watermarks */
+	static private final String SQL_ADD_WATERMARK_THROUGH =
+		"ALTER TABLE " + ScouterWatermark.TABLE_NAME + " ADD COLUMN " +
+		ScouterWatermark.COL_THROUGH + " INTEGER NOT NULL DEFAULT 0";
+
+	/** SQL statement to fill through column of scouter watermarks.
+	 * Rows were always received in order before it was added. */
+	static private final String SQL_FILL_WATERMARK_THROUGH =
+		"UPDATE " + ScouterWatermark.TABLE_NAME + " SET " +
+		ScouterWatermark.COL_THROUGH + " = " +
+		ScouterWatermark.COL_OBSERVATION;
+
+	/** SQL statement to create scouter event watermark table */
+	static private final String SQL_CREATE_EVENT_WATERMARKS =
+		"CREATE TABLE " + EventWatermark.TABLE_NAME + " (" +
+		EventWatermark.COL_ID +
+			" INTEGER PRIMARY KEY autoincrement, " +
+		EventWatermark.COL_SCOUTER + " INTEGER NOT NULL, " +
+		EventWatermark.COL_EVENT_KEY + " TEXT NOT NULL, " +
+		EventWatermark.COL_THROUGH + " INTEGER NOT NULL, " +
+		"UNIQUE (" + EventWatermark.COL_SCOUTER + ", " +
+		             EventWatermark.COL_EVENT_KEY +
+		        ") ON CONFLICT IGNORE)";
+
+	/** SQL statement to drop scouter event watermark table */
+	static private final String SQL_DROP_EVENT_WATERMARKS =
+		"DROP TABLE IF EXISTS " + EventWatermark.TABLE_NAME;
+
+	/** SQL statement to create sync event table */
+	static private final String SQL_CREATE_SYNC_EVENTS =
+		"CREATE TABLE " + SyncEvent.TABLE_NAME + " (" +
+		SyncEvent.COL_ID + " INTEGER PRIMARY KEY autoincrement, "+
+		SyncEvent.COL_EVENT_KEY + " TEXT NOT NULL UNIQUE " +
+			"ON CONFLICT IGNORE)";
+
+	/** SQL statement to drop sync event table */
+	static private final String SQL_DROP_SYNC_EVENTS =
+		"DROP TABLE IF EXISTS " + SyncEvent.TABLE_NAME;
+
+	/** SQL statement to create reference bundle table */
+	static private final String SQL_CREATE_REF_BUNDLES =
+		"CREATE TABLE " + RefBundle.TABLE_NAME + " (" +
+		RefBundle.COL_ID + " INTEGER PRIMARY KEY autoincrement, " +
+		RefBundle.COL_EVENT_KEY + " TEXT NOT NULL, " +
+		RefBundle.COL_KIND + " TEXT NOT NULL, " +
+		RefBundle.COL_VERSION + " INTEGER NOT NULL, " +
+		"UNIQUE (" + RefBundle.COL_EVENT_KEY + ", " +
+		             RefBundle.COL_KIND + ") ON CONFLICT REPLACE)";
+
+	/** SQL statement to fill reference bundle table with teams fetched
+	 * before bundles had versions (version 1, older than any fetch) */
+	static private final String SQL_FILL_REF_TEAMS =
+		"INSERT INTO " + RefBundle.TABLE_NAME + " (" +
+		RefBundle.COL_EVENT_KEY + ", " + RefBundle.COL_KIND + ", " +
+		RefBundle.COL_VERSION + ") SELECT DISTINCT " +
+		FRCEvent.COL_KEY + ", '" + RefBundle.KIND_TEAMS + "', 1 FROM " +
+		FRCEvent.TABLE_NAME + " JOIN " + EventTeam.TABLE_NAME +
+		" ON " + FRCEvent.TABLE_NAME + "." + FRCEvent.COL_ID + " = " +
+		EventTeam.TABLE_NAME + "." + EventTeam.COL_EVENT;
+
+	/** SQL statement to fill reference bundle table with matches
+	 * fetched before bundles had versions */
+	static private final String SQL_FILL_REF_MATCHES =
+		"INSERT INTO " + RefBundle.TABLE_NAME + " (" +
+		RefBundle.COL_EVENT_KEY + ", " + RefBundle.COL_KIND + ", " +
+		RefBundle.COL_VERSION + ") SELECT DISTINCT " +
+		Match.COL_EVENT_KEY + ", '" + RefBundle.KIND_MATCHES +
+		"', 1 FROM " + Match.TABLE_NAME;
+
+	/** SQL statement to drop reference bundle table */
+	static private final String SQL_DROP_REF_BUNDLES =
+		"DROP TABLE IF EXISTS " + RefBundle.TABLE_NAME;
+
+	/** SQL statement to create attachment table */
+	static private final String SQL_CREATE_ATTACHMENTS =
+		"CREATE TABLE " + Attachment.TABLE_NAME + " (" +
+		Attachment.COL_ID + " INTEGER PRIMARY KEY autoincrement, " +
+		Attachment.COL_SCOUTER + " INTEGER NOT NULL, " +
+		Attachment.COL_OBSERVATION + " INTEGER NOT NULL, " +
+		Attachment.COL_EVENT_KEY + " TEXT, " +
+		Attachment.COL_TEAM_KEY + " TEXT, " +
+		Attachment.COL_KIND + " TEXT NOT NULL, " +
+		Attachment.COL_MIME + " TEXT, " +
+		Attachment.COL_HASH + " TEXT NOT NULL, " +
+		Attachment.COL_SIZE + " INTEGER NOT NULL, " +
+		Attachment.COL_STORED + " INTEGER NOT NULL DEFAULT 0, " +
+		"UNIQUE (" + Attachment.COL_SCOUTER + ", " +
+		             Attachment.COL_OBSERVATION + ", " +
+		             Attachment.COL_HASH + ") ON CONFLICT IGNORE)";
+
+	/** SQL statement to create range hash table */
+	static private final String SQL_CREATE_RANGE_HASHES =
+		"CREATE TABLE " + RangeHash.TABLE_NAME + " (" +
+		RangeHash.COL_ID + " INTEGER PRIMARY KEY autoincrement, " +
+		RangeHash.COL_SCOUTER + " INTEGER NOT NULL, " +
+		RangeHash.COL_BUCKET + " INTEGER NOT NULL, " +
+		RangeHash.COL_HASH + " INTEGER, " +
+		RangeHash.COL_COUNT + " INTEGER, " +
+		"UNIQUE (" + RangeHash.COL_SCOUTER + ", " +
+		             RangeHash.COL_BUCKET + ") ON CONFLICT REPLACE)";
+
+	/** SQL expression for the bucket of an observation */
+	static private String buildBucket(String obs) {
+		return obs + " / " + RangeHash.BUCKET_OBS;
+	}
+
+	/** SQL statement to fill range hash table with stale buckets */
+	static private final String SQL_FILL_RANGE_HASHES =
+		"INSERT INTO " + RangeHash.TABLE_NAME + " (" +
+		RangeHash.COL_SCOUTER + ", " + RangeHash.COL_BUCKET +
+		") SELECT DISTINCT " + Scouting2017.COL_SCOUTER + ", " +
+		buildBucket(Scouting2017.COL_OBSERVATION) + " FROM " +
+		Scouting2017.TABLE_NAME;
+
+	/** Build SQL statement to mark the bucket of a row stale */
+	static private String buildMarkStale(String row) {
+		return "INSERT INTO " + RangeHash.TABLE_NAME + " (" +
+			RangeHash.COL_SCOUTER + ", " + RangeHash.COL_BUCKET +
+			") VALUES (" + row + "." + Scouting2017.COL_SCOUTER +
+			", " + buildBucket(row + "." +
+			Scouting2017.COL_OBSERVATION) + "); ";
+	}
+
+	/** SQL statement to create trigger which marks buckets of versions
+	 * replaced by a new observation stale.  The replace conflict
+	 * resolution does not fire delete triggers. */
+	static private final String SQL_CREATE_RANGE_REPLACE_TRIGGER =
+		"CREATE TRIGGER " + RangeHash.TRIGGER_REPLACE +
+		" BEFORE INSERT ON " + Scouting2017.TABLE_NAME + " BEGIN " +
+		"INSERT INTO " + RangeHash.TABLE_NAME + " (" +
+		RangeHash.COL_SCOUTER + ", " + RangeHash.COL_BUCKET +
+		") SELECT " + Scouting2017.COL_SCOUTER + ", " +
+		buildBucket(Scouting2017.COL_OBSERVATION) + " FROM " +
+		Scouting2017.TABLE_NAME + " WHERE " + SQL_SAME_KEY + "; END";
+
+	/** SQL statement to create trigger which marks the bucket of a new
+	 * observation stale */
+	static private final String SQL_CREATE_RANGE_INSERT_TRIGGER =
+		"CREATE TRIGGER " + RangeHash.TRIGGER_INSERT +
+		" AFTER INSERT ON " + Scouting2017.TABLE_NAME + " BEGIN " +
+		buildMarkStale("NEW") + "END";
+
+	/** SQL statement to create trigger which marks buckets of an
+	 * updated observation stale */
+	static private final String SQL_CREATE_RANGE_UPDATE_TRIGGER =
+		"CREATE TRIGGER " + RangeHash.TRIGGER_UPDATE +
+		" AFTER UPDATE ON " + Scouting2017.TABLE_NAME + " BEGIN " +
+		buildMarkStale("OLD") + buildMarkStale("NEW") + "END";
+
+	/** SQL statement to create trigger which marks the bucket of a
+	 * deleted observation stale */
+	static private final String SQL_CREATE_RANGE_DELETE_TRIGGER =
+		"CREATE TRIGGER " + RangeHash.TRIGGER_DELETE +
+		" AFTER DELETE ON " + Scouting2017.TABLE_NAME + " BEGIN " +
+		buildMarkStale("OLD") + "END";
+
+	/** SQL statement to drop range hash table */
+	static private final String SQL_DROP_RANGE_HASHES =
+		"DROP TABLE IF EXISTS " + RangeHash.TABLE_NAME;
+
+	/** SQL statement to drop attachment table */
+	static private final String SQL_DROP_ATTACHMENTS =
+		"DROP TABLE IF EXISTS " + Attachment.TABLE_NAME;
+
+	/** SQL statement to drop scouter watermark table */
+	static private final String SQL_DROP_WATERMARKS =
+		"DROP TABLE IF EXISTS " + ScouterWatermark.TABLE_NAME;
+
+	/** SQL statement to create sync log table */
+	static private final String SQL_CREATE_SYNC_LOG =
+		"CREATE TABLE " + SyncLog.TABLE_NAME + " (" +
+		SyncLog.COL_ID +	" INTEGER PRIMARY KEY autoincrement, "+
+		SyncLog.COL_STARTED +	" INTEGER NOT NULL, " +
+		SyncLog.COL_TRANSPORT +	" TEXT NOT NULL, " +
+		SyncLog.COL_PEER +	" TEXT, " +
+		SyncLog.COL_ROLE +	" TEXT NOT NULL, " +
+		SyncLog.COL_FORMAT +	" TEXT, " +
+		SyncLog.COL_TOTAL_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_SUMMARY_MS + " INTEGER NOT NULL, " +
+		SyncLog.COL_SEND_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_RECV_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_APPLY_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_WRITE_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_READ_MS +	" INTEGER NOT NULL, " +
+		SyncLog.COL_ROWS_SENT +	" INTEGER NOT NULL, " +
+		SyncLog.COL_ROWS_RECV +	" INTEGER NOT NULL, " +
+		SyncLog.COL_ROWS_PER_SEC + " INTEGER NOT NULL, " +
+		SyncLog.COL_RAW_SENT +	" INTEGER NOT NULL, " +
+		SyncLog.COL_RAW_RECV +	" INTEGER NOT NULL, " +
+		SyncLog.COL_WIRE_SENT +	" INTEGER NOT NULL, " +
+		SyncLog.COL_WIRE_RECV +	" INTEGER NOT NULL, " +
+		SyncLog.COL_FAILURE +	" TEXT)";
+
+	/** SQL statement to create trigger to prune old sync log rows */
+	static private final String SQL_CREATE_SYNC_LOG_TRIGGER =
+		"CREATE TRIGGER " + SyncLog.TRIGGER_NAME +
+		" AFTER INSERT ON " + SyncLog.TABLE_NAME + " BEGIN " +
+		"DELETE FROM " + SyncLog.TABLE_NAME + " WHERE " +
+		SyncLog.COL_ID + " <= NEW." + SyncLog.COL_ID + " - " +
+		SyncLog.MAX_ROWS + "; END";
+
+	/** SQL statement to drop sync log table */
+	static private final String SQL_DROP_SYNC_LOG =
+		"DROP TABLE IF EXISTS " + SyncLog.TABLE_NAME;
+
+	/** SQL statement to create sync peer table */
+	static private final String SQL_CREATE_SYNC_PEERS =
+		"CREATE TABLE " + SyncPeer.TABLE_NAME + " (" +
+		SyncPeer.COL_ID +	" INTEGER PRIMARY KEY autoincrement, "+
+		SyncPeer.COL_ADDRESS +	" TEXT NOT NULL UNIQUE " +
+			"ON CONFLICT REPLACE, " +
+		SyncPeer.COL_LEAD +	" INTEGER NOT NULL DEFAULT 0, " +
+		SyncPeer.COL_SYNCED +	" INTEGER NOT NULL DEFAULT -1, " +
+		SyncPeer.COL_LAST_SYNC + " INTEGER)";
+
+	/** SQL statement to drop sync peer table */
+	static private final String SQL_DROP_SYNC_PEERS =
+		"DROP TABLE IF EXISTS " + SyncPeer.TABLE_NAME;
+
+	/** SQL statement to create sync cursor table */
+	static private final String SQL_CREATE_SYNC_CURSORS =
+		"CREATE TABLE " + SyncCursor.TABLE_NAME + " (" +
+		SyncCursor.COL_ID +	" INTEGER PRIMARY KEY autoincrement, "+
+		SyncCursor.COL_PEER +	" TEXT NOT NULL, " +
+		SyncCursor.COL_INSTANCE + " INTEGER NOT NULL UNIQUE " +
+			"ON CONFLICT REPLACE, " +
+		SyncCursor.COL_TOKEN +	" INTEGER NOT NULL, " +
+		SyncCursor.COL_FORMAT +	" TEXT NOT NULL, " +
+		SyncCursor.COL_CODECS +	" TEXT NOT NULL, " +
+		SyncCursor.COL_WATERMARKS + " TEXT NOT NULL)";
+
+	/** SQL statement to drop sync cursor table */
+	static private final String SQL_DROP_SYNC_CURSORS =
+		"DROP TABLE IF EXISTS " + SyncCursor.TABLE_NAME;
+
+	/** SQL statement to create scouting edit table */
+	static private final String SQL_CREATE_EDITS =
+		"CREATE TABLE " + ScoutingEdit.TABLE_NAME + " (" +
+		ScoutingEdit.COL_ID +	" INTEGER PRIMARY KEY autoincrement, "+
+		ScoutingEdit.COL_SCOUTER + " INTEGER NOT NULL, " +
+		ScoutingEdit.COL_OBSERVATION + " INTEGER NOT NULL, " +
+		ScoutingEdit.COL_BASE +	" INTEGER NOT NULL, " +
+		ScoutingEdit.COL_MASK +	" INTEGER NOT NULL, " +
+		"UNIQUE (" + ScoutingEdit.COL_SCOUTER + ", " +
+		             ScoutingEdit.COL_OBSERVATION +
+		        ") ON CONFLICT REPLACE)";
+
+	/** SQL condition matching prior versions of a new observation */
+	static private final String SQL_PRIOR_VERSION =
+		SQL_SAME_KEY + " AND " +
+		Scouting2017.COL_OBSERVATION + " < NEW." +
+		Scouting2017.COL_OBSERVATION;
+
+	/** SQL statement to drop trigger which keeps the newest
+	 * observation */
+	static private final String SQL_DROP_NEWEST_TRIGGER =
+		"DROP TRIGGER IF EXISTS " + Scouting2017.TRIGGER_NEWEST;
+
+	/** SQL statement to drop trigger which records edits */
+	static private final String SQL_DROP_EDIT_TRIGGER =
+		"DROP TRIGGER IF EXISTS " + ScoutingEdit.TRIGGER_NAME;
+
+	/** SQL statement to create trigger which records edits.  The base
+	 * is the prior version, which the new row replaces, so the edit of
+	 * the prior version is dropped.  Nothing is recorded for an older
+	 * version, which the newest trigger ignores. */
+	static private final String SQL_CREATE_EDIT_TRIGGER =
+		"CREATE TRIGGER " + ScoutingEdit.TRIGGER_NAME +
+		" BEFORE INSERT ON " + Scouting2017.TABLE_NAME +
+		" WHEN NOT " + SQL_NEWER_VERSION + " BEGIN " +
+		"DELETE FROM " + ScoutingEdit.TABLE_NAME + " WHERE " +
+		ScoutingEdit.COL_SCOUTER + " = NEW." +
+		Scouting2017.COL_SCOUTER + " AND " +
+		ScoutingEdit.COL_OBSERVATION + " IN (SELECT " +
+		Scouting2017.COL_OBSERVATION + " FROM " +
+		Scouting2017.TABLE_NAME + " WHERE " + SQL_PRIOR_VERSION +
+		"); " +
+		"INSERT INTO " + ScoutingEdit.TABLE_NAME + " (" +
+		ScoutingEdit.COL_SCOUTER + ", " +
+		ScoutingEdit.COL_OBSERVATION + ", " +
+		ScoutingEdit.COL_BASE + ", " +
+		ScoutingEdit.COL_MASK + ") SELECT NEW." +
+		Scouting2017.COL_SCOUTER + ", NEW." +
+		Scouting2017.COL_OBSERVATION + ", " +
+		Scouting2017.COL_OBSERVATION + ", " + buildMask() +
+		" FROM " + Scouting2017.TABLE_NAME + " WHERE " +
+		SQL_PRIOR_VERSION + " ORDER BY " +
+		Scouting2017.COL_OBSERVATION + " DESC LIMIT 1; END";
+
+	/** Build SQL expression for the mask of changed columns */
+	static private String buildMask() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ScoutingEdit.COLS_MASK.length; i++) {
+			String col = ScoutingEdit.COLS_MASK[i];
+			if (i > 0)
+				sb.append(" | ");
+			sb.append("((").append(col).append(" IS NOT NEW.");
+			sb.append(col).append(") << ").append(i).append(')');
+		}
+		return sb.toString();
+	}
+
+	/** SQL statement to create view of observations with edits */
+	static private final String SQL_CREATE_DELTA_VIEW =
+		"CREATE VIEW " + ScoutingEdit.VIEW_NAME + " AS SELECT " +
+		Scouting2017.TABLE_NAME + ".*, " +
+		ScoutingEdit.COL_BASE + ", " +
+		ScoutingEdit.COL_MASK +
+		" FROM " + Scouting2017.TABLE_NAME +
+		" LEFT JOIN " + ScoutingEdit.TABLE_NAME + " ON " +
+		Scouting2017.TABLE_NAME + "." + Scouting2017.COL_SCOUTER +
+		" = " + ScoutingEdit.TABLE_NAME + "." +
+		ScoutingEdit.COL_SCOUTER + " AND " +
+		Scouting2017.TABLE_NAME + "." + Scouting2017.COL_OBSERVATION +
+		" = " + ScoutingEdit.TABLE_NAME + "." +
+		ScoutingEdit.COL_OBSERVATION;
+
+	/** SQL statement to drop view of observations with edits */
+	static private final String SQL_DROP_DELTA_VIEW =
+		"DROP VIEW IF EXISTS " + ScoutingEdit.VIEW_NAME;
+
+	/** SQL statement to drop scouting edit table */
+	static private final String SQL_DROP_EDITS =
+		"DROP TABLE IF EXISTS " + ScoutingEdit.TABLE_NAME;
+
 	/** Create our DB helper */
 	public OurDbHelper(Context ctx) {
 		super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
@@ -198,6 +649,8 @@ public class OurDbHelper extends SQLiteOpenHelper {
 	@Override
 	public void onConfigure(SQLiteDatabase db) {
 		db.setForeignKeyConstraintsEnabled(true);
+		// Let sync sessions read while another session writes
+		db.enableWriteAheadLogging();
 	}
 
 	@Override
@@ -209,13 +662,132 @@ public class OurDbHelper extends SQLiteOpenHelper {
 		db.execSQL(SQL_CREATE_ET_VIEW);
 		db.execSQL(SQL_CREATE_MATCHES);
 		db.execSQL(SQL_CREATE_SCOUTING);
+		db.execSQL(SQL_CREATE_SCOUTING_IDX);
+		db.execSQL(SQL_CREATE_NEWEST_TRIGGER);
+		createWatermarks(db);
+		createSyncLog(db);
+		db.execSQL(SQL_CREATE_SYNC_PEERS);
+		createEdits(db);
+		db.execSQL(SQL_CREATE_SYNC_CURSORS);
+		createEventScope(db);
+		db.execSQL(SQL_CREATE_REF_BUNDLES);
+		db.execSQL(SQL_CREATE_ATTACHMENTS);
+		createRangeHashes(db);
 		initParams(db);
 	}
 
+	/** Create range hash table (all buckets stale) and triggers */
+	private void createRangeHashes(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_RANGE_HASHES);
+		db.execSQL(SQL_FILL_RANGE_HASHES);
+		db.execSQL(SQL_CREATE_RANGE_REPLACE_TRIGGER);
+		db.execSQL(SQL_CREATE_RANGE_INSERT_TRIGGER);
+		db.execSQL(SQL_CREATE_RANGE_UPDATE_TRIGGER);
+		db.execSQL(SQL_CREATE_RANGE_DELETE_TRIGGER);
+	}
+
+	/** Create scouter watermark table and trigger */
+	private void createWatermarks(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_WATERMARKS);
+		db.execSQL(SQL_FILL_WATERMARKS);
+		db.execSQL(SQL_CREATE_WATERMARK_TRIGGER);
+	}
+
+	/** Create event index and trigger, with event-scoped sync tables */
+	private void createEventScope(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_SCOUTING_EVENT_IDX);
+		db.execSQL(SQL_CREATE_EVENT_TRIGGER);
+		db.execSQL(SQL_CREATE_EVENT_WATERMARKS);
+		db.execSQL(SQL_CREATE_SYNC_EVENTS);
+	}
+
+	/** Create scouting edit table, trigger and view */
+	private void createEdits(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_EDITS);
+		db.execSQL(SQL_CREATE_EDIT_TRIGGER);
+		db.execSQL(SQL_CREATE_DELTA_VIEW);
+	}
+
+	/** Create sync log table and trigger */
+	private void createSyncLog(SQLiteDatabase db) {
+		db.execSQL(SQL_CREATE_SYNC_LOG);
+		db.execSQL(SQL_CREATE_SYNC_LOG_TRIGGER);
+	}
+
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion,
 		int newVersion)
 	{
+		if (oldVersion < 2)
+			db.execSQL(SQL_CREATE_SCOUTING_IDX);
+		if (oldVersion < 3)
+			createWatermarks(db);
+		if (oldVersion < 4)
+			createSyncLog(db);
+		if (oldVersion < 5)
+			db.execSQL(SQL_CREATE_NEWEST_TRIGGER);
+		if (oldVersion < 6)
+			db.execSQL(SQL_CREATE_SYNC_PEERS);
+		if (oldVersion < 7)
+			createEdits(db);
+		if (oldVersion < 8)
+			db.execSQL(SQL_CREATE_SYNC_CURSORS);
+		if (oldVersion >= 3 && oldVersion < 9) {
+			db.execSQL(SQL_ADD_WATERMARK_THROUGH);
+			db.execSQL(SQL_FILL_WATERMARK_THROUGH);
+		}
+		if (oldVersion < 10) {
+			db.execSQL(SQL_ADD_SCOUTING_EVENT);
+			db.execSQL(SQL_FILL_SCOUTING_EVENT);
+			createEventScope(db);
+		}
+		if (oldVersion < 11) {
+			db.execSQL(SQL_CREATE_REF_BUNDLES);
+			db.execSQL(SQL_FILL_REF_TEAMS);
+			db.execSQL(SQL_FILL_REF_MATCHES);
+		}
+		if (oldVersion < 12)
+			db.execSQL(SQL_CREATE_ATTACHMENTS);
+		if (oldVersion < 13) {
+			// Match key comparison changed to IS
+			if (oldVersion >= 5) {
+				db.execSQL(SQL_DROP_NEWEST_TRIGGER);
+				db.execSQL(SQL_CREATE_NEWEST_TRIGGER);
+			}
+			if (oldVersion >= 7) {
+				db.execSQL(SQL_DROP_EDIT_TRIGGER);
+				db.execSQL(SQL_CREATE_EDIT_TRIGGER);
+			}
+			createRangeHashes(db);
+		}
+		if (oldVersion >= 8 && oldVersion < 14) {
+			// Cursors are keyed by peer instance, not address
+			db.execSQL(SQL_DROP_SYNC_CURSORS);
+			db.execSQL(SQL_CREATE_SYNC_CURSORS);
+		}
+	}
+
+	@Override
+	public void onDowngrade(SQLiteDatabase db, int oldVersion,
+		int newVersion)
+	{
+		dropAll(db);
+		onCreate(db);
+	}
+
+	/** Drop all tables and views */
+	private void dropAll(SQLiteDatabase db) {
+		db.execSQL(SQL_DROP_RANGE_HASHES);
+		db.execSQL(SQL_DROP_ATTACHMENTS);
+		db.execSQL(SQL_DROP_REF_BUNDLES);
+		db.execSQL(SQL_DROP_SYNC_EVENTS);
+		db.execSQL(SQL_DROP_EVENT_WATERMARKS);
+		db.execSQL(SQL_DROP_SYNC_CURSORS);
+		db.execSQL(SQL_DROP_DELTA_VIEW);
+		db.execSQL(SQL_DROP_EDITS);
+		db.execSQL(SQL_DROP_SYNC_PEERS);
+		db.execSQL(SQL_DROP_SYNC_LOG);
+		db.execSQL(SQL_DROP_WATERMARKS);
 		db.execSQL(SQL_DROP_SCOUTING);
 		db.execSQL(SQL_DROP_MATCHES);
 		db.execSQL(SQL_DROP_ET_VIEW);
@@ -223,14 +795,6 @@ public class OurDbHelper extends SQLiteOpenHelper {
 		db.execSQL(SQL_DROP_TEAMS);
 		db.execSQL(SQL_DROP_EVENTS);
 		db.execSQL(SQL_DROP_PARAMS);
-		onCreate(db);
-	}
-
-	@Override
-	public void onDowngrade(SQLiteDatabase db, int oldVersion,
-		int newVersion)
-	{
-		onUpgrade(db, oldVersion, newVersion);
 	}
 
 	private void initParams(SQLiteDatabase db) {
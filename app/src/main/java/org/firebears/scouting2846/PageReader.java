@@ -0,0 +1,602 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Thread to read extra observations in pages, with keyset
+ * pagination on the (scouter, observation) index.  Each page is a
+ * short query, so no cursor is held open while waiting for the
+ * socket, and memory is bounded by the page queue.
+ *
+ * In priority order, rows are read one priority tier at a time,
+ * newest first for each scouter.  The peer can't tell from such rows
+ * which observations it has, so after each tier a through mark is
+ * queued for every scouter with no rows left in later tiers.  The
+ * last tier is read in index order, with through marks after each
+ * page, so a session which is cut short still moves the marks.
+ *
+ * With a segment cache, whole segments below our own through marks
+ * are taken from the cache, encoded once for all peers.  Only the
+ * partial segments at either end of a range are encoded for each
+ * peer.  Cached segments have no deltas.
+ */
+class PageReader extends Thread {
+
+	/** Columns for the fingerprint of a segment */
+	static private final String[] COLS_FINGERPRINT = {
+		"COUNT(*)",
+		"TOTAL(" + Scouting2017.COL_OBSERVATION + ")",
+		"TOTAL(" + Scouting2017.COL_ID + ")",
+	};
+
+	/** Columns to encode a segment (with row IDs for the
+	 * fingerprint) */
+	static private final String[] COLS_SEGMENT = buildSegmentCols();
+
+	/** Build columns to encode a segment */
+	static private String[] buildSegmentCols() {
+		String[] all = Marshaller.COLS_ALL;
+		String[] cols = new String[all.length + 1];
+		System.arraycopy(all, 0, cols, 0, all.length);
+		cols[all.length] = Scouting2017.COL_ID;
+		return cols;
+	}
+
+	/** Number of encoded pages buffered between page reader and
+	 * sender */
+	static private final int PAGE_QUEUE = 4;
+
+	/** Page of extra observations, encoded in binary columnar format
+	 * (or a cached segment, already compressed), or through marks for
+	 * the rows of earlier pages */
+	static class Page {
+		final byte[] raw;
+		final byte[] chunk;
+		final int raw_len;
+		final int n_rows;
+		final int n_deltas;
+		final HashMap<Integer, Integer> through;
+		private Page(byte[] r, int n, int nd) {
+			raw = r;
+			chunk = null;
+			raw_len = r.length;
+			n_rows = n;
+			n_deltas = nd;
+			through = null;
+		}
+		private Page(SegmentCache.Segment seg) {
+			raw = null;
+			chunk = seg.chunk;
+			raw_len = seg.raw_len;
+			n_rows = seg.n_rows;
+			n_deltas = 0;
+			through = null;
+		}
+		private Page(HashMap<Integer, Integer> t) {
+			raw = null;
+			chunk = null;
+			raw_len = 0;
+			n_rows = 0;
+			n_deltas = 0;
+			through = t;
+		}
+	}
+
+	/** Marker for the end of pages */
+	static final Page END = new Page(new byte[0], 0, 0);
+
+	private final ContentResolver cr;
+	private final HashMap<Integer, Integer> mine;
+	private final HashMap<Integer, Integer> map;
+	private final String scope;
+	private final boolean deltas;
+	private final boolean priority;
+	private final SegmentCache cache;
+	private final Codec codec;
+	private final ArrayBlockingQueue<Page> queue =
+		new ArrayBlockingQueue<Page>(PAGE_QUEUE);
+
+	/** Through marks still to be sent (priority order only) */
+	private HashMap<Integer, Integer> pending;
+
+	/** Reading newest first (in a priority tier) */
+	private boolean newest;
+
+	/** Marking rows after each page (in the last tier) */
+	private boolean marking;
+
+	private volatile IOException error;
+
+	/** Page being encoded */
+	private ByteArrayOutputStream raw;
+	private ColumnarWriter cw;
+	private int n_rows;
+	private int n_deltas;
+
+	/** Key (scouter, observation) of last row read */
+	private final int[] key = new int[2];
+
+	/** Create a page reader */
+	PageReader(ContentResolver r, HashMap<Integer, Integer> mn,
+		HashMap<Integer, Integer> m, String sc, boolean d, boolean p,
+		SegmentCache sgc, Codec cd)
+	{
+		super("SyncPageReader");
+		cr = r;
+		mine = mn;
+		map = m;
+		scope = sc;
+		deltas = d;
+		priority = p;
+		cache = sgc;
+		codec = cd;
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (priority)
+				readTiers(SyncPriority.lookupTiers(cr));
+			else
+				readScouters(scope, true);
+			if (n_rows > 0)
+				putPage();
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		catch (RuntimeException e) {
+			error = new IOException(e.toString());
+		}
+		catch (InterruptedException e) {
+			// Sender is finished
+			return;
+		}
+		try {
+			queue.put(END);
+		}
+		catch (InterruptedException e) {
+			// Sender is finished
+		}
+	}
+
+	/** Read rows one priority tier at a time */
+	private void readTiers(ArrayList<String> tiers)
+		throws IOException, InterruptedException
+	{
+		pending = buildPending();
+		int last = tiers.size() - 1;
+		newest = true;
+		for (int t = 0; t < last; t++) {
+			readScouters(Marshaller.andWhere(scope, tiers.get(t)),
+				false);
+			putThrough(buildLaterWhere(tiers, t));
+		}
+		newest = false;
+		marking = true;
+		readScouters(Marshaller.andWhere(scope, tiers.get(last)),
+			false);
+		putThrough(null);
+	}
+
+	/** Read rows of each scouter missing from the peer, in
+	 * scouter order (see Marshaller.buildExtraWhere) */
+	private void readScouters(String filter, boolean ordered)
+		throws IOException, InterruptedException
+	{
+		TreeMap<Integer, Integer> sorted =
+			new TreeMap<Integer, Integer>(mine);
+		for (Integer s : sorted.keySet()) {
+			Integer p = map.get(s);
+			int o = sorted.get(s);
+			if (!ordered)
+				readRange(s, p, null, filter);
+			else if (null == p || p < o)
+				readRange(s, p, o, filter);
+		}
+	}
+
+	/** Read rows of one scouter in a range (lo, hi], where either
+	 * bound may be null.  Whole segments at or below our own
+	 * through mark come from the segment cache. */
+	private void readRange(int s, Integer lo, Integer hi,
+		String filter) throws IOException, InterruptedException
+	{
+		int top = (hi != null)
+		        ? Math.min(hi, mine.get(s))
+		        : mine.get(s);
+		int k0 = (lo != null && lo > 0)
+		       ? (lo + SegmentCache.SEGMENT_OBS - 1) /
+		         SegmentCache.SEGMENT_OBS
+		       : 0;
+		int k1 = (top > 0) ? top / SegmentCache.SEGMENT_OBS : 0;
+		if (null == cache || k0 >= k1) {
+			readPages(buildRangeWhere(s, lo, hi, filter));
+			return;
+		}
+		int a = k0 * SegmentCache.SEGMENT_OBS;
+		int b = k1 * SegmentCache.SEGMENT_OBS;
+		boolean head = (null == lo || lo < a);
+		boolean tail = (null == hi || hi > b);
+		if (newest) {
+			if (tail) {
+				readPages(buildRangeWhere(s, b, hi, filter));
+			}
+			for (int k = k1 - 1; k >= k0; k--)
+				readSegment(s, k, filter);
+			if (head) {
+				readPages(buildRangeWhere(s, lo, a, filter));
+			}
+		} else {
+			if (head) {
+				readPages(buildRangeWhere(s, lo, a, filter));
+			}
+			for (int k = k0; k < k1; k++)
+				readSegment(s, k, filter);
+			if (tail) {
+				readPages(buildRangeWhere(s, b, hi, filter));
+			}
+		}
+	}
+
+	/** Read one segment from the cache, encoding and storing it
+	 * if it is missing or its rows changed */
+	private void readSegment(int s, int k, String filter)
+		throws IOException, InterruptedException
+	{
+		int lo = k * SegmentCache.SEGMENT_OBS;
+		int hi = lo + SegmentCache.SEGMENT_OBS;
+		String where = buildRangeWhere(s, lo, hi, filter);
+		long[] fp = lookupFingerprint(where);
+		if (0 == fp[0])
+			return;
+		int c = codec.choose(-1, 0);
+		String name = SegmentCache.buildName(s, k, (deltas ?
+			"d" : "r") + c + (codec.isTagged() ? "t" : "u"),
+			filter);
+		SegmentCache.Segment seg = cache.lookup(name, filter,
+			fp);
+		if (seg != null)
+			codec.reuse(c);
+		else {
+			seg = encodeSegment(where, c);
+			cache.store(name, filter, seg);
+		}
+		if (n_rows > 0)
+			putPage();
+		queue.put(new Page(seg));
+		key[0] = s;
+		key[1] = hi;
+		if (marking)
+			putMarks();
+	}
+
+	/** Lookup the fingerprint of rows matching a WHERE clause */
+	private long[] lookupFingerprint(String where)
+		throws IOException
+	{
+		Cursor c = cr.query(Scouting2017.CONTENT_URI,
+			COLS_FINGERPRINT, where, null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			long[] fp = new long[COLS_FINGERPRINT.length];
+			if (c.moveToFirst()) {
+				for (int i = 0; i < fp.length; i++)
+					fp[i] = c.getLong(i);
+			}
+			return fp;
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Encode and compress the rows of a segment.  The
+	 * fingerprint is taken from the rows encoded. */
+	private SegmentCache.Segment encodeSegment(String where,
+		int codec_id) throws IOException
+	{
+		Cursor c = cr.query(Scouting2017.CONTENT_URI,
+			COLS_SEGMENT, where, null, Marshaller.ORDER_OBS);
+		if (null == c)
+			throw new IOException("No cursor");
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		long[] fp = new long[COLS_FINGERPRINT.length];
+		try {
+			int ci_obs = c.getColumnIndexOrThrow(
+				Scouting2017.COL_OBSERVATION);
+			int ci_id = c.getColumnIndexOrThrow(
+				Scouting2017.COL_ID);
+			ColumnarWriter w = new ColumnarWriter(bo,
+				deltas);
+			while (c.moveToNext()) {
+				w.add(c);
+				fp[0]++;
+				fp[1] += c.getLong(ci_obs);
+				fp[2] += c.getLong(ci_id);
+			}
+			w.close();
+		}
+		finally {
+			c.close();
+		}
+		byte[] raw = bo.toByteArray();
+		bo.reset();
+		bo.write(new byte[Marshaller.CHUNK_HEADER_LEN]);
+		codec.encode(raw, 0, raw.length, codec_id, bo);
+		return new SegmentCache.Segment(bo.toByteArray(),
+			(int) fp[0], raw.length, fp);
+	}
+
+	/** Build through marks still to be sent.  For each scouter
+	 * the peer is behind, it is our own through mark. */
+	private HashMap<Integer, Integer> buildPending() {
+		HashMap<Integer, Integer> pending =
+			new HashMap<Integer, Integer>();
+		for (Integer s : mine.keySet()) {
+			Integer p = map.get(s);
+			int o = mine.get(s);
+			if (null == p || p < o)
+				pending.put(s, o);
+		}
+		return pending;
+	}
+
+	/** Queue through marks for scouters with no rows left in
+	 * later tiers, after the rows read so far */
+	private void putThrough(String later) throws IOException,
+		InterruptedException
+	{
+		HashMap<Integer, Integer> through =
+			new HashMap<Integer, Integer>();
+		Iterator<Integer> it = pending.keySet().iterator();
+		while (it.hasNext()) {
+			Integer s = it.next();
+			String sw = Marshaller.buildScouterWhere(s, map.get(s));
+			if (null == later || !hasRows(Marshaller.andWhere(
+			    Marshaller.andWhere(sw, scope), later)))
+			{
+				through.put(s, pending.get(s));
+				it.remove();
+			}
+		}
+		if (through.size() > 0) {
+			if (n_rows > 0)
+				putPage();
+			queue.put(new Page(through));
+		}
+	}
+
+	/** Check if any rows match a WHERE clause */
+	private boolean hasRows(String where) throws IOException {
+		Cursor c = cr.query(Scouting2017.CONTENT_URI,
+			new String[] { Scouting2017.COL_SCOUTER }, where,
+			null, Marshaller.ORDER_OBS + " LIMIT 1");
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			return c.moveToFirst();
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Read all rows matching one WHERE clause.  Each query is
+	 * limited to the room left in the current page, and continues
+	 * after the key of the last row read. */
+	private void readPages(String where) throws IOException,
+		InterruptedException
+	{
+		String w = where;
+		while (true) {
+			int room = ColumnarWriter.BATCH_SIZE - n_rows;
+			int n = readRows(w, room);
+			if (ColumnarWriter.BATCH_SIZE == n_rows)
+				putPage();
+			if (n < room)
+				break;
+			w = buildPageWhere(where);
+		}
+	}
+
+	/** Build WHERE clause for rows after the last key */
+	private String buildPageWhere(String where) {
+		String k = "(" + Scouting2017.COL_SCOUTER + '>' +
+			key[0] + " OR (" + Scouting2017.COL_SCOUTER +
+			'=' + key[0] + " AND " +
+			Scouting2017.COL_OBSERVATION +
+			(newest ? '<' : '>') + key[1] + "))";
+		return Marshaller.andWhere(where, k);
+	}
+
+	/** Read and encode up to limit rows (returns number read) */
+	private int readRows(String where, int limit)
+		throws IOException
+	{
+		String order = (newest
+		              ? Marshaller.ORDER_NEWEST
+		              : Marshaller.ORDER_OBS) + " LIMIT " + limit;
+		Cursor c = deltas
+		         ? cr.query(ScoutingEdit.DELTA_URI,
+		                    Marshaller.COLS_DELTA, where, null, order)
+		         : cr.query(Scouting2017.CONTENT_URI,
+		                    Marshaller.COLS_ALL, where, null, order);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			return encodeRows(c);
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Encode all rows of a cursor into the current page */
+	private int encodeRows(Cursor c) throws IOException {
+		int ci_scouter = c.getColumnIndexOrThrow(
+			Scouting2017.COL_SCOUTER);
+		int ci_obs = c.getColumnIndexOrThrow(
+			Scouting2017.COL_OBSERVATION);
+		int ci_base = deltas
+		    ? c.getColumnIndexOrThrow(ScoutingEdit.COL_BASE)
+		    : -1;
+		int ci_mask = deltas
+		    ? c.getColumnIndexOrThrow(ScoutingEdit.COL_MASK)
+		    : -1;
+		int n = 0;
+		while (c.moveToNext()) {
+			if (null == cw) {
+				raw = new ByteArrayOutputStream();
+				cw = new ColumnarWriter(raw, deltas);
+			}
+			if (deltas && isDelta(c, map, ci_scouter, ci_base)) {
+				cw.add(c, c.getInt(ci_base),
+					c.getInt(ci_mask));
+				n_deltas++;
+			} else
+				cw.add(c);
+			key[0] = c.getInt(ci_scouter);
+			key[1] = c.getInt(ci_obs);
+			n_rows++;
+			n++;
+		}
+		return n;
+	}
+
+	/** Finish the current page and queue it for the sender */
+	private void putPage() throws IOException,
+		InterruptedException
+	{
+		cw.close();
+		queue.put(new Page(raw.toByteArray(), n_rows, n_deltas));
+		cw = null;
+		raw = null;
+		n_rows = 0;
+		n_deltas = 0;
+		if (marking)
+			putMarks();
+	}
+
+	/** Queue through marks for rows read in index order.  Earlier
+	 * scouters are done; the current one is done up to the last
+	 * key (but never past our own mark). */
+	private void putMarks() throws InterruptedException {
+		HashMap<Integer, Integer> through =
+			new HashMap<Integer, Integer>();
+		Iterator<Integer> it = pending.keySet().iterator();
+		while (it.hasNext()) {
+			Integer s = it.next();
+			if (s < key[0]) {
+				through.put(s, pending.get(s));
+				it.remove();
+			} else if (s == key[0]) {
+				through.put(s, Math.min(key[1],
+					pending.get(s)));
+			}
+		}
+		if (through.size() > 0)
+			queue.put(new Page(through));
+	}
+
+	/** Get the next page, if one is ready */
+	Page poll() {
+		return queue.poll();
+	}
+
+	/** Wait for the next page (END after the last one) */
+	Page take() throws IOException {
+		try {
+			Page p = queue.take();
+			if (END == p && error != null)
+				throw error;
+			return p;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/** Stop reading and wait for the thread to exit */
+	void finish() {
+		interrupt();
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/** Build WHERE clause for rows of one scouter in a range (lo, hi],
+	 * with a filter */
+	static private String buildRangeWhere(int s, Integer lo, Integer hi,
+		String filter)
+	{
+		String rw = Marshaller.buildRangeWhere(s, lo, hi);
+		return Marshaller.andWhere(rw, filter);
+	}
+
+	/** Build WHERE clause for priority tiers after one tier (null if
+	 * it is the last tier) */
+	static private String buildLaterWhere(ArrayList<String> tiers,
+		int t)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = t + 1; i < tiers.size(); i++) {
+			if (sb.length() > 0)
+				sb.append(" OR ");
+			sb.append('(').append(tiers.get(i)).append(')');
+		}
+		return (sb.length() > 0) ? sb.toString() : null;
+	}
+
+	/** Check if the current row can be sent as a delta.  The peer has
+	 * the base if it is at or below the peer's watermark; rows missing
+	 * below a watermark are left for repair. */
+	static private boolean isDelta(Cursor c, HashMap<Integer, Integer> map,
+		int ci_scouter, int ci_base)
+	{
+		if (c.isNull(ci_base))
+			return false;
+		Integer wm = map.get(c.getInt(ci_scouter));
+		return (wm != null) && (c.getInt(ci_base) <= wm);
+	}
+}
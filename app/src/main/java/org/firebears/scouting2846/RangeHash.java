@@ -0,0 +1,54 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * DB stuff for hashes of observation buckets.  Each scouter's observations
+ * are grouped into buckets of a fixed number of observation IDs.  Triggers
+ * mark a bucket stale (NULL hash) when a row in it changes; stale hashes
+ * are computed again when next needed.  Marking replaces the row, so its
+ * ID changes, and a hash computed from older rows is never stored.
+ */
+public class RangeHash implements BaseColumns {
+
+	static public final String TABLE_NAME = "range_hash";
+	static public final String TRIGGER_REPLACE = TABLE_NAME + "_replace";
+	static public final String TRIGGER_INSERT = TABLE_NAME + "_insert";
+	static public final String TRIGGER_UPDATE = TABLE_NAME + "_update";
+	static public final String TRIGGER_DELETE = TABLE_NAME + "_delete";
+	static public final String COL_ID = "_id";
+	static public final String COL_SCOUTER = Scouting2017.COL_SCOUTER;
+	static public final String COL_BUCKET = "bucket";
+	static public final String COL_HASH = "hash";
+	static public final String COL_COUNT = "count";
+
+	/** Number of observation IDs in one bucket.  This is the smallest
+	 * range repair can compare, so it is kept well below the rows sent
+	 * for a mismatched range. */
+	static public final int BUCKET_OBS = 8;
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+}
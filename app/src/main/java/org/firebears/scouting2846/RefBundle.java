@@ -0,0 +1,449 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * DB stuff for reference data bundles.  A bundle holds one kind of
+ * reference data (teams or matches) for one event, as fetched from TBA,
+ * along with the event itself.  Each bundle has a version, so one device
+ * can fetch from TBA and pass the data to its peers.  Rows are merged by
+ * key, never deleted.
+ *
+ * A version is a counter in the high 32 bits, one past the newest version
+ * the device has seen, with the instance ID of the device which fetched it
+ * in the low 32 bits.  Device clocks are not trusted, and two devices
+ * fetching the same bundle concurrently still get distinct versions.
+ */
+public class RefBundle implements BaseColumns {
+
+	static public final String TABLE_NAME = "ref_bundle";
+	static public final String COL_ID = "_id";
+	static public final String COL_EVENT_KEY = "event_key";
+	static public final String COL_KIND = "kind";
+	static public final String COL_VERSION = "version";
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+
+	/** Bundle kind for teams at an event */
+	static public final String KIND_TEAMS = "teams";
+
+	/** Bundle kind for matches at an event */
+	static public final String KIND_MATCHES = "matches";
+
+	/** Separator between event key and kind in bundle names */
+	static private final char SEP = '/';
+
+	static private final String[] COLS = {
+		COL_EVENT_KEY, COL_KIND, COL_VERSION,
+	};
+
+	/** WHERE clause to select a bundle */
+	static private final String WHERE_BUNDLE = COL_EVENT_KEY + "=? AND " +
+		COL_KIND + "=?";
+
+	/** Event columns in bundles (no local ID) */
+	static private final String[] COLS_EVENT = {
+		FRCEvent.COL_KEY, FRCEvent.COL_NAME, FRCEvent.COL_SHORT,
+		FRCEvent.COL_OFFICIAL, FRCEvent.COL_EV_CODE,
+		FRCEvent.COL_EV_TYPE, FRCEvent.COL_DISTRICT, FRCEvent.COL_YEAR,
+		FRCEvent.COL_WEEK, FRCEvent.COL_START_DATE,
+		FRCEvent.COL_END_DATE, FRCEvent.COL_LOCATION,
+		FRCEvent.COL_VENUE_ADDRESS, FRCEvent.COL_TIMEZONE,
+		FRCEvent.COL_WEBSITE,
+	};
+
+	/** Team columns in bundles (no local ID) */
+	static private final String[] COLS_TEAM = {
+		Team.COL_KEY, Team.COL_TEAM_NUMBER, Team.COL_NAME,
+		Team.COL_NICKNAME, Team.COL_WEBSITE, Team.COL_LOCALITY,
+		Team.COL_REGION, Team.COL_COUNTRY, Team.COL_LOCATION,
+		Team.COL_ROOKIE_YEAR, Team.COL_MOTTO,
+	};
+
+	/** Match columns in bundles (no local IDs) */
+	static private final String[] COLS_MATCH = {
+		Match.COL_KEY, Match.COL_EVENT_KEY, Match.COL_COMP_LEVEL,
+		Match.COL_SET_NUMBER, Match.COL_MATCH_NUMBER,
+		Match.COL_ALLIANCES, Match.COL_SCORE_BREAKDOWN,
+		Match.COL_VIDEOS, Match.COL_TIME, Match.COL_RED_0,
+		Match.COL_RED_1, Match.COL_RED_2, Match.COL_BLUE_0,
+		Match.COL_BLUE_1, Match.COL_BLUE_2,
+	};
+
+	/** Names of bundle fields */
+	static private final String NAME = "name";
+	static private final String VERSION = "version";
+	static private final String EVENT = "event";
+	static private final String COLUMNS = "cols";
+	static private final String ROWS = "rows";
+
+	/** Build the name of a bundle */
+	static public String buildName(String ev_key, String kind) {
+		return ev_key + SEP + kind;
+	}
+
+	/** Check if a bundle name is well formed, with a known kind */
+	static private boolean isName(String name) {
+		int i = name.lastIndexOf(SEP);
+		if (i <= 0)
+			return false;
+		String kind = name.substring(i + 1);
+		return KIND_TEAMS.equals(kind) || KIND_MATCHES.equals(kind);
+	}
+
+	/** Get the event key of a bundle name */
+	static private String getEventKey(String name) {
+		return name.substring(0, name.lastIndexOf(SEP));
+	}
+
+	/** Get the kind of a bundle name */
+	static private String getKind(String name) {
+		return name.substring(name.lastIndexOf(SEP) + 1);
+	}
+
+	/** Record a new version of a bundle, after fetching from TBA */
+	static public void touch(ContentResolver cr, String ev_key,
+		String kind) throws IOException
+	{
+		long count = (lookupVersion(cr, ev_key, kind) >>> 32) + 1;
+		int inst = Marshaller.lookupInstance(cr);
+		store(cr, ev_key, kind, buildVersion(count, inst));
+	}
+
+	/** Build a version from a counter and an instance ID */
+	static long buildVersion(long count, int inst) {
+		return (count << 32) | (inst & 0xFFFFFFFFL);
+	}
+
+	/** Store the version of a bundle */
+	static private void store(ContentResolver cr, String ev_key,
+		String kind, long version)
+	{
+		ContentValues cv = new ContentValues();
+		cv.put(COL_EVENT_KEY, ev_key);
+		cv.put(COL_KIND, kind);
+		cv.put(COL_VERSION, version);
+		// Replaces any older version
+		cr.insert(CONTENT_URI, cv);
+	}
+
+	/** Lookup versions of all bundles, by name */
+	static public HashMap<String, Long> lookupVersions(ContentResolver cr)
+		throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, COLS, null, null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		HashMap<String, Long> versions = new HashMap<String, Long>();
+		try {
+			while (c.moveToNext()) {
+				versions.put(buildName(c.getString(0),
+					c.getString(1)), c.getLong(2));
+			}
+		}
+		finally {
+			c.close();
+		}
+		return versions;
+	}
+
+	/** Choose bundles newer than a peer's versions, for some events
+	 * (all events if empty), in name order.  Badly formed names from a
+	 * peer are skipped, the same way on both sides. */
+	static public ArrayList<String> chooseNewer(
+		HashMap<String, Long> mine, HashMap<String, Long> theirs,
+		Set<String> events)
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		for (String n : new TreeSet<String>(mine.keySet())) {
+			Long v = theirs.get(n);
+			if (isName(n) && (null == v || v < mine.get(n)) &&
+			    (events.isEmpty() ||
+			     events.contains(getEventKey(n))))
+				names.add(n);
+		}
+		return names;
+	}
+
+	/** Write a bundle */
+	static public void write(ContentResolver cr, String name,
+		long version, JsonWriter jw) throws IOException
+	{
+		String ev_key = getEventKey(name);
+		String kind = getKind(name);
+		jw.beginObject();
+		jw.name(NAME).value(name);
+		jw.name(VERSION).value(version);
+		Cursor c = cr.query(FRCEvent.CONTENT_URI, COLS_EVENT,
+			FRCEvent.COL_KEY + "=?", new String[] { ev_key }, null);
+		jw.name(EVENT);
+		writeRows(jw, c);
+		if (KIND_TEAMS.equals(kind)) {
+			// Selecting by event uses the event/team view
+			c = cr.query(Team.CONTENT_URI, COLS_TEAM,
+				EventTeam.COL_EVENT + "=(SELECT " +
+				FRCEvent.COL_ID + " FROM " +
+				FRCEvent.TABLE_NAME + " WHERE " +
+				FRCEvent.COL_KEY + "=?)",
+				new String[] { ev_key }, Team.COL_TEAM_NUMBER);
+		} else {
+			c = cr.query(Match.CONTENT_URI, COLS_MATCH,
+				Match.COL_EVENT_KEY + "=?",
+				new String[] { ev_key }, Match.COL_TIME);
+		}
+		jw.name(kind);
+		writeRows(jw, c);
+		jw.endObject();
+	}
+
+	/** Write rows of a cursor, as column names and arrays of values */
+	static private void writeRows(JsonWriter jw, Cursor c)
+		throws IOException
+	{
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			jw.beginObject();
+			jw.name(COLUMNS).beginArray();
+			for (String cn : c.getColumnNames())
+				jw.value(cn);
+			jw.endArray();
+			jw.name(ROWS).beginArray();
+			while (c.moveToNext()) {
+				jw.beginArray();
+				for (int i = 0; i < c.getColumnCount(); i++)
+					writeValue(jw, c, i);
+				jw.endArray();
+			}
+			jw.endArray();
+			jw.endObject();
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Write one value of a cursor row */
+	static private void writeValue(JsonWriter jw, Cursor c, int i)
+		throws IOException
+	{
+		switch (c.getType(i)) {
+		case Cursor.FIELD_TYPE_NULL:
+			jw.nullValue();
+			break;
+		case Cursor.FIELD_TYPE_INTEGER:
+			jw.value(c.getLong(i));
+			break;
+		default:
+			jw.value(c.getString(i));
+			break;
+		}
+	}
+
+	/** Read a bundle and merge its rows (returns number of rows) */
+	static public int apply(ContentResolver cr, JsonReader jr)
+		throws IOException
+	{
+		String name = null;
+		long version = 0;
+		ArrayList<ContentValues> events = null;
+		ArrayList<ContentValues> rows = null;
+		String rows_kind = null;
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String n = jr.nextName();
+			if (NAME.equals(n))
+				name = jr.nextString();
+			else if (VERSION.equals(n))
+				version = jr.nextLong();
+			else if (EVENT.equals(n))
+				events = readRows(jr, COLS_EVENT);
+			else if (KIND_TEAMS.equals(n)) {
+				rows = readRows(jr, COLS_TEAM);
+				rows_kind = n;
+			} else if (KIND_MATCHES.equals(n)) {
+				rows = readRows(jr, COLS_MATCH);
+				rows_kind = n;
+			} else
+				jr.skipValue();
+		}
+		jr.endObject();
+		if (null == name || !isName(name))
+			throw new IOException("Bad bundle name: " + name);
+		String ev_key = getEventKey(name);
+		String kind = getKind(name);
+		if (null == events || events.size() != 1 ||
+		    !kind.equals(rows_kind))
+			throw new IOException("Bad bundle: " + name);
+		ContentValues ev = events.get(0);
+		if (!ev_key.equals(ev.getAsString(FRCEvent.COL_KEY)))
+			throw new IOException("Bad bundle event: " + name);
+		int event_id = insertOrUpdate(cr, FRCEvent.CONTENT_URI,
+			FRCEvent.COL_KEY, FRCEvent.COL_ID, ev);
+		for (ContentValues cv : rows) {
+			if (KIND_TEAMS.equals(kind))
+				insertTeam(cr, event_id, cv);
+			else if (KIND_MATCHES.equals(kind)) {
+				cv.put(Match.COL_EVENT, event_id);
+				insertOrUpdate(cr, Match.CONTENT_URI,
+					Match.COL_KEY, Match.COL_ID, cv);
+			}
+		}
+		if (version > lookupVersion(cr, ev_key, kind))
+			store(cr, ev_key, kind, version);
+		return rows.size() + 1;
+	}
+
+	/** Read rows, as column names and arrays of values.  Only known
+	 * columns are kept; others (local IDs, or columns added by a newer
+	 * peer) are dropped. */
+	static private ArrayList<ContentValues> readRows(JsonReader jr,
+		String[] known) throws IOException
+	{
+		HashSet<String> keep = new HashSet<String>(Arrays.asList(known));
+		ArrayList<String> cols = new ArrayList<String>();
+		ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String n = jr.nextName();
+			if (COLUMNS.equals(n)) {
+				jr.beginArray();
+				while (jr.hasNext())
+					cols.add(jr.nextString());
+				jr.endArray();
+			} else if (ROWS.equals(n)) {
+				jr.beginArray();
+				while (jr.hasNext())
+					rows.add(readRow(jr, cols, keep));
+				jr.endArray();
+			} else
+				jr.skipValue();
+		}
+		jr.endObject();
+		return rows;
+	}
+
+	/** Read one row of values, keeping only some columns */
+	static private ContentValues readRow(JsonReader jr,
+		ArrayList<String> cols, Set<String> keep) throws IOException
+	{
+		ContentValues cv = new ContentValues();
+		jr.beginArray();
+		for (String cn : cols) {
+			if (!jr.hasNext())
+				throw new IOException("Short bundle row");
+			JsonToken t = jr.peek();
+			if (!keep.contains(cn))
+				jr.skipValue();
+			else if (JsonToken.NULL == t) {
+				jr.nextNull();
+				cv.putNull(cn);
+			} else if (JsonToken.NUMBER == t)
+				cv.put(cn, jr.nextLong());
+			else
+				cv.put(cn, jr.nextString());
+		}
+		jr.endArray();
+		return cv;
+	}
+
+	/** Merge a team, with its relation to an event */
+	static private void insertTeam(ContentResolver cr, int event_id,
+		ContentValues cv) throws IOException
+	{
+		int team_id = insertOrUpdate(cr, Team.CONTENT_URI,
+			Team.COL_KEY, Team.COL_ID, cv);
+		ContentValues rv = new ContentValues();
+		rv.put(EventTeam.COL_EVENT, event_id);
+		rv.put(EventTeam.COL_TEAM, team_id);
+		cr.insert(EventTeam.CONTENT_URI, rv);
+	}
+
+	/** Insert or update a row by key (returns its ID) */
+	static private int insertOrUpdate(ContentResolver cr, Uri uri,
+		String col_key, String col_id, ContentValues cv)
+		throws IOException
+	{
+		String key = cv.getAsString(col_key);
+		if (null == key)
+			throw new IOException("Bundle row without key");
+		String where = col_key + "=?";
+		String[] args = new String[] { key };
+		Cursor c = cr.query(uri, new String[] { col_id }, where, args,
+			null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			if (c.moveToFirst()) {
+				cr.update(uri, cv, where, args);
+				return c.getInt(0);
+			}
+		}
+		catch (SQLiteException e) {
+			throw new IOException("Bundle update " + key + ": " +
+				e.getMessage());
+		}
+		finally {
+			c.close();
+		}
+		Uri u = cr.insert(uri, cv);
+		long id = (u != null) ? ContentUris.parseId(u) : -1;
+		if (id < 0)
+			throw new IOException("Bundle insert failed: " + key);
+		return (int) id;
+	}
+
+	/** Lookup the version of a bundle (0 if missing) */
+	static private long lookupVersion(ContentResolver cr, String ev_key,
+		String kind) throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, new String[] { COL_VERSION },
+			WHERE_BUNDLE, new String[] { ev_key, kind }, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		}
+		finally {
+			c.close();
+		}
+	}
+}
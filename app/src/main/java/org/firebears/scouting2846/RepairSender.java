@@ -0,0 +1,57 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Thread to send observations in mismatched ranges to a peer.
+ */
+class RepairSender extends Sender {
+
+	private final ContentResolver cr;
+	private final ArrayList<RowHashes.Range> leaves;
+	private final OutputStream os;
+	private final Codec codec;
+	private final SyncStats stats;
+
+	/** Create a sender of repaired observations */
+	RepairSender(ContentResolver r, ArrayList<RowHashes.Range> l,
+		SyncConnection c, OutputStream o, Codec cd, SyncStats st)
+	{
+		super(c, null);
+		cr = r;
+		leaves = l;
+		os = o;
+		codec = cd;
+		stats = st;
+	}
+
+	@Override
+	protected int send() throws IOException {
+		return Marshaller.lookupRepairObservations(cr, leaves, os,
+			codec, stats);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Sync transport using bluetooth RFCOMM.
+ */
+public class RfcommTransport implements SyncTransport {
+
+	static private final String SDP_NAME = "BluetoothSync";
+
+	static public final UUID OUR_UUID =
+		UUID.fromString("b9a8fc97-8a4b-4481-b634-856140ed1b7d");
+
+	/** Bluetooth adapter */
+	private final BluetoothAdapter adapter;
+
+	/** Create an RFCOMM transport */
+	public RfcommTransport(BluetoothAdapter ba) {
+		adapter = ba;
+	}
+
+	@Override
+	public String getName() {
+		return "rfcomm";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return adapter != null && adapter.isEnabled();
+	}
+
+	@Override
+	public SyncConnection connect(String address) throws IOException {
+		BluetoothDevice d = adapter.getRemoteDevice(address);
+		BluetoothSocket s = d.createRfcommSocketToServiceRecord(
+			OUR_UUID);
+		try {
+			s.connect();
+			return new Connection(s, address);
+		}
+		catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public SyncListener listen() throws IOException {
+		final BluetoothServerSocket ss =
+			adapter.listenUsingRfcommWithServiceRecord(SDP_NAME,
+			OUR_UUID);
+		return new SyncListener() {
+			public SyncConnection accept() throws IOException {
+				return createConnection(ss.accept());
+			}
+			public SyncConnection accept(int timeout)
+				throws IOException
+			{
+				long start = System.currentTimeMillis();
+				try {
+					return createConnection(ss.accept(
+						timeout));
+				}
+				catch (IOException e) {
+					// A timeout is reported as an
+					// IOException, like any other error
+					long ms = System.currentTimeMillis() -
+						start;
+					if (ms >= timeout)
+						return null;
+					else
+						throw e;
+				}
+			}
+			public void close() throws IOException {
+				ss.close();
+			}
+		};
+	}
+
+	/** Create a connection for an accepted socket */
+	static private Connection createConnection(BluetoothSocket s) {
+		BluetoothDevice d = s.getRemoteDevice();
+		return new Connection(s, (d != null) ? d.getAddress() : null);
+	}
+
+	/** RFCOMM connection */
+	static private class Connection implements SyncConnection {
+		private final BluetoothSocket sock;
+		private final String peer;
+		private Connection(BluetoothSocket s, String p) {
+			sock = s;
+			peer = p;
+		}
+		public String getPeer() {
+			return peer;
+		}
+		public InputStream getInputStream() throws IOException {
+			return sock.getInputStream();
+		}
+		public OutputStream getOutputStream() throws IOException {
+			return sock.getOutputStream();
+		}
+		public void close() throws IOException {
+			sock.close();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hashes of all observations, for comparing ranges of rows with a peer.
+ * Each row hashes to 64 bits; the hash of a range of observations is the
+ * XOR of its row hashes.  Hashes of buckets are kept in the range hash
+ * table, so only stale buckets are hashed again.  Ranges must be aligned
+ * to buckets; any such range is found from prefix sums of buckets.
+ */
+public class RowHashes {
+
+	static private final String TAG = "RowHashes";
+
+	/** Range of observations of one scouter (lo inclusive, hi
+	 * exclusive) */
+	static public class Range {
+		public final int scouter;
+		public final long lo;
+		public final long hi;
+		public Range(int s, long l, long h) {
+			scouter = s;
+			lo = l;
+			hi = h;
+		}
+	}
+
+	/** Columns of range hashes */
+	static private final String[] COLS_RANGE = {
+		RangeHash.COL_ID, RangeHash.COL_SCOUTER, RangeHash.COL_BUCKET,
+		RangeHash.COL_HASH, RangeHash.COL_COUNT,
+	};
+
+	/** Sort order for loading range hashes */
+	static private final String ORDER_BUCKET = RangeHash.COL_SCOUTER +
+		"," + RangeHash.COL_BUCKET;
+
+	/** WHERE clause to select a range hash by ID */
+	static private final String WHERE_ID = RangeHash.COL_ID + "=?";
+
+	/** Maximum number of stale buckets to query at once */
+	static private final int QUERY_BUCKETS = 32;
+
+	/** Round an observation up to a bucket boundary */
+	static public long alignUp(long obs) {
+		long b = RangeHash.BUCKET_OBS;
+		return (obs + b - 1) / b * b;
+	}
+
+	/** Load hashes of all observations, hashing stale buckets */
+	static public RowHashes load(ContentResolver cr, String[] cols)
+		throws IOException
+	{
+		RowHashes rh = new RowHashes();
+		ArrayList<Bucket> buckets = rh.lookupBuckets(cr);
+		ArrayList<Bucket> stale = new ArrayList<Bucket>();
+		for (Bucket b : buckets) {
+			if (b.stale)
+				stale.add(b);
+		}
+		for (int i = 0; i < stale.size(); i += QUERY_BUCKETS) {
+			int end = Math.min(stale.size(), i + QUERY_BUCKETS);
+			rh.hashBuckets(cr, cols, stale.subList(i, end));
+		}
+		for (Bucket b : stale)
+			b.store(cr);
+		Log.d(TAG, "hashed " + stale.size() + " of " + buckets.size() +
+			" buckets");
+		rh.buildPrefix(buckets);
+		return rh;
+	}
+
+	/** Hash of one bucket */
+	static private class Bucket {
+		private final long id;
+		private final int scouter;
+		private final long bucket;
+		private final boolean stale;
+		private long hash;
+		private int count;
+		private Bucket(Cursor c) {
+			id = c.getLong(0);
+			scouter = c.getInt(1);
+			bucket = c.getLong(2);
+			stale = c.isNull(3);
+			hash = stale ? 0 : c.getLong(3);
+			count = stale ? 0 : c.getInt(4);
+		}
+
+		/** Store a computed hash, unless the bucket was marked stale
+		 * again (which replaces the row) */
+		private void store(ContentResolver cr) {
+			String[] args = new String[] { Long.toString(id) };
+			if (count > 0) {
+				ContentValues cv = new ContentValues();
+				cv.put(RangeHash.COL_HASH, hash);
+				cv.put(RangeHash.COL_COUNT, count);
+				cr.update(RangeHash.CONTENT_URI, cv, WHERE_ID,
+					args);
+			} else
+				cr.delete(RangeHash.CONTENT_URI, WHERE_ID, args);
+		}
+	}
+
+	/** Buckets of each scouter, in order */
+	private final HashMap<Integer, long[]> buckets =
+		new HashMap<Integer, long[]>();
+
+	/** XOR prefix of bucket hashes for each scouter */
+	private final HashMap<Integer, long[]> prefix =
+		new HashMap<Integer, long[]>();
+
+	/** Prefix sum of bucket row counts for each scouter */
+	private final HashMap<Integer, int[]> counts =
+		new HashMap<Integer, int[]>();
+
+	/** Digest for row hashes */
+	private final MessageDigest md;
+
+	/** Create row hashes */
+	private RowHashes() throws IOException {
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/** Lookup all bucket hashes */
+	private ArrayList<Bucket> lookupBuckets(ContentResolver cr)
+		throws IOException
+	{
+		Cursor c = cr.query(RangeHash.CONTENT_URI, COLS_RANGE, null,
+			null, ORDER_BUCKET);
+		if (null == c)
+			throw new IOException("No cursor");
+		ArrayList<Bucket> bl = new ArrayList<Bucket>();
+		try {
+			while (c.moveToNext())
+				bl.add(new Bucket(c));
+		}
+		finally {
+			c.close();
+		}
+		return bl;
+	}
+
+	/** Hash rows of some stale buckets */
+	private void hashBuckets(ContentResolver cr, String[] cols,
+		List<Bucket> bl) throws IOException
+	{
+		HashMap<String, Bucket> keys = new HashMap<String, Bucket>();
+		StringBuilder where = new StringBuilder();
+		for (Bucket b : bl) {
+			keys.put(b.scouter + ":" + b.bucket, b);
+			if (where.length() > 0)
+				where.append(" OR ");
+			long lo = b.bucket * RangeHash.BUCKET_OBS;
+			where.append('(').append(Scouting2017.COL_SCOUTER)
+			     .append('=').append(b.scouter).append(" AND ")
+			     .append(Scouting2017.COL_OBSERVATION).append(">=")
+			     .append(lo).append(" AND ")
+			     .append(Scouting2017.COL_OBSERVATION).append('<')
+			     .append(lo + RangeHash.BUCKET_OBS).append(')');
+		}
+		Cursor c = cr.query(Scouting2017.CONTENT_URI, cols,
+			where.toString(), null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			int cs = c.getColumnIndex(Scouting2017.COL_SCOUTER);
+			int co = c.getColumnIndex(Scouting2017.COL_OBSERVATION);
+			while (c.moveToNext()) {
+				Bucket b = keys.get(c.getInt(cs) + ":" +
+					c.getLong(co) / RangeHash.BUCKET_OBS);
+				if (b != null) {
+					b.hash ^= hashRow(c);
+					b.count++;
+				}
+			}
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Build prefix sums of bucket hashes and counts */
+	private void buildPrefix(ArrayList<Bucket> bl) {
+		int i = 0;
+		while (i < bl.size()) {
+			int s = bl.get(i).scouter;
+			int j = i;
+			while (j < bl.size() && bl.get(j).scouter == s)
+				j++;
+			int n = j - i;
+			long[] o = new long[n];
+			long[] p = new long[n + 1];
+			int[] cn = new int[n + 1];
+			for (int k = 0; k < n; k++) {
+				Bucket b = bl.get(i + k);
+				o[k] = b.bucket;
+				p[k + 1] = p[k] ^ b.hash;
+				cn[k + 1] = cn[k] + b.count;
+			}
+			buckets.put(s, o);
+			prefix.put(s, p);
+			counts.put(s, cn);
+			i = j;
+		}
+	}
+
+	/** Hash all columns of one row */
+	private long hashRow(Cursor c) throws IOException {
+		md.reset();
+		for (int i = 0; i < c.getColumnCount(); i++) {
+			String v = c.getString(i);
+			if (v != null) {
+				byte[] b = v.getBytes("UTF-8");
+				md.update((byte) 1);
+				md.update((byte) (b.length >>> 24));
+				md.update((byte) (b.length >>> 16));
+				md.update((byte) (b.length >>> 8));
+				md.update((byte) b.length);
+				md.update(b);
+			} else
+				md.update((byte) 0);
+		}
+		byte[] d = md.digest();
+		long h = 0;
+		for (int i = 0; i < 8; i++)
+			h = (h << 8) | (d[i] & 0xFF);
+		return h;
+	}
+
+	/** Find index of first bucket not less than a value */
+	static private int search(long[] o, long v) {
+		int lo = 0;
+		int hi = o.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (o[mid] < v)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/** Get the hash of a range */
+	public long getHash(Range r) {
+		long[] o = buckets.get(r.scouter);
+		if (o != null) {
+			long[] p = prefix.get(r.scouter);
+			return p[search(o, r.lo / RangeHash.BUCKET_OBS)] ^
+			       p[search(o, r.hi / RangeHash.BUCKET_OBS)];
+		} else
+			return 0;
+	}
+
+	/** Get the number of rows in a range */
+	public int getCount(Range r) {
+		long[] o = buckets.get(r.scouter);
+		if (o != null) {
+			int[] cn = counts.get(r.scouter);
+			return cn[search(o, r.hi / RangeHash.BUCKET_OBS)] -
+			       cn[search(o, r.lo / RangeHash.BUCKET_OBS)];
+		} else
+			return 0;
+	}
+}
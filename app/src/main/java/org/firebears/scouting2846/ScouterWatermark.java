@@ -0,0 +1,44 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * DB stuff for final observation (high-water mark) of each scouter.  Rows
+ * can arrive out of order, so each scouter also has a "through" mark: all
+ * of the scouter's observations up to it have been received.
+ */
+public class ScouterWatermark implements BaseColumns {
+
+	static public final String TABLE_NAME = "scouter_watermark";
+	static public final String TRIGGER_NAME = TABLE_NAME + "_insert";
+	static public final String COL_ID = "_id";
+	static public final String COL_SCOUTER = Scouting2017.COL_SCOUTER;
+	static public final String COL_OBSERVATION =
+		Scouting2017.COL_OBSERVATION;
+	static public final String COL_THROUGH = "through";
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+}
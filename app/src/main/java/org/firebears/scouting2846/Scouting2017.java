@@ -26,8 +26,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.BaseColumns;
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.IOException;
 
 /**
  * DB stuff for scouting data.
@@ -35,6 +36,10 @@ import org.json.JSONObject;
 public class Scouting2017 implements BaseColumns {
 
 	static public final String TABLE_NAME = "scouting_2017";
+	static public final String INDEX_OBSERVATION = TABLE_NAME + "_obs";
+	static public final String INDEX_EVENT = TABLE_NAME + "_event";
+	static public final String TRIGGER_NEWEST = TABLE_NAME + "_newest";
+	static public final String TRIGGER_EVENT = TABLE_NAME + "_event_tag";
 	static public final String COL_ID = "_id";
 	static public final String COL_SCOUTER = Param.ROW_SCOUTER;
 	static public final String COL_OBSERVATION = Param.ROW_OBSERVATION;
@@ -56,6 +61,7 @@ public class Scouting2017 implements BaseColumns {
 	static public final String COL_RELEASE_ROPE = "release_rope";
 	static public final String COL_LOSE_GEAR = "lose_gear";
 	static public final String COL_NOTES = "notes";
+	static public final String COL_EVENT_KEY = "event_key";
 
 	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
 		TABLE_NAME);
@@ -128,19 +134,36 @@ public class Scouting2017 implements BaseColumns {
 		COL_AUTO_BASELINE, COL_HIGH_GOAL, COL_LOW_GOAL, COL_PLACE_GEAR,
 		COL_CLIMB_ROPE, COL_TOUCH_PAD, COL_BALL_HUMAN, COL_BALL_FLOOR,
 		COL_BALL_HOPPER, COL_PILOT_EFFECTIVE, COL_RELEASE_ROPE,
-		COL_LOSE_GEAR, COL_NOTES,
+		COL_LOSE_GEAR, COL_NOTES, COL_EVENT_KEY,
 	};
 
-	/** Parse a JSON scouting object */
-	static public ContentValues parse(JSONObject jo) throws JSONException {
-		ContentValues cv = new ContentValues();
+	/** Check if a column is a scouting column */
+	static private boolean isColumn(String col) {
 		for (String v : COLS_ALL) {
-			Object o = jo.get(v);
-			if (o instanceof Integer)
-				cv.put(v, (Integer) o);
-			else
-				cv.put(v, o.toString());
+			if (v.equals(col))
+				return true;
+		}
+		return false;
+	}
+
+	/** Parse a JSON scouting object from a stream */
+	static public ContentValues parse(JsonReader jr) throws IOException {
+		ContentValues cv = new ContentValues();
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String v = jr.nextName();
+			JsonToken t = jr.peek();
+			if (!isColumn(v))
+				jr.skipValue();
+			else if (JsonToken.NUMBER == t)
+				cv.put(v, jr.nextInt());
+			else if (JsonToken.NULL == t) {
+				jr.nextNull();
+				cv.putNull(v);
+			} else
+				cv.put(v, jr.nextString());
 		}
+		jr.endObject();
 		return cv;
 	}
 
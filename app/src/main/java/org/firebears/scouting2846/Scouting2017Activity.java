@@ -22,8 +22,11 @@
 package org.firebears.scouting2846;
 
 import android.content.ContentValues;
+import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.CursorLoader;
@@ -33,6 +36,8 @@ import android.support.v7.app.ActionBar;
 import android.support.v7.widget.SwitchCompat;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
@@ -54,6 +59,9 @@ public class Scouting2017Activity extends AppCompatActivity {
 	static private final int TEAM_LOADER_ID = 45;
 	static private final int PARAM_LOADER_ID = 46;
 
+	/** Request code to pick a photo */
+	static private final int REQUEST_PHOTO = 1;
+
 	/** Columns to retrieve from the loader */
 	static private final String[] PARAM_COLS = {
 		Param.COL_NAME,
@@ -112,15 +120,49 @@ public class Scouting2017Activity extends AppCompatActivity {
 		lm.initLoader(TEAM_LOADER_ID, null, team_cb);
 	}
 
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.scouting_menu, menu);
+		return true;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		if (android.R.id.home == item.getItemId()) {
 			onBackPressed();
 			return true;
 		}
+		if (R.id.action_attach_photo == item.getItemId()) {
+			Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+			intent.setType("image/*");
+			startActivityForResult(intent, REQUEST_PHOTO);
+			return true;
+		}
 		return super.onOptionsItemSelected(item);
 	}
 
+	@Override
+	protected void onActivityResult(int requestCode, int resultCode,
+		Intent data)
+	{
+		if (REQUEST_PHOTO == requestCode && RESULT_OK == resultCode &&
+		    data != null && data.getData() != null)
+		{
+			// The observation was stored by onPause
+			Uri uri = data.getData();
+			new AttachPhoto(this, getScouter(), getMatchKey(),
+				getTeamKey(), uri).execute();
+		}
+		super.onActivityResult(requestCode, resultCode, data);
+	}
+
+	/** Show a snackbar */
+	public void showSnack(int res) {
+		View v = findViewById(R.id.scouting_2017_container);
+		Snackbar.make(v, res, Snackbar.LENGTH_LONG).show();
+	}
+
 	/** Callbacks for param loader */
 	private final LoaderCallbacks<Cursor> param_cb =
 		new LoaderCallbacks<Cursor>()
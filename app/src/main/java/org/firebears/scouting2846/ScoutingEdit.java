@@ -0,0 +1,74 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * DB stuff for edits of scouting observations.  Each edit links an
+ * observation to the prior version (base) of the same scouter, match and
+ * team, with a bitmask of the columns which changed.
+ */
+public class ScoutingEdit implements BaseColumns {
+
+	static public final String TABLE_NAME = Scouting2017.TABLE_NAME +
+		"_edit";
+	static public final String TRIGGER_NAME = TABLE_NAME + "_insert";
+	static public final String VIEW_NAME = Scouting2017.TABLE_NAME +
+		"_delta";
+	static public final String COL_ID = "_id";
+	static public final String COL_SCOUTER = Scouting2017.COL_SCOUTER;
+	static public final String COL_OBSERVATION =
+		Scouting2017.COL_OBSERVATION;
+	static public final String COL_BASE = "base";
+	static public final String COL_MASK = "mask";
+
+	/** Columns which can be edited, in mask bit order */
+	static public final String[] COLS_MASK = {
+		Scouting2017.COL_AUTO_HIGH_GOAL,Scouting2017.COL_AUTO_LOW_GOAL,
+		Scouting2017.COL_HIGH_GOAL, Scouting2017.COL_LOW_GOAL,
+		Scouting2017.COL_PLACE_GEAR,
+		Scouting2017.COL_AUTO_GEAR, Scouting2017.COL_AUTO_BASELINE,
+		Scouting2017.COL_CLIMB_ROPE, Scouting2017.COL_TOUCH_PAD,
+		Scouting2017.COL_BALL_HUMAN, Scouting2017.COL_BALL_FLOOR,
+		Scouting2017.COL_BALL_HOPPER, Scouting2017.COL_PILOT_EFFECTIVE,
+		Scouting2017.COL_RELEASE_ROPE, Scouting2017.COL_LOSE_GEAR,
+		Scouting2017.COL_NOTES,
+	};
+
+	/** Get the mask bit for a column */
+	static public int maskBit(String col) {
+		for (int i = 0; i < COLS_MASK.length; i++) {
+			if (COLS_MASK[i].equals(col))
+				return 1 << i;
+		}
+		return 0;
+	}
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+
+	/** URI for observations joined with their edits */
+	static public final Uri DELTA_URI = OurContentProvider.buildUri(
+		VIEW_NAME);
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of encoded segments of the observation log, for a device serving
+ * many peers.  A segment holds the rows of one scouter in a fixed range of
+ * observations, encoded and compressed once as a chunk, then sent as-is to
+ * every peer which needs it.  Each segment is stored in a file, checked
+ * against a fingerprint of its rows before use, and evicted least recently
+ * used.
+ */
+public class SegmentCache {
+
+	static private final String TAG = "SegmentCache";
+
+	/** Number of observations in one segment (so the rows of a segment
+	 * fit in one chunk) */
+	static public final int SEGMENT_OBS = ColumnarWriter.BATCH_SIZE;
+
+	/** Name of cache directory */
+	static private final String DIR_NAME = "segments";
+
+	/** Maximum total size of segment files (bytes) */
+	static private final long MAX_BYTES = 8 * 1024 * 1024;
+
+	/** Magic number at the start of segment files ("SEG2").  Changing
+	 * the chunk encoding requires a new one. */
+	static private final int MAGIC = 0x53454732;
+
+	/** Suffix of segment file names */
+	static private final String SUFFIX = ".seg";
+
+	/** Cache for the application (null if not initialized) */
+	static private SegmentCache instance;
+
+	/** Initialize the cache in a cache directory */
+	static public synchronized void init(File cache_dir) {
+		if (null == instance) {
+			instance = new SegmentCache(new File(cache_dir,
+				DIR_NAME));
+		}
+	}
+
+	/** Get the cache for the application (null if not initialized) */
+	static public synchronized SegmentCache getInstance() {
+		return instance;
+	}
+
+	/** Encoded segment */
+	static public class Segment {
+
+		/** Encoded chunk, with room for the chunk header */
+		public final byte[] chunk;
+
+		/** Number of rows */
+		public final int n_rows;
+
+		/** Raw (uncompressed) length */
+		public final int raw_len;
+
+		/** Fingerprint of rows (count, sum of observations and sum
+		 * of row IDs) */
+		public final long[] fingerprint;
+
+		public Segment(byte[] c, int n, int len, long[] fp) {
+			chunk = c;
+			n_rows = n;
+			raw_len = len;
+			fingerprint = fp;
+		}
+	}
+
+	/** Build the name of a segment.
+	 *
+	 * @param s Scouter ID.
+	 * @param k Segment number (observations above k * SEGMENT_OBS).
+	 * @param enc Encoding key (columnar format and codec).
+	 * @param filter WHERE clause limiting rows, or null. */
+	static public String buildName(int s, int k, String enc,
+		String filter)
+	{
+		String f = (filter != null)
+		         ? Integer.toHexString(filter.hashCode())
+		         : "all";
+		return s + "_" + k + "_" + enc + "_" + f;
+	}
+
+	/** Cache directory */
+	private final File dir;
+
+	/** Size of each segment file, least recently used first */
+	private final LinkedHashMap<String, Long> files =
+		new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/** Total size of segment files */
+	private long total = 0;
+
+	/** Number of lookups which found a segment */
+	private int n_hits = 0;
+
+	/** Number of lookups which missed */
+	private int n_misses = 0;
+
+	/** Create a segment cache, loading existing files in order of
+	 * last use */
+	SegmentCache(File d) {
+		dir = d;
+		dir.mkdirs();
+		File[] fl = dir.listFiles();
+		if (fl != null) {
+			Arrays.sort(fl, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long ma = a.lastModified();
+					long mb = b.lastModified();
+					return (ma < mb) ? -1 : (ma > mb) ? 1 : 0;
+				}
+			});
+			for (File f : fl) {
+				String fn = f.getName();
+				if (fn.endsWith(SUFFIX)) {
+					files.put(fn, f.length());
+					total += f.length();
+				} else
+					f.delete();
+			}
+		}
+		evict();
+		Log.d(TAG, "loaded " + files.size() + " segments, " + total +
+			" bytes");
+	}
+
+	/** Lookup a segment (null if it is missing or its rows changed) */
+	public Segment lookup(String name, String filter, long[] fp) {
+		String fn = name + SUFFIX;
+		synchronized (this) {
+			if (null == files.get(fn)) {
+				n_misses++;
+				return null;
+			}
+		}
+		File f = new File(dir, fn);
+		Segment seg = null;
+		try {
+			seg = read(f, filter);
+		}
+		catch (IOException e) {
+			Log.e(TAG, "read " + fn + ": " + e.getMessage());
+		}
+		synchronized (this) {
+			if (seg != null && Arrays.equals(seg.fingerprint, fp)) {
+				n_hits++;
+				f.setLastModified(System.currentTimeMillis());
+				return seg;
+			}
+			n_misses++;
+			return null;
+		}
+	}
+
+	/** Read a segment file */
+	private Segment read(File f, String filter) throws IOException {
+		DataInputStream dis = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (dis.readInt() != MAGIC)
+				throw new IOException("Bad magic");
+			String fl = dis.readUTF();
+			if (!fl.equals((filter != null) ? filter : ""))
+				return null;
+			long[] fp = new long[3];
+			for (int i = 0; i < fp.length; i++)
+				fp[i] = dis.readLong();
+			int n = dis.readInt();
+			int len = dis.readInt();
+			byte[] c = new byte[dis.readInt()];
+			dis.readFully(c);
+			return new Segment(c, n, len, fp);
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/** Store a segment, replacing any older one */
+	public void store(String name, String filter, Segment seg) {
+		String fn = name + SUFFIX;
+		File tmp;
+		try {
+			tmp = File.createTempFile(name, null, dir);
+		}
+		catch (IOException e) {
+			Log.e(TAG, "create " + fn + ": " + e.getMessage());
+			return;
+		}
+		try {
+			write(tmp, filter, seg);
+		}
+		catch (IOException e) {
+			Log.e(TAG, "write " + fn + ": " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+		long len = tmp.length();
+		synchronized (this) {
+			if (!tmp.renameTo(new File(dir, fn))) {
+				Log.e(TAG, "rename " + fn + " failed");
+				tmp.delete();
+				return;
+			}
+			Long old = files.put(fn, len);
+			if (old != null)
+				total -= old;
+			total += len;
+			evict();
+		}
+	}
+
+	/** Write a segment file */
+	private void write(File f, String filter, Segment seg)
+		throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeUTF((filter != null) ? filter : "");
+			for (long v : seg.fingerprint)
+				dos.writeLong(v);
+			dos.writeInt(seg.n_rows);
+			dos.writeInt(seg.raw_len);
+			dos.writeInt(seg.chunk.length);
+			dos.write(seg.chunk);
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	/** Evict least recently used segments until the cache fits */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> it =
+			files.entrySet().iterator();
+		while (total > MAX_BYTES && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			total -= e.getValue();
+			it.remove();
+			new File(dir, e.getKey()).delete();
+		}
+	}
+
+	/** Get a summary of cache use */
+	public synchronized String getUsage() {
+		return files.size() + " segments, " + total + " bytes, " +
+			n_hits + " hits, " + n_misses + " misses";
+	}
+}
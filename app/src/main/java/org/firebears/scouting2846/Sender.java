@@ -0,0 +1,76 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.IOException;
+
+/**
+ * Thread to send observations to a peer.
+ */
+abstract class Sender extends Thread {
+
+	private final SyncConnection conn;
+	private final ChunkWindow window;
+	private int n_sent = 0;
+	private IOException error;
+
+	/** Create a sender */
+	Sender(SyncConnection c, ChunkWindow w) {
+		super("SyncSender");
+		conn = c;
+		window = w;
+	}
+
+	/** Send observations (returns number sent) */
+	abstract protected int send() throws IOException;
+
+	@Override
+	public void run() {
+		try {
+			n_sent = send();
+		}
+		catch (IOException e) {
+			error = e;
+			if (window != null)
+				window.abort();
+			Marshaller.closeQuietly(conn);
+		}
+	}
+
+	/** Wait for the sender to finish (returns number sent) */
+	int finish() throws IOException {
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error != null)
+			throw error;
+		return n_sent;
+	}
+}
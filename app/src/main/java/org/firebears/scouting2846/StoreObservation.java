@@ -23,6 +23,7 @@ package org.firebears.scouting2846;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.os.AsyncTask;
 
 /**
@@ -45,7 +46,13 @@ public class StoreObservation extends AsyncTask<Void, Void, Void> {
 
 	@Override
 	protected Void doInBackground(Void... v) {
+		// Report the change first, so a session which is running
+		// while this is inserted does not count it as sent
+		SyncScheduler.getInstance(context).changed();
 		insert(context.getContentResolver());
+		// Wake sync servers which shut down while idle
+		context.startService(new Intent(context,
+			BluetoothSyncService.class));
 		return null;
 	}
 
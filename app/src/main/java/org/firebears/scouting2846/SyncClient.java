@@ -0,0 +1,70 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * Client side of a sync session with a peer.
+ */
+public class SyncClient {
+
+	static private final String TAG = "SyncClient";
+
+	/** Sync with a peer (returns number of observations exchanged) */
+	static public int syncWithPeer(ContentResolver cr, SyncTransport t,
+		String address) throws IOException
+	{
+		return syncWithPeer(cr, t, address, false);
+	}
+
+	/** Sync with a peer, optionally repairing differences below the
+	 * watermarks (returns number of observations exchanged) */
+	static public int syncWithPeer(ContentResolver cr, SyncTransport t,
+		String address, boolean repair) throws IOException
+	{
+		Log.d(TAG, "connect: " + t.getName() + " " + address);
+		SyncStats st = new SyncStats(t.getName(), address,
+			SyncStats.ROLE_CLIENT);
+		try {
+			SyncConnection c = t.connect(address);
+			try {
+				int n = Marshaller.syncObservations(cr, c,
+					repair, st);
+				Log.d(TAG, "complete: " + address);
+				return n;
+			}
+			finally {
+				c.close();
+			}
+		}
+		catch (IOException e) {
+			st.fail(e);
+			throw e;
+		}
+		finally {
+			st.store(cr);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/**
+ * DB stuff for sync cursors.  A cursor remembers, for one peer instance,
+ * the watermarks both devices had after the last successful session, so
+ * a repeat session can start sending without waiting for the peer's
+ * summary.  Both devices derive the same token from the two summaries
+ * of that session, so a peer resuming with a different token (or none)
+ * shows that the cursors are out of step.
+ *
+ * The peer's instance is only known from its summary, so the cursor is
+ * found by the address it was last stored from.  An address shared by
+ * more than one peer finds no cursor.  A cursor found for the wrong peer
+ * has a token the peer cannot match, so the session repairs.
+ */
+public class SyncCursor implements BaseColumns {
+
+	static public final String TABLE_NAME = "sync_cursor";
+	static public final String COL_ID = "_id";
+	static public final String COL_PEER = "peer";
+	static public final String COL_INSTANCE = "instance";
+	static public final String COL_TOKEN = "token";
+	static public final String COL_FORMAT = "format";
+	static public final String COL_CODECS = "codecs";
+	static public final String COL_WATERMARKS = "watermarks";
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+
+	static private final String[] COLS = {
+		COL_INSTANCE, COL_TOKEN, COL_FORMAT, COL_CODECS,
+		COL_WATERMARKS,
+	};
+
+	/** WHERE clause to select a cursor by peer address */
+	static private final String WHERE_PEER = COL_PEER + "=?";
+
+	/** WHERE clause to select a cursor by peer instance */
+	static private final String WHERE_INSTANCE = COL_INSTANCE + "=?";
+
+	/** Lookup the cursor for a peer address (null if none, or if more
+	 * than one peer instance used the address) */
+	static public SyncCursor lookup(ContentResolver cr, String peer)
+		throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, COLS, WHERE_PEER,
+			new String[] { peer }, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			if (c.getCount() != 1 || !c.moveToFirst())
+				return null;
+			return new SyncCursor(c.getInt(0), c.getLong(1),
+				c.getString(2), parseCodecs(c.getString(3)),
+				parseWatermarks(c.getString(4)));
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Delete the cursor for a peer instance */
+	static public void delete(ContentResolver cr, int inst) {
+		cr.delete(CONTENT_URI, WHERE_INSTANCE, new String[] {
+			Integer.toString(inst) });
+	}
+
+	/** Create a cursor from the summaries of a session */
+	static public SyncCursor create(int inst, HashMap<Integer, Integer> mine,
+		int peer_inst, HashMap<Integer, Integer> theirs, String f,
+		HashSet<String> cn) throws IOException
+	{
+		TreeMap<Integer, Integer> wm = new TreeMap<Integer, Integer>(
+			mine);
+		for (Integer s : theirs.keySet()) {
+			Integer o = wm.get(s);
+			if (null == o || o < theirs.get(s))
+				wm.put(s, theirs.get(s));
+		}
+		String w = formatWatermarks(wm);
+		return new SyncCursor(peer_inst, buildToken(inst, peer_inst, w),
+			f, cn, new HashMap<Integer, Integer>(wm));
+	}
+
+	/** Build a token from both instances and merged watermarks.  The
+	 * instances are sorted, so both peers get the same token. */
+	static private long buildToken(int a, int b, String w)
+		throws IOException
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			String t = Math.min(a, b) + " " + Math.max(a, b) + " " +
+				w;
+			byte[] d = md.digest(t.getBytes("UTF-8"));
+			long token = 0;
+			for (int i = 0; i < 8; i++)
+				token = (token << 8) | (d[i] & 0xFF);
+			return token;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/** Format watermarks as "scouter:observation" pairs */
+	static private String formatWatermarks(TreeMap<Integer, Integer> wm) {
+		StringBuilder sb = new StringBuilder();
+		for (Integer s : wm.keySet()) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(s).append(':').append(wm.get(s));
+		}
+		return sb.toString();
+	}
+
+	/** Parse watermarks from "scouter:observation" pairs */
+	static private HashMap<Integer, Integer> parseWatermarks(String w)
+		throws IOException
+	{
+		HashMap<Integer, Integer> wm = new HashMap<Integer, Integer>();
+		try {
+			for (String p : w.split(" ")) {
+				int i = p.indexOf(':');
+				if (i > 0) {
+					wm.put(Integer.parseInt(p.substring(0,
+						i)), Integer.parseInt(
+						p.substring(i + 1)));
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Bad watermarks: " + w);
+		}
+		return wm;
+	}
+
+	/** Parse space-separated codec names */
+	static private HashSet<String> parseCodecs(String cn) {
+		HashSet<String> names = new HashSet<String>();
+		for (String n : cn.split(" ")) {
+			if (n.length() > 0)
+				names.add(n);
+		}
+		return names;
+	}
+
+	/** Instance ID of the peer */
+	public final int instance;
+
+	/** Token of the session */
+	public final long token;
+
+	/** Format for sending to the peer */
+	public final String format;
+
+	/** Codecs the peer supports */
+	public final HashSet<String> codecs;
+
+	/** Watermarks of both devices after the session */
+	public final HashMap<Integer, Integer> watermarks;
+
+	private SyncCursor(int i, long t, String f, HashSet<String> cn,
+		HashMap<Integer, Integer> wm)
+	{
+		instance = i;
+		token = t;
+		format = f;
+		codecs = cn;
+		watermarks = wm;
+	}
+
+	/** Store the cursor for a peer instance, replacing any previous
+	 * one, with the address it was reached at */
+	public void store(ContentResolver cr, String peer) {
+		StringBuilder cn = new StringBuilder();
+		for (String n : codecs) {
+			if (cn.length() > 0)
+				cn.append(' ');
+			cn.append(n);
+		}
+		ContentValues cv = new ContentValues();
+		cv.put(COL_PEER, peer);
+		cv.put(COL_INSTANCE, instance);
+		cv.put(COL_TOKEN, token);
+		cv.put(COL_FORMAT, format);
+		cv.put(COL_CODECS, cn.toString());
+		cv.put(COL_WATERMARKS, formatWatermarks(
+			new TreeMap<Integer, Integer>(watermarks)));
+		cr.insert(CONTENT_URI, cv);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * DB stuff for events selected for sync.  If any events are selected,
+ * only observations for those events are requested from peers; otherwise
+ * all observations are synced.
+ */
+public class SyncEvent implements BaseColumns {
+
+	static public final String TABLE_NAME = "sync_event";
+	static public final String COL_ID = "_id";
+	static public final String COL_EVENT_KEY = "event_key";
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+
+	/** Lookup selected events (empty if all events are synced) */
+	static public TreeSet<String> lookup(ContentResolver cr)
+		throws IOException
+	{
+		Cursor c = cr.query(CONTENT_URI, new String[] { COL_EVENT_KEY },
+			null, null, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		TreeSet<String> events = new TreeSet<String>();
+		try {
+			while (c.moveToNext())
+				events.add(c.getString(0));
+		}
+		finally {
+			c.close();
+		}
+		return events;
+	}
+
+	/** Build WHERE clause selecting observations for some events (null
+	 * if empty) */
+	static public String buildWhere(Collection<String> events) {
+		if (events.isEmpty())
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (String e : events) {
+			sb.append((sb.length() > 0) ? "," : COL_EVENT_KEY +
+				" IN (");
+			sb.append('\'').append(e.replace("'", "''"));
+			sb.append('\'');
+		}
+		return sb.append(')').toString();
+	}
+
+	/** Select events to sync (empty to sync all events) */
+	static public void select(ContentResolver cr,
+		Collection<String> events)
+	{
+		cr.delete(CONTENT_URI, null, null);
+		for (String e : events) {
+			ContentValues cv = new ContentValues();
+			cv.put(COL_EVENT_KEY, e);
+			cr.insert(CONTENT_URI, cv);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * DB stuff for sync session log.
+ */
+public class SyncLog implements BaseColumns {
+
+	static public final String TABLE_NAME = "sync_log";
+	static public final String TRIGGER_NAME = TABLE_NAME + "_prune";
+	static public final String COL_ID = "_id";
+	static public final String COL_STARTED = "started";
+	static public final String COL_TRANSPORT = "transport";
+	static public final String COL_PEER = "peer";
+	static public final String COL_ROLE = "role";
+	static public final String COL_FORMAT = "format";
+	static public final String COL_TOTAL_MS = "total_ms";
+	static public final String COL_SUMMARY_MS = "summary_ms";
+	static public final String COL_SEND_MS = "send_ms";
+	static public final String COL_RECV_MS = "recv_ms";
+	static public final String COL_APPLY_MS = "apply_ms";
+	static public final String COL_WRITE_MS = "write_ms";
+	static public final String COL_READ_MS = "read_ms";
+	static public final String COL_ROWS_SENT = "rows_sent";
+	static public final String COL_ROWS_RECV = "rows_recv";
+	static public final String COL_ROWS_PER_SEC = "rows_per_sec";
+	static public final String COL_RAW_SENT = "raw_sent";
+	static public final String COL_RAW_RECV = "raw_recv";
+	static public final String COL_WIRE_SENT = "wire_sent";
+	static public final String COL_WIRE_RECV = "wire_recv";
+	static public final String COL_FAILURE = "failure";
+
+	/** Maximum number of sessions to keep */
+	static public final int MAX_ROWS = 500;
+
+	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
+		TABLE_NAME);
+}
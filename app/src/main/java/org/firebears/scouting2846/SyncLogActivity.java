@@ -0,0 +1,212 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.app.LoaderManager.LoaderCallbacks;
+import android.content.CursorLoader;
+import android.content.Loader;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.text.format.DateFormat;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+import java.util.Date;
+
+/**
+ * An activity showing the sync session log.
+ */
+public class SyncLogActivity extends AppCompatActivity {
+
+	/** Loader ID */
+	static private final int SYNC_LOG_LOADER_ID = 52;
+
+	/** Columns to retrieve from the loader (and to export) */
+	static final String[] COLS = {
+		SyncLog.COL_ID,
+		SyncLog.COL_STARTED,
+		SyncLog.COL_TRANSPORT,
+		SyncLog.COL_PEER,
+		SyncLog.COL_ROLE,
+		SyncLog.COL_FORMAT,
+		SyncLog.COL_TOTAL_MS,
+		SyncLog.COL_SUMMARY_MS,
+		SyncLog.COL_SEND_MS,
+		SyncLog.COL_RECV_MS,
+		SyncLog.COL_APPLY_MS,
+		SyncLog.COL_WRITE_MS,
+		SyncLog.COL_READ_MS,
+		SyncLog.COL_ROWS_SENT,
+		SyncLog.COL_ROWS_RECV,
+		SyncLog.COL_ROWS_PER_SEC,
+		SyncLog.COL_RAW_SENT,
+		SyncLog.COL_RAW_RECV,
+		SyncLog.COL_WIRE_SENT,
+		SyncLog.COL_WIRE_RECV,
+		SyncLog.COL_FAILURE,
+	};
+
+	/** Columns bound to views */
+	static private final String[] BIND_COLS = {
+		SyncLog.COL_STARTED,
+		SyncLog.COL_TOTAL_MS,
+	};
+
+	/** Sort order (newest first) */
+	static private final String ORDER = SyncLog.COL_ID + " DESC";
+
+	/** Cursor adapter */
+	private SimpleCursorAdapter adapter;
+
+	/** Callbacks for loader */
+	private final LoaderCallbacks<Cursor> cb =
+		new LoaderCallbacks<Cursor>()
+	{
+		@Override
+		public Loader<Cursor> onCreateLoader(int id, Bundle b) {
+			return (SYNC_LOG_LOADER_ID == id)
+			      ? createLoader(b)
+			      :	null;
+		}
+		@Override
+		public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+			adapter.swapCursor(data);
+		}
+		@Override
+		public void onLoaderReset(Loader<Cursor> loader) {
+			adapter.swapCursor(null);
+		}
+	};
+
+	/** Create a loader for the sync log */
+	private Loader<Cursor> createLoader(Bundle b) {
+		return new CursorLoader(SyncLogActivity.this,
+			SyncLog.CONTENT_URI, COLS, null, null, ORDER);
+	}
+
+	/** View binder to format sync log entries */
+	private final SimpleCursorAdapter.ViewBinder binder =
+		new SimpleCursorAdapter.ViewBinder()
+	{
+		@Override
+		public boolean setViewValue(View v, Cursor c, int col) {
+			TextView tv = (TextView) v;
+			if (R.id.sync_title == v.getId())
+				tv.setText(formatTitle(c));
+			else
+				tv.setText(formatDetail(c));
+			return true;
+		}
+	};
+
+	/** Format the title of a sync log entry */
+	private String formatTitle(Cursor c) {
+		Date d = new Date(getLong(c, SyncLog.COL_STARTED));
+		String t = DateFormat.getDateFormat(this).format(d) + ' ' +
+			DateFormat.getTimeFormat(this).format(d);
+		return getString(R.string.sync_log_title, t,
+			getStr(c, SyncLog.COL_ROLE),
+			getStr(c, SyncLog.COL_TRANSPORT),
+			getStr(c, SyncLog.COL_PEER));
+	}
+
+	/** Format the details of a sync log entry */
+	private String formatDetail(Cursor c) {
+		String d = getString(R.string.sync_log_detail,
+			getLong(c, SyncLog.COL_ROWS_SENT),
+			getLong(c, SyncLog.COL_ROWS_RECV),
+			getLong(c, SyncLog.COL_ROWS_PER_SEC),
+			getStr(c, SyncLog.COL_FORMAT),
+			getLong(c, SyncLog.COL_TOTAL_MS),
+			getLong(c, SyncLog.COL_SUMMARY_MS),
+			getLong(c, SyncLog.COL_SEND_MS),
+			getLong(c, SyncLog.COL_RECV_MS),
+			getLong(c, SyncLog.COL_APPLY_MS),
+			getLong(c, SyncLog.COL_WRITE_MS),
+			getLong(c, SyncLog.COL_READ_MS),
+			getLong(c, SyncLog.COL_RAW_SENT),
+			getLong(c, SyncLog.COL_RAW_RECV),
+			getLong(c, SyncLog.COL_WIRE_SENT),
+			getLong(c, SyncLog.COL_WIRE_RECV));
+		String f = getStr(c, SyncLog.COL_FAILURE);
+		return (f != null)
+		      ? d + '\n' + getString(R.string.sync_log_failed, f)
+		      : d;
+	}
+
+	static private long getLong(Cursor c, String col) {
+		return c.getLong(c.getColumnIndex(col));
+	}
+
+	static private String getStr(Cursor c, String col) {
+		return c.getString(c.getColumnIndex(col));
+	}
+
+	@Override
+	public void onCreate(final Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.sync_log_activity);
+		Toolbar bar = (Toolbar) findViewById(R.id.toolbar);
+		setSupportActionBar(bar);
+		ActionBar ab = getSupportActionBar();
+		if (ab != null)
+			ab.setDisplayHomeAsUpEnabled(true);
+		int[] cols = new int[] { R.id.sync_title, R.id.sync_detail };
+		adapter = new SimpleCursorAdapter(this,
+			R.layout.sync_log_entry, null, BIND_COLS, cols, 0);
+		adapter.setViewBinder(binder);
+		ListView lv = (ListView) findViewById(R.id.sync_log_list);
+		lv.setAdapter(adapter);
+		getLoaderManager().initLoader(SYNC_LOG_LOADER_ID, null, cb);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.sync_log_menu, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (android.R.id.home == item.getItemId()) {
+			onBackPressed();
+			return true;
+		} else if (R.id.action_export == item.getItemId())
+			return onExportSelected();
+		else
+			return super.onOptionsItemSelected(item);
+	}
+
+	/** Export the sync log as CSV */
+	private boolean onExportSelected() {
+		new ExportSyncLog(this).execute();
+		return true;
+	}
+}
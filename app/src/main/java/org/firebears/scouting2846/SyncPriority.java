@@ -0,0 +1,140 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Priority order for sending observations to a peer.  Observations for
+ * the current event come first, then observations of teams in our
+ * upcoming matches, then all the rest.  The current event is the one with
+ * the match nearest to now.
+ */
+public class SyncPriority {
+
+	static private final String TAG = "SyncPriority";
+
+	/** Time since a match started to still count it as upcoming (sec) */
+	static private final int MATCH_SLACK_SEC = 10 * 60;
+
+	/** Columns for alliance teams of a match */
+	static private final String[] COLS_TEAMS = {
+		Match.COL_RED_0, Match.COL_RED_1, Match.COL_RED_2,
+		Match.COL_BLUE_0, Match.COL_BLUE_1, Match.COL_BLUE_2,
+	};
+
+	/** Lookup priority tiers.  Each tier is a WHERE clause on the
+	 * scouting table; together they select every row exactly once, and
+	 * the last tier is null if there is no priority. */
+	static public ArrayList<String> lookupTiers(ContentResolver cr)
+		throws IOException
+	{
+		long now = System.currentTimeMillis() / 1000;
+		ArrayList<String> tiers = new ArrayList<String>();
+		String rest = null;
+		String event = lookupCurrentEvent(cr, now);
+		if (event != null) {
+			tiers.add(Scouting2017.COL_EVENT_KEY + '=' +
+				quote(event));
+			// Rows without an event are in the rest
+			rest = Scouting2017.COL_EVENT_KEY + " IS NOT " +
+				quote(event);
+			TreeSet<String> teams = lookupUpcomingTeams(cr, event,
+				now);
+			if (!teams.isEmpty()) {
+				String tm = Scouting2017.COL_TEAM_KEY + " IN " +
+					buildList(teams);
+				tiers.add(rest + " AND " + tm);
+				rest = rest + " AND NOT " + tm;
+			}
+		}
+		tiers.add(rest);
+		Log.d(TAG, "event: " + event + ", tiers: " + tiers.size());
+		return tiers;
+	}
+
+	/** Lookup the event key with the match nearest to now */
+	static private String lookupCurrentEvent(ContentResolver cr,
+		long now) throws IOException
+	{
+		Cursor c = cr.query(Match.CONTENT_URI, new String[] {
+			Match.COL_EVENT_KEY }, Match.COL_TIME + ">0", null,
+			"ABS(" + Match.COL_TIME + '-' + now + ") LIMIT 1");
+		if (null == c)
+			throw new IOException("No cursor");
+		try {
+			return c.moveToFirst() ? c.getString(0) : null;
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Lookup teams in our upcoming matches at an event */
+	static private TreeSet<String> lookupUpcomingTeams(ContentResolver cr,
+		String event, long now) throws IOException
+	{
+		String where = Match.COL_EVENT_KEY + "=? AND " +
+			Match.COL_TIME + ">=" + (now - MATCH_SLACK_SEC) +
+			" AND ? IN (" + Match.COL_RED_0 + ',' +
+			Match.COL_RED_1 + ',' + Match.COL_RED_2 + ',' +
+			Match.COL_BLUE_0 + ',' + Match.COL_BLUE_1 + ',' +
+			Match.COL_BLUE_2 + ')';
+		Cursor c = cr.query(Match.CONTENT_URI, COLS_TEAMS, where,
+			new String[] { event, Team.OUR_KEY }, null);
+		if (null == c)
+			throw new IOException("No cursor");
+		TreeSet<String> teams = new TreeSet<String>();
+		try {
+			while (c.moveToNext()) {
+				for (int i = 0; i < COLS_TEAMS.length; i++) {
+					if (!c.isNull(i))
+						teams.add(c.getString(i));
+				}
+			}
+		}
+		finally {
+			c.close();
+		}
+		return teams;
+	}
+
+	/** Build a list of quoted strings for an IN clause */
+	static private String buildList(TreeSet<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String v : values) {
+			sb.append((sb.length() > 0) ? ',' : '(');
+			sb.append(quote(v));
+		}
+		return sb.append(')').toString();
+	}
+
+	/** Quote a string literal for SQL */
+	static private String quote(String v) {
+		return "'" + v.replace("'", "''") + "'";
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * Scheduler to sync local changes with the lead device in the background.
+ *
+ * A burst of changes is coalesced into one session, started a short time
+ * after the first change.  Failed sessions are retried with exponential
+ * backoff.  The sum of all scouter watermarks only grows when rows are
+ * added, so when it matches the sum from the last successful session
+ * there is nothing new to send and no connection is made.
+ */
+public class SyncScheduler {
+
+	static private final String TAG = "SyncScheduler";
+
+	/** Delay to coalesce changes into one session (ms) */
+	static private final long COALESCE_MS = 10 * 1000;
+
+	/** Initial retry delay after a failed session (ms) */
+	static private final long MIN_BACKOFF_MS = 15 * 1000;
+
+	/** Maximum retry delay after a failed session (ms) */
+	static private final long MAX_BACKOFF_MS = 60 * 1000;
+
+	/** WHERE clause to select the lead device */
+	static private final String WHERE_LEAD = SyncPeer.COL_LEAD + "=1";
+
+	/** WHERE clause to select a peer by address */
+	static private final String WHERE_ADDRESS = SyncPeer.COL_ADDRESS +
+		"=?";
+
+	static private final String[] COLS_LEAD = {
+		SyncPeer.COL_ADDRESS, SyncPeer.COL_SYNCED,
+	};
+
+	static private final String[] COLS_SUM = {
+		"TOTAL(" + ScouterWatermark.COL_OBSERVATION + ")",
+	};
+
+	/** Scheduler for the application */
+	static private SyncScheduler instance;
+
+	/** Get the scheduler for the application */
+	static public synchronized SyncScheduler getInstance(Context ctx) {
+		if (null == instance) {
+			instance = new SyncScheduler(ctx.getApplicationContext()
+				.getContentResolver(), new RfcommTransport(
+				BluetoothAdapter.getDefaultAdapter()));
+		}
+		return instance;
+	}
+
+	/** Content resolver */
+	private final ContentResolver cr;
+
+	/** Transport to reach the lead device */
+	private final SyncTransport transport;
+
+	/** Handler for the scheduler thread */
+	private final Handler handler;
+
+	/** Flag indicating a session is scheduled */
+	private boolean pending = false;
+
+	/** Number of changes reported */
+	private int n_changes = 0;
+
+	/** Current retry delay (ms), or 0 after success */
+	private long backoff = 0;
+
+	/** Task to run one session */
+	private final Runnable task = new Runnable() {
+		public void run() {
+			synchronized (SyncScheduler.this) {
+				pending = false;
+			}
+			doSync();
+		}
+	};
+
+	/** Create a sync scheduler */
+	public SyncScheduler(ContentResolver r, SyncTransport t) {
+		cr = r;
+		transport = t;
+		HandlerThread ht = new HandlerThread(TAG);
+		ht.start();
+		handler = new Handler(ht.getLooper());
+	}
+
+	/** Report a local change (new observation) */
+	public void changed() {
+		synchronized (this) {
+			n_changes++;
+		}
+		schedule(COALESCE_MS);
+	}
+
+	/** Schedule a session, unless one is already scheduled */
+	private void schedule(long delay) {
+		synchronized (this) {
+			if (pending)
+				return;
+			pending = true;
+		}
+		handler.postDelayed(task, delay);
+	}
+
+	/** Designate the lead device and schedule a session with it */
+	public void setLead(final String address) {
+		handler.post(new Runnable() {
+			public void run() {
+				storeLead(address);
+			}
+		});
+		changed();
+	}
+
+	/** Store the lead device */
+	private void storeLead(String address) {
+		ContentValues cv = new ContentValues();
+		cv.put(SyncPeer.COL_LEAD, 0);
+		cr.update(SyncPeer.CONTENT_URI, cv, null, null);
+		cv.put(SyncPeer.COL_ADDRESS, address);
+		cv.put(SyncPeer.COL_LEAD, 1);
+		cr.insert(SyncPeer.CONTENT_URI, cv);
+		Log.d(TAG, "lead: " + address);
+	}
+
+	/** Sync with the lead device, if anything changed */
+	private void doSync() {
+		try {
+			Cursor c = cr.query(SyncPeer.CONTENT_URI, COLS_LEAD,
+				WHERE_LEAD, null, null);
+			try {
+				if (null == c)
+					throw new IOException("No cursor");
+				if (c.moveToFirst())
+					doSync(c.getString(0), c.getLong(1));
+				else
+					Log.d(TAG, "no lead device");
+			}
+			finally {
+				if (c != null)
+					c.close();
+			}
+			backoff = 0;
+		}
+		catch (IOException e) {
+			backoff = (0 == backoff)
+			        ? MIN_BACKOFF_MS
+			        : Math.min(backoff * 2, MAX_BACKOFF_MS);
+			Log.e(TAG, "sync failed: " + e.getMessage() +
+				", retry in " + backoff + " ms");
+			schedule(backoff);
+		}
+	}
+
+	/** Sync with the lead device, if watermarks changed since the last
+	 * successful session */
+	private void doSync(String address, long synced) throws IOException {
+		// Snapshot before the first sum, so a change counted after it
+		// is never taken as sent
+		int changes;
+		synchronized (this) {
+			changes = n_changes;
+		}
+		long sum = lookupWatermarkSum();
+		if (sum == synced) {
+			Log.d(TAG, "no changes for " + address);
+			return;
+		}
+		if (!transport.isAvailable())
+			throw new IOException("Transport not available");
+		SyncClient.syncWithPeer(cr, transport, address);
+		// Rows received from the lead are not new to it, but local
+		// changes made during the session may not have been sent
+		synchronized (this) {
+			if (changes == n_changes)
+				sum = lookupWatermarkSum();
+		}
+		storeSynced(address, sum);
+	}
+
+	/** Lookup the sum of all scouter watermarks */
+	private long lookupWatermarkSum() throws IOException {
+		Cursor c = cr.query(ScouterWatermark.CONTENT_URI, COLS_SUM,
+			null, null, null);
+		try {
+			if (c != null && c.moveToFirst())
+				return c.getLong(0);
+			else
+				throw new IOException("No cursor");
+		}
+		finally {
+			if (c != null)
+				c.close();
+		}
+	}
+
+	/** Store the watermark sum after a successful session */
+	private void storeSynced(String address, long sum) {
+		ContentValues cv = new ContentValues();
+		cv.put(SyncPeer.COL_SYNCED, sum);
+		cv.put(SyncPeer.COL_LAST_SYNC, System.currentTimeMillis());
+		cr.update(SyncPeer.CONTENT_URI, cv, WHERE_ADDRESS,
+			new String[] { address });
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server which accepts sync connections on one transport.
+ *
+ * Errors are retried with exponential backoff.  The server thread exits
+ * when the transport is unavailable, or when no peer connects within the
+ * idle period after it starts; it is restarted by wake(), on an adapter
+ * state change or a local write.  Once a peer has connected, it keeps
+ * listening, since other devices depend on this one to serve them.  While
+ * idle it blocks, waking up once per idle period at most.
+ */
+public class SyncServer {
+
+	static private final String TAG = "SyncServer";
+
+	/** Initial delay before retrying after an error (ms) */
+	static private final long MIN_BACKOFF_MS = 1000;
+
+	/** Maximum delay before retrying after an error (ms) */
+	static private final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+	/** Handler for accepted connections */
+	public interface SessionHandler {
+
+		/** Handle a connection (must not block) */
+		void handle(SyncTransport t, SyncConnection c);
+	}
+
+	/** Transport to accept connections */
+	private final SyncTransport transport;
+
+	/** Handler for accepted connections */
+	private final SessionHandler handler;
+
+	/** Time without a connection before shutting down (ms) */
+	private final int idle_ms;
+
+	/** Server thread, or null when stopped */
+	private Thread thread;
+
+	/** Current listener, or null */
+	private SyncListener listener;
+
+	/** Flag indicating the server was stopped for good */
+	private boolean stopped = false;
+
+	/** Flag indicating wake() was called */
+	private boolean woken = false;
+
+	/** Flag indicating a peer connected since the thread started */
+	private boolean serving = false;
+
+	/** Current retry delay (ms), or 0 after success */
+	private long backoff = 0;
+
+	/** Number of times the server thread woke up */
+	private int n_wakeups = 0;
+
+	/** Number of errors */
+	private int n_errors = 0;
+
+	/** Number of accepted connections */
+	private int n_accepted = 0;
+
+	/** Number of times the server thread was started */
+	private int n_starts = 0;
+
+	/** Create a sync server */
+	public SyncServer(SyncTransport t, SessionHandler h, int idle) {
+		transport = t;
+		handler = h;
+		idle_ms = idle;
+	}
+
+	/** Wake the server, starting it if needed and cutting short any
+	 * retry delay */
+	public synchronized void wake() {
+		if (stopped)
+			return;
+		woken = true;
+		notifyAll();
+		if (null == thread) {
+			n_starts++;
+			thread = new Thread("SyncServer-" + transport.getName()) {
+				public void run() {
+					doRun();
+				}
+			};
+			thread.start();
+		}
+	}
+
+	/** Stop the server for good, closing the listener */
+	public void stop() {
+		SyncListener l;
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+			l = listener;
+		}
+		if (l != null)
+			closeQuietly(l);
+	}
+
+	/** Get a summary of server counters */
+	public synchronized String getCounters() {
+		return transport.getName() + ": " + n_starts + " starts, " +
+			n_wakeups + " wakeups, " + n_errors + " errors, " +
+			n_accepted + " accepted";
+	}
+
+	/** Get the number of times the server thread woke up */
+	public synchronized int getWakeups() {
+		return n_wakeups;
+	}
+
+	/** Run the server thread until idle or stopped */
+	private void doRun() {
+		Log.d(TAG, transport.getName() + " started");
+		try {
+			while (isRunning() && transport.isAvailable()) {
+				try {
+					if (!doListen())
+						break;
+				}
+				catch (IOException e) {
+					if (!isRunning())
+						break;
+					Log.e(TAG, transport.getName() +
+						" exception: " + e.getMessage());
+					waitBackoff();
+				}
+			}
+		}
+		finally {
+			synchronized (this) {
+				thread = null;
+				serving = false;
+				// A wake during shutdown restarts the thread
+				if (woken && !stopped)
+					wake();
+			}
+		}
+		Log.d(TAG, transport.getName() + " stopped, " + getCounters());
+	}
+
+	/** Check if the server should keep running (clears woken flag) */
+	private synchronized boolean isRunning() {
+		woken = false;
+		return !stopped;
+	}
+
+	/** Listen and accept connections (returns false when idle) */
+	private boolean doListen() throws IOException {
+		SyncListener l = transport.listen();
+		synchronized (this) {
+			if (stopped) {
+				closeQuietly(l);
+				return false;
+			}
+			listener = l;
+		}
+		try {
+			while (true) {
+				SyncConnection c = l.accept(idle_ms);
+				synchronized (this) {
+					n_wakeups++;
+					if (stopped) {
+						if (c != null)
+							closeQuietly(c);
+						return false;
+					}
+					if (null == c) {
+						if (serving &&
+						    transport.isAvailable())
+							continue;
+						Log.d(TAG, transport.getName() +
+							" idle");
+						return false;
+					}
+					n_accepted++;
+					serving = true;
+					backoff = 0;
+				}
+				handler.handle(transport, c);
+			}
+		}
+		finally {
+			synchronized (this) {
+				listener = null;
+			}
+			closeQuietly(l);
+		}
+	}
+
+	/** Wait before retrying after an error */
+	private synchronized void waitBackoff() {
+		n_errors++;
+		backoff = (0 == backoff)
+		        ? MIN_BACKOFF_MS
+		        : Math.min(backoff * 2, MAX_BACKOFF_MS);
+		long end = System.currentTimeMillis() + backoff;
+		long ms = backoff;
+		while (!stopped && !woken && ms > 0) {
+			try {
+				wait(ms);
+			}
+			catch (InterruptedException e) {
+				stopped = true;
+				Thread.currentThread().interrupt();
+			}
+			n_wakeups++;
+			ms = end - System.currentTimeMillis();
+		}
+		if (woken)
+			backoff = 0;
+	}
+
+	/** Close a listener or connection, ignoring errors */
+	static private void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		}
+		catch (IOException e) {
+			Log.e(TAG, "close exception: " + e.getMessage());
+		}
+	}
+}
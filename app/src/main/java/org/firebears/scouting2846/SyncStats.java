@@ -0,0 +1,172 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+/**
+ * Statistics for one sync session, stored in the sync log.
+ */
+public class SyncStats {
+
+	static private final String TAG = "SyncStats";
+
+	/** Role of a session which connected to a peer */
+	static public final String ROLE_CLIENT = "client";
+
+	/** Role of a session accepted from a peer */
+	static public final String ROLE_SERVER = "server";
+
+	/** Session start time */
+	private final long started = System.currentTimeMillis();
+
+	/** Transport name */
+	private final String transport;
+
+	/** Peer address */
+	private final String peer;
+
+	/** Session role */
+	private final String role;
+
+	/** Format of extra observations */
+	private String format;
+
+	/** Cause of failure (null on success) */
+	private String failure;
+
+	/** Phase timings (ms) */
+	private long summary_ms, send_ms, recv_ms;
+
+	/** Time spent inserting observations (ns) */
+	private long apply_ns;
+
+	/** Time blocked writing / reading the connection (ms) */
+	private long write_ms, read_ms;
+
+	/** Observations sent / received */
+	private int rows_sent, rows_recv;
+
+	/** Uncompressed observation bytes sent / received */
+	private long raw_sent, raw_recv;
+
+	/** Bytes sent / received on the connection */
+	private long wire_sent, wire_recv;
+
+	/** Create sync session statistics */
+	public SyncStats(String t, String p, String r) {
+		transport = t;
+		peer = p;
+		role = r;
+	}
+
+	/** Get milliseconds since session start */
+	private long elapsed() {
+		return System.currentTimeMillis() - started;
+	}
+
+	/** Set the format of extra observations */
+	public synchronized void setFormat(String f) {
+		format = f;
+	}
+
+	/** Mark the summary exchange complete */
+	public synchronized void summaryDone() {
+		summary_ms = elapsed();
+	}
+
+	/** Add observations sent */
+	public synchronized void sent(int rows, long raw) {
+		rows_sent += rows;
+		raw_sent += raw;
+	}
+
+	/** Add observations received */
+	public synchronized void received(int rows, long raw) {
+		rows_recv += rows;
+		raw_recv += raw;
+	}
+
+	/** Set the time spent sending extra observations */
+	public synchronized void setSendMillis(long ms) {
+		send_ms = ms;
+	}
+
+	/** Set the time spent receiving extra observations */
+	public synchronized void setRecvMillis(long ms) {
+		recv_ms = ms;
+	}
+
+	/** Add time spent inserting observations */
+	public synchronized void addApplyNanos(long ns) {
+		apply_ns += ns;
+	}
+
+	/** Set connection totals */
+	public synchronized void setWire(MeteredOutputStream os,
+		MeteredInputStream is)
+	{
+		wire_sent = os.getBytes();
+		write_ms = os.getMillis();
+		wire_recv = is.getBytes();
+		read_ms = is.getMillis();
+	}
+
+	/** Record the cause of a failed session */
+	public synchronized void fail(Exception e) {
+		failure = e.getClass().getSimpleName() + ": " + e.getMessage();
+	}
+
+	/** Store the session in the sync log */
+	public synchronized void store(ContentResolver cr) {
+		long total_ms = Math.max(1, elapsed());
+		long rate = (rows_sent + rows_recv) * 1000L / total_ms;
+		ContentValues cv = new ContentValues();
+		cv.put(SyncLog.COL_STARTED, started);
+		cv.put(SyncLog.COL_TRANSPORT, transport);
+		cv.put(SyncLog.COL_PEER, peer);
+		cv.put(SyncLog.COL_ROLE, role);
+		cv.put(SyncLog.COL_FORMAT, format);
+		cv.put(SyncLog.COL_TOTAL_MS, total_ms);
+		cv.put(SyncLog.COL_SUMMARY_MS, summary_ms);
+		cv.put(SyncLog.COL_SEND_MS, send_ms);
+		cv.put(SyncLog.COL_RECV_MS, recv_ms);
+		cv.put(SyncLog.COL_APPLY_MS, apply_ns / 1000000);
+		cv.put(SyncLog.COL_WRITE_MS, write_ms);
+		cv.put(SyncLog.COL_READ_MS, read_ms);
+		cv.put(SyncLog.COL_ROWS_SENT, rows_sent);
+		cv.put(SyncLog.COL_ROWS_RECV, rows_recv);
+		cv.put(SyncLog.COL_ROWS_PER_SEC, rate);
+		cv.put(SyncLog.COL_RAW_SENT, raw_sent);
+		cv.put(SyncLog.COL_RAW_RECV, raw_recv);
+		cv.put(SyncLog.COL_WIRE_SENT, wire_sent);
+		cv.put(SyncLog.COL_WIRE_RECV, wire_recv);
+		cv.put(SyncLog.COL_FAILURE, failure);
+		Log.d(TAG, role + " " + peer + ": " + total_ms + " ms, " +
+			rows_sent + " sent, " + rows_recv + " received, " +
+			rate + " rows/s" + ((failure != null)
+			? (", " + failure) : ""));
+		cr.insert(SyncLog.CONTENT_URI, cv);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.nio.charset.Charset;
+
+/**
+ * Settings for TCP (Wi-Fi) sync.  TCP sync is off until a shared secret
+ * is set; the same secret must be set on every device which syncs over
+ * TCP.  The server listens on loopback unless a bind address is set.
+ */
+public class TcpSettings {
+
+	/** Name of preferences file */
+	static private final String PREFS_NAME = "tcp_sync";
+
+	/** Key for shared secret */
+	static private final String KEY_SECRET = "secret";
+
+	/** Key for bind address */
+	static private final String KEY_BIND = "bind";
+
+	/** Get the preferences */
+	static private SharedPreferences getPrefs(Context ctx) {
+		return ctx.getSharedPreferences(PREFS_NAME,
+			Context.MODE_PRIVATE);
+	}
+
+	/** Lookup the shared secret (empty if TCP sync is off) */
+	static public String lookupSecret(Context ctx) {
+		return getPrefs(ctx).getString(KEY_SECRET, "");
+	}
+
+	/** Lookup the bind address */
+	static public String lookupBind(Context ctx) {
+		return getPrefs(ctx).getString(KEY_BIND, TcpTransport.LOOPBACK);
+	}
+
+	/** Store the settings (an empty secret turns TCP sync off, an
+	 * empty bind address listens on loopback) */
+	static public void store(Context ctx, String bind, String secret) {
+		getPrefs(ctx).edit()
+			.putString(KEY_BIND, (bind.length() > 0)
+			                   ? bind
+			                   : TcpTransport.LOOPBACK)
+			.putString(KEY_SECRET, secret)
+			.apply();
+	}
+
+	/** Create a transport from the settings (null if TCP sync is off) */
+	static public TcpTransport createTransport(Context ctx) {
+		String secret = lookupSecret(ctx);
+		if (secret.length() > 0) {
+			return new TcpTransport(lookupBind(ctx),
+				secret.getBytes(Charset.forName("UTF-8")));
+		} else
+			return null;
+	}
+
+	/** Build a key which changes whenever the settings change */
+	static public String buildKey(Context ctx) {
+		return lookupBind(ctx) + '\n' + lookupSecret(ctx);
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sync transport using TCP (venue Wi-Fi or localhost).  The listener is
+ * bound to one address (loopback unless configured), and both sides of
+ * every connection prove they know a shared secret before any sync
+ * message is exchanged.
+ */
+public class TcpTransport implements SyncTransport {
+
+	/** Default TCP port */
+	static public final int DEFAULT_PORT = 28460;
+
+	/** Default address to listen on */
+	static public final String LOOPBACK = "127.0.0.1";
+
+	/** Timeout for connecting to a peer */
+	static private final int CONNECT_TIMEOUT_MS = 5000;
+
+	/** Timeout for the authentication handshake */
+	static private final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+	/** Maximum number of pending connections */
+	static private final int BACKLOG = 4;
+
+	/** Length of handshake nonces */
+	static private final int NONCE_LEN = 16;
+
+	/** MAC algorithm for the handshake */
+	static private final String MAC_ALGORITHM = "HmacSHA256";
+
+	/** Handshake role of the connecting side */
+	static private final byte ROLE_CLIENT = 'C';
+
+	/** Handshake role of the listening side */
+	static private final byte ROLE_SERVER = 'S';
+
+	/** Source of handshake nonces */
+	static private final SecureRandom RANDOM = new SecureRandom();
+
+	/** Port to listen on */
+	private final int port;
+
+	/** Address to listen on */
+	private final String bind;
+
+	/** Shared secret */
+	private final byte[] secret;
+
+	/** Create a TCP transport */
+	public TcpTransport(int p, String b, byte[] sec) {
+		if (null == sec || 0 == sec.length)
+			throw new IllegalArgumentException("No secret");
+		port = p;
+		bind = b;
+		secret = sec.clone();
+	}
+
+	/** Create a TCP transport on the default port */
+	public TcpTransport(String b, byte[] sec) {
+		this(DEFAULT_PORT, b, sec);
+	}
+
+	@Override
+	public String getName() {
+		return "tcp";
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	/** Connect to a peer ("host" or "host:port") */
+	@Override
+	public SyncConnection connect(String address) throws IOException {
+		String host = address;
+		int p = port;
+		int i = address.lastIndexOf(':');
+		if (i > 0) {
+			host = address.substring(0, i);
+			try {
+				p = Integer.parseInt(address.substring(i + 1));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Bad address: " + address);
+			}
+		}
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(host, p),
+				CONNECT_TIMEOUT_MS);
+			handshake(s, ROLE_CLIENT);
+			return new Connection(s);
+		}
+		catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public SyncListener listen() throws IOException {
+		final ServerSocket ss = new ServerSocket(port, BACKLOG,
+			InetAddress.getByName(bind));
+		return new SyncListener() {
+			public SyncConnection accept() throws IOException {
+				return accept(0);
+			}
+			public SyncConnection accept(int timeout)
+				throws IOException
+			{
+				long end = System.currentTimeMillis() + timeout;
+				while (true) {
+					int ms = timeout;
+					if (timeout > 0) {
+						ms = (int) (end -
+						     System.currentTimeMillis());
+						if (ms <= 0)
+							return null;
+					}
+					Socket s = acceptSocket(ss, ms);
+					if (null == s)
+						return null;
+					try {
+						handshake(s, ROLE_SERVER);
+						return new Connection(s);
+					}
+					catch (IOException e) {
+						// Keep listening for real peers
+						s.close();
+					}
+				}
+			}
+			public void close() throws IOException {
+				ss.close();
+			}
+		};
+	}
+
+	/** Accept a socket, up to a timeout in ms (null on timeout) */
+	static private Socket acceptSocket(ServerSocket ss, int timeout)
+		throws IOException
+	{
+		ss.setSoTimeout(timeout);
+		try {
+			return ss.accept();
+		}
+		catch (SocketTimeoutException e) {
+			return null;
+		}
+	}
+
+	/** Authenticate a connection.  Each side sends a nonce, then a MAC
+	 * of its role and both nonces, keyed by the shared secret, and
+	 * checks the MAC of the other side. */
+	private void handshake(Socket s, byte role) throws IOException {
+		s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+		OutputStream os = s.getOutputStream();
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+		byte[] mine = new byte[NONCE_LEN];
+		RANDOM.nextBytes(mine);
+		os.write(mine);
+		os.flush();
+		byte[] theirs = new byte[NONCE_LEN];
+		dis.readFully(theirs);
+		byte peer_role = (ROLE_CLIENT == role)
+		               ? ROLE_SERVER
+		               : ROLE_CLIENT;
+		os.write(computeMac(role, theirs, mine));
+		os.flush();
+		byte[] expect = computeMac(peer_role, mine, theirs);
+		byte[] mac = new byte[expect.length];
+		dis.readFully(mac);
+		if (!MessageDigest.isEqual(mac, expect))
+			throw new IOException("Authentication failed");
+		s.setSoTimeout(0);
+	}
+
+	/** Compute a handshake MAC */
+	private byte[] computeMac(byte role, byte[] a, byte[] b)
+		throws IOException
+	{
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			mac.update(role);
+			mac.update(a);
+			mac.update(b);
+			return mac.doFinal();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/** TCP connection */
+	static private class Connection implements SyncConnection {
+		private final Socket sock;
+		private Connection(Socket s) throws IOException {
+			sock = s;
+			sock.setTcpNoDelay(true);
+		}
+		public String getPeer() {
+			return sock.getInetAddress().getHostAddress();
+		}
+		public InputStream getInputStream() throws IOException {
+			return sock.getInputStream();
+		}
+		public OutputStream getOutputStream() throws IOException {
+			return sock.getOutputStream();
+		}
+		public void close() throws IOException {
+			sock.close();
+		}
+	}
+}
@@ -49,6 +49,9 @@ public class Team implements BaseColumns {
 	static public final Uri CONTENT_URI = OurContentProvider.buildUri(
 		TABLE_NAME);
 
+	/** Team key of our team */
+	static public final String OUR_KEY = "frc2846";
+
 	/** Columns required in team table */
 	static private final String[] TEAM_REQ = {
 		"key",
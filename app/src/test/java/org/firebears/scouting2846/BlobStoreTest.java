@@ -0,0 +1,226 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the attachment blob store.
+ */
+public class BlobStoreTest {
+
+	/** Quota for received chunks (room for two full chunks) */
+	static private final long QUOTA = 2 * BlobStore.CHUNK_LEN + 100;
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private File own;
+
+	private File cache;
+
+	@Before
+	public void setUp() throws IOException {
+		own = tmp.newFolder("files");
+		cache = tmp.newFolder("cache");
+	}
+
+	private BlobStore create() {
+		return new BlobStore(own, cache, QUOTA);
+	}
+
+	static private byte[] buildBlob(int len, long seed) {
+		byte[] b = new byte[len];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+
+	static private String sha1(byte[] b, int off, int len)
+		throws Exception
+	{
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		md.update(b, off, len);
+		byte[] h = md.digest();
+		return BlobStore.toHex(h, 0, h.length);
+	}
+
+	static private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) >= 0)
+			bo.write(buf, 0, n);
+		in.close();
+		return bo.toByteArray();
+	}
+
+	@Test
+	public void putSplitsIntoChunks() throws Exception {
+		BlobStore bs = create();
+		byte[] blob = buildBlob(BlobStore.CHUNK_LEN * 2 + 10, 1);
+		String h = bs.put(new ByteArrayInputStream(blob));
+		ArrayList<String> chunks = BlobStore.parseManifest(bs.read(h));
+		assertEquals(3, chunks.size());
+		assertEquals(sha1(blob, 0, BlobStore.CHUNK_LEN), chunks.get(0));
+		assertEquals(sha1(blob, 2 * BlobStore.CHUNK_LEN, 10),
+			chunks.get(2));
+		assertTrue(bs.lookupMissing(h).isEmpty());
+		assertArrayEquals(blob, readAll(bs.open(h)));
+	}
+
+	@Test
+	public void storeRejectsBadHash() throws Exception {
+		BlobStore bs = create();
+		byte[] b = buildBlob(1000, 2);
+		String h = sha1(b, 0, b.length);
+		b[10] ^= 1;
+		assertFalse(bs.store(h, b, 0, b.length));
+		assertFalse(bs.has(h));
+		b[10] ^= 1;
+		assertTrue(bs.store(h, b, 0, b.length));
+		assertTrue(bs.has(h));
+		assertArrayEquals(b, bs.read(h));
+	}
+
+	@Test
+	public void receivedChunksEvictedOverQuota() throws Exception {
+		BlobStore bs = create();
+		String[] hs = new String[3];
+		for (int i = 0; i < hs.length; i++) {
+			byte[] b = buildBlob(BlobStore.CHUNK_LEN, 10 + i);
+			hs[i] = sha1(b, 0, b.length);
+			assertTrue(bs.store(hs[i], b, 0, b.length));
+			if (i == 1) {
+				// Use the first chunk, so the second is
+				// least recently used
+				assertNotNull(bs.read(hs[0]));
+			}
+		}
+		assertTrue(bs.has(hs[0]));
+		assertFalse(bs.has(hs[1]));
+		assertTrue(bs.has(hs[2]));
+		assertFalse(new File(cache, hs[1]).exists());
+		assertTrue(bs.getUsage().startsWith("2 received chunks"));
+	}
+
+	@Test
+	public void ownChunksNeverEvicted() throws Exception {
+		BlobStore bs = create();
+		String own_blob = bs.put(new ByteArrayInputStream(
+			buildBlob(BlobStore.CHUNK_LEN * 3, 3)));
+		for (int i = 0; i < 4; i++) {
+			byte[] b = buildBlob(BlobStore.CHUNK_LEN, 20 + i);
+			bs.store(sha1(b, 0, b.length), b, 0, b.length);
+		}
+		assertTrue(bs.lookupMissing(own_blob).isEmpty());
+		assertNotNull(bs.open(own_blob));
+	}
+
+	@Test
+	public void putOwnPromotesReceivedChunk() throws Exception {
+		BlobStore bs = create();
+		byte[] blob = buildBlob(1000, 4);
+		String h = sha1(blob, 0, blob.length);
+		assertTrue(bs.store(h, blob, 0, blob.length));
+		assertTrue(new File(cache, h).exists());
+		bs.put(new ByteArrayInputStream(blob));
+		// Moved to our own chunks, out of the quota
+		assertFalse(new File(cache, h).exists());
+		assertTrue(new File(own, h).exists());
+		assertTrue(bs.getUsage().startsWith("0 received chunks"));
+		// Filling the quota must not evict it now
+		for (int i = 0; i < 4; i++) {
+			byte[] b = buildBlob(BlobStore.CHUNK_LEN, 30 + i);
+			bs.store(sha1(b, 0, b.length), b, 0, b.length);
+		}
+		assertArrayEquals(blob, bs.read(h));
+	}
+
+	@Test
+	public void missingManifestListedAlone() throws Exception {
+		BlobStore bs = create();
+		String h = sha1(new byte[] { 1 }, 0, 1);
+		ArrayList<String> missing = bs.lookupMissing(h);
+		assertEquals(1, missing.size());
+		assertEquals(h, missing.get(0));
+		assertNull(bs.open(h));
+	}
+
+	@Test
+	public void receivedChunksSurviveRestart() throws Exception {
+		byte[] b = buildBlob(1000, 5);
+		String h = sha1(b, 0, b.length);
+		create().store(h, b, 0, b.length);
+		assertTrue(create().has(h));
+	}
+
+	@Test
+	public void badHashesRejected() throws Exception {
+		BlobStore bs = create();
+		String escape = "../../databases/scouting.db";
+		assertFalse(BlobStore.isHash(escape));
+		assertFalse(BlobStore.isHash("abc"));
+		assertFalse(BlobStore.isHash(null));
+		String h = sha1(new byte[] { 1 }, 0, 1);
+		assertTrue(BlobStore.isHash(h));
+		assertFalse(BlobStore.isHash(h.toUpperCase()));
+		assertFalse(bs.has(escape));
+		for (String bad : new String[] { escape, "abc", "" }) {
+			try {
+				bs.read(bad);
+				fail("read " + bad);
+			}
+			catch (IOException e) {
+				// expected
+			}
+			try {
+				bs.open(bad);
+				fail("open " + bad);
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void shortHashNotPut() throws IOException {
+		BlobStore.putHash(new byte[BlobStore.HASH_LEN], 0, "abc");
+	}
+
+	@Test(expected = IOException.class)
+	public void badManifestRejected() throws IOException {
+		BlobStore.parseManifest(new byte[BlobStore.HASH_LEN + 1]);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for chunk flow control.
+ */
+public class ChunkWindowTest {
+
+	private final ExecutorService pool =
+		Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/** Check that a future is still blocked */
+	static private void assertBlocked(Future<?> f) throws Exception {
+		try {
+			f.get(200, TimeUnit.MILLISECONDS);
+			fail("not blocked");
+		}
+		catch (TimeoutException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void senderBlocksWhenWindowFull() throws Exception {
+		final ChunkWindow w = new ChunkWindow(
+			new ByteArrayOutputStream(), 2);
+		assertEquals(0, w.waitSend(100));
+		assertEquals(1, w.waitSend(100));
+		Future<Integer> f = pool.submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				return w.waitSend(100);
+			}
+		});
+		assertBlocked(f);
+		w.ack(0);
+		assertEquals(2, (int) f.get(1, TimeUnit.SECONDS));
+		assertEquals(1, w.getAcked());
+	}
+
+	@Test
+	public void finishWaitsForAcks() throws Exception {
+		final ChunkWindow w = new ChunkWindow(
+			new ByteArrayOutputStream(), 4);
+		w.waitSend(1000);
+		w.waitSend(1000);
+		Future<Void> f = pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				w.finish();
+				return null;
+			}
+		});
+		assertBlocked(f);
+		assertTrue(w.waitOutstanding());
+		w.ack(0);
+		w.ack(1);
+		f.get(1, TimeUnit.SECONDS);
+		assertFalse(w.waitOutstanding());
+		assertTrue(w.getRate() > 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void ackOutOfOrderRejected() throws IOException {
+		ChunkWindow w = new ChunkWindow(new ByteArrayOutputStream(), 4);
+		w.waitSend(10);
+		w.waitSend(10);
+		w.ack(1);
+	}
+
+	@Test(expected = IOException.class)
+	public void ackUnsentRejected() throws IOException {
+		new ChunkWindow(new ByteArrayOutputStream(), 4).ack(0);
+	}
+
+	@Test
+	public void abortWakesSender() throws Exception {
+		final ChunkWindow w = new ChunkWindow(
+			new ByteArrayOutputStream(), 1);
+		w.waitSend(10);
+		Future<Integer> f = pool.submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				return w.waitSend(10);
+			}
+		});
+		assertBlocked(f);
+		w.abort();
+		try {
+			f.get(1, TimeUnit.SECONDS);
+			fail("not aborted");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void messagesAreFramed() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ChunkWindow w = new ChunkWindow(bo, 4);
+		byte[] b = { 1, 2, 3, 4, 5 };
+		w.writeMessage(7, b, 3);
+		FrameInputStream fis = new FrameInputStream(
+			new ByteArrayInputStream(bo.toByteArray()), 7);
+		byte[] r = new byte[8];
+		assertEquals(3, fis.read(r, 0, r.length));
+		assertEquals(-1, fis.read());
+		assertEquals(3, r[2]);
+	}
+}
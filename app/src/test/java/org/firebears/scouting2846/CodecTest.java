@@ -0,0 +1,129 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for compression codecs.
+ */
+public class CodecTest {
+
+	static private Codec create(String... names) {
+		return new Codec(new HashSet<String>(Arrays.asList(names)));
+	}
+
+	static private byte[] buildMessage(int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++)
+			b[i] = (byte) ("\"high_goal\":" + i % 10).charAt(i % 13);
+		return b;
+	}
+
+	static private byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = is.read(buf)) >= 0)
+			bo.write(buf, 0, n);
+		is.close();
+		return bo.toByteArray();
+	}
+
+	static private void checkRoundTrip(Codec codec, int c, int len)
+		throws IOException
+	{
+		byte[] msg = buildMessage(len);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		codec.encode(msg, 0, msg.length, c, bo);
+		InputStream is = codec.openInput(new ByteArrayInputStream(
+			bo.toByteArray()));
+		assertArrayEquals(msg, readAll(is));
+	}
+
+	@Test
+	public void roundTripEachCodec() throws IOException {
+		Codec codec = create(Codec.getNames());
+		for (int c = Codec.NONE; c <= Codec.DEFLATE; c++) {
+			checkRoundTrip(codec, c, 0);
+			checkRoundTrip(codec, c, 10);
+			checkRoundTrip(codec, c, 100000);
+		}
+	}
+
+	@Test
+	public void untaggedIsGzip() throws IOException {
+		Codec codec = create();
+		assertFalse(codec.isTagged());
+		assertEquals(Codec.GZIP, codec.choose(10, 0));
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] msg = buildMessage(1000);
+		codec.encode(msg, 0, msg.length, Codec.GZIP, bo);
+		// No codec byte; gzip magic comes first
+		assertEquals(0x1F, bo.toByteArray()[0] & 0xFF);
+		checkRoundTrip(codec, Codec.GZIP, 1000);
+	}
+
+	@Test
+	public void choosePrefersDeflate() {
+		assertEquals(Codec.DEFLATE, create(Codec.getNames())
+			.choose(10, 0));
+		assertEquals(Codec.GZIP, create("none", "gzip")
+			.choose(1000, 0));
+		// Small messages are not worth gzip
+		assertEquals(Codec.NONE, create("none", "gzip")
+			.choose(10, 0));
+		assertEquals(Codec.NONE, create("none").choose(1000, 0));
+	}
+
+	@Test
+	public void chooseNoneOnFastLink() throws IOException {
+		Codec codec = create(Codec.getNames());
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] msg = buildMessage(100000);
+		codec.encode(msg, 0, msg.length, Codec.DEFLATE, bo);
+		assertEquals(Codec.DEFLATE, codec.choose(-1, 100000));
+		assertEquals(Codec.NONE, codec.choose(-1, Long.MAX_VALUE));
+	}
+
+	@Test(expected = IOException.class)
+	public void badCodecRejected() throws IOException {
+		create(Codec.getNames()).openInput(new ByteArrayInputStream(
+			new byte[] { 9 }));
+	}
+
+	@Test
+	public void usageCountsMessages() throws IOException {
+		Codec codec = create(Codec.getNames());
+		checkRoundTrip(codec, Codec.DEFLATE, 100);
+		checkRoundTrip(codec, Codec.DEFLATE, 100);
+		codec.reuse(Codec.NONE);
+		assertEquals("none:1,deflate1:2", codec.getUsage());
+	}
+}
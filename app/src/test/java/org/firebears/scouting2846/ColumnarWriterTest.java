@@ -0,0 +1,228 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.database.Cursor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary columnar format, with a wire size benchmark
+ * against JSON.
+ */
+public class ColumnarWriterTest {
+
+	/** Number of observations in the benchmark data set */
+	static private final int N_OBS = 5000;
+
+	/** Number of scouters in the benchmark data set */
+	static private final int N_SCOUTERS = 6;
+
+	/** Integer columns, in the order JSON observations are written */
+	static private final String[] COLS_INT = {
+		Scouting2017.COL_SCOUTER, Scouting2017.COL_OBSERVATION,
+		Scouting2017.COL_AUTO_HIGH_GOAL,Scouting2017.COL_AUTO_LOW_GOAL,
+		Scouting2017.COL_AUTO_GEAR, Scouting2017.COL_AUTO_BASELINE,
+		Scouting2017.COL_HIGH_GOAL, Scouting2017.COL_LOW_GOAL,
+		Scouting2017.COL_PLACE_GEAR, Scouting2017.COL_CLIMB_ROPE,
+		Scouting2017.COL_TOUCH_PAD, Scouting2017.COL_BALL_HUMAN,
+		Scouting2017.COL_BALL_FLOOR, Scouting2017.COL_BALL_HOPPER,
+		Scouting2017.COL_PILOT_EFFECTIVE,Scouting2017.COL_RELEASE_ROPE,
+		Scouting2017.COL_LOSE_GEAR,
+	};
+
+	/** String columns, in the order JSON observations are written */
+	static private final String[] COLS_STR = {
+		Scouting2017.COL_MATCH, Scouting2017.COL_TEAM_KEY,
+		Scouting2017.COL_NOTES, Scouting2017.COL_EVENT_KEY,
+	};
+
+	/** All columns */
+	static private final List<String> COLS = buildCols();
+
+	static private List<String> buildCols() {
+		ArrayList<String> cols = new ArrayList<String>();
+		cols.addAll(Arrays.asList(COLS_INT));
+		cols.addAll(Arrays.asList(COLS_STR));
+		return cols;
+	}
+
+	/** Build a synthetic data set: each scouter watches one robot in
+	 * every qualification match of one event */
+	static private Object[][] buildRows() {
+		Random r = new Random(2846);
+		Object[][] rows = new Object[N_OBS][COLS.size()];
+		for (int i = 0; i < N_OBS; i++) {
+			Object[] row = rows[i];
+			int s = i / (N_OBS / N_SCOUTERS + 1);
+			for (int c = 0; c < COLS_INT.length; c++)
+				row[c] = r.nextInt(2);
+			row[0] = 1000 + s;
+			row[1] = i + 1;
+			row[COLS.indexOf(Scouting2017.COL_AUTO_HIGH_GOAL)] =
+				r.nextInt(10);
+			row[COLS.indexOf(Scouting2017.COL_HIGH_GOAL)] =
+				r.nextInt(40);
+			row[COLS.indexOf(Scouting2017.COL_LOW_GOAL)] =
+				r.nextInt(60);
+			row[COLS.indexOf(Scouting2017.COL_PLACE_GEAR)] =
+				r.nextInt(8);
+			row[COLS.indexOf(Scouting2017.COL_MATCH)] =
+				"2017mnmi_qm" + (i % 120 + 1);
+			row[COLS.indexOf(Scouting2017.COL_TEAM_KEY)] =
+				"frc" + (2000 + r.nextInt(60) * 97 % 6000);
+			row[COLS.indexOf(Scouting2017.COL_NOTES)] =
+				(r.nextInt(4) == 0) ? "gear jammed" : "";
+			row[COLS.indexOf(Scouting2017.COL_EVENT_KEY)] =
+				"2017mnmi";
+		}
+		return rows;
+	}
+
+	/** Create a cursor over rows (only the methods used by the writer
+	 * are implemented) */
+	static private Cursor createCursor(final Object[][] rows) {
+		InvocationHandler h = new InvocationHandler() {
+			private int pos = -1;
+			public Object invoke(Object p, Method m, Object[] a) {
+				String n = m.getName();
+				if ("moveToNext".equals(n))
+					return ++pos < rows.length;
+				if ("getColumnIndex".equals(n))
+					return COLS.indexOf(a[0]);
+				if ("getInt".equals(n))
+					return rows[pos][(Integer) a[0]];
+				if ("getString".equals(n)) {
+					Object v = rows[pos][(Integer) a[0]];
+					return (v != null) ? v.toString() : null;
+				}
+				throw new UnsupportedOperationException(n);
+			}
+		};
+		return (Cursor) Proxy.newProxyInstance(
+			Cursor.class.getClassLoader(),
+			new Class<?>[] { Cursor.class }, h);
+	}
+
+	/** Encode rows in binary columnar format */
+	static private byte[] encodeBinary(Object[][] rows) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ColumnarWriter cw = new ColumnarWriter(bo);
+		Cursor c = createCursor(rows);
+		while (c.moveToNext())
+			cw.add(c);
+		cw.close();
+		return bo.toByteArray();
+	}
+
+	/** Encode rows as a JSON array, the same as the JSON format */
+	static private byte[] encodeJson(Object[][] rows) throws IOException {
+		StringBuilder sb = new StringBuilder("[");
+		for (Object[] row : rows) {
+			if (sb.length() > 1)
+				sb.append(',');
+			sb.append('{');
+			for (int c = 0; c < COLS.size(); c++) {
+				if (c > 0)
+					sb.append(',');
+				sb.append('"').append(COLS.get(c)).append("\":");
+				if (c < COLS_INT.length)
+					sb.append(row[c]);
+				else
+					sb.append('"').append(row[c]).append('"');
+			}
+			sb.append('}');
+		}
+		return sb.append(']').toString().getBytes("UTF-8");
+	}
+
+	/** Get the bytes on the wire for a message: compressed with a
+	 * codec and split into frames */
+	static private int wireSize(byte[] b, int codec) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		FrameOutputStream fos = new FrameOutputStream(bo, 1);
+		OutputStream os = new Codec(new HashSet<String>(Arrays.asList(
+			Codec.getNames()))).openOutput(fos, codec);
+		os.write(b);
+		os.close();
+		fos.close();
+		return bo.size();
+	}
+
+	@Test
+	public void binaryDecodesAllRows() throws IOException {
+		byte[] b = encodeBinary(buildRows());
+		ColumnarReader cr = new ColumnarReader(
+			new ByteArrayInputStream(b));
+		ArrayList<android.content.ContentValues> batch =
+			new ArrayList<android.content.ContentValues>();
+		int n_batches = 0;
+		while (cr.readBatch(batch) > 0)
+			n_batches++;
+		cr.close();
+		assertEquals(N_OBS, batch.size());
+		assertEquals((N_OBS + ColumnarWriter.BATCH_SIZE - 1) /
+			ColumnarWriter.BATCH_SIZE, n_batches);
+	}
+
+	@Test(expected = IOException.class)
+	public void badBatchSizeRejected() throws IOException {
+		byte[] b = { (byte) 0xFF, 0x7F };
+		new ColumnarReader(new ByteArrayInputStream(b))
+			.readBatch(new ArrayList<android.content.ContentValues>());
+	}
+
+	/** Report bytes on the wire for both formats */
+	@Test
+	public void wireSizeBenchmark() throws IOException {
+		Object[][] rows = buildRows();
+		long start = System.nanoTime();
+		byte[] json = encodeJson(rows);
+		long json_ns = System.nanoTime() - start;
+		start = System.nanoTime();
+		byte[] bin = encodeBinary(rows);
+		long bin_ns = System.nanoTime() - start;
+		int[] codecs = { Codec.NONE, Codec.GZIP, Codec.DEFLATE };
+		for (int c : codecs) {
+			int js = wireSize(json, c);
+			int bs = wireSize(bin, c);
+			System.out.println(N_OBS + " observations, " +
+				Codec.getNames()[c] + ": json " + js +
+				" bytes, binary " + bs + " bytes");
+			assertTrue(bs < js);
+		}
+		System.out.println("encode: json " + json_ns / 1000000 +
+			" ms, binary " + bin_ns / 1000000 + " ms");
+	}
+}
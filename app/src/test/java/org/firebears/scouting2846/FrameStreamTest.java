@@ -0,0 +1,122 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for framed message streams.
+ */
+public class FrameStreamTest {
+
+	static private byte[] buildPayload(int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++)
+			b[i] = (byte) (i * 31);
+		return b;
+	}
+
+	static private void writeMessage(ByteArrayOutputStream bo, int type,
+		byte[] b) throws IOException
+	{
+		FrameOutputStream fos = new FrameOutputStream(bo, type);
+		fos.write(b);
+		fos.close();
+		assertEquals(b.length, fos.getTotal());
+	}
+
+	static private byte[] readMessage(FrameInputStream fis)
+		throws IOException
+	{
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int n;
+		while ((n = fis.read(buf, 0, buf.length)) >= 0)
+			bo.write(buf, 0, n);
+		return bo.toByteArray();
+	}
+
+	@Test
+	public void messagesSplitIntoFrames() throws IOException {
+		byte[] b = buildPayload(3 * FrameOutputStream.MAX_FRAME_LEN +
+			17);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		writeMessage(bo, 5, b);
+		writeMessage(bo, 6, new byte[0]);
+		// 4 data frames plus an empty end frame
+		assertEquals(b.length + 5 * FrameOutputStream.HEADER_LEN +
+			FrameOutputStream.HEADER_LEN, bo.size());
+		ByteArrayInputStream bi = new ByteArrayInputStream(
+			bo.toByteArray());
+		FrameInputStream fis = new FrameInputStream(bi);
+		assertEquals(5, fis.getType());
+		assertArrayEquals(b, readMessage(fis));
+		assertEquals(b.length, fis.getTotal());
+		fis = new FrameInputStream(bi, 6);
+		assertEquals(-1, fis.read());
+		assertEquals(0, bi.available());
+	}
+
+	@Test
+	public void closeSkipsRestOfMessage() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		writeMessage(bo, 1, buildPayload(20000));
+		writeMessage(bo, 2, buildPayload(10));
+		ByteArrayInputStream bi = new ByteArrayInputStream(
+			bo.toByteArray());
+		FrameInputStream fis = new FrameInputStream(bi, 1);
+		fis.read();
+		fis.close();
+		assertArrayEquals(buildPayload(10), readMessage(
+			new FrameInputStream(bi, 2)));
+	}
+
+	@Test(expected = IOException.class)
+	public void unexpectedTypeRejected() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		writeMessage(bo, 1, buildPayload(10));
+		new FrameInputStream(new ByteArrayInputStream(bo.toByteArray()),
+			2).read();
+	}
+
+	@Test(expected = IOException.class)
+	public void badMagicRejected() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		writeMessage(bo, 1, buildPayload(10));
+		byte[] b = bo.toByteArray();
+		b[0] ^= 1;
+		new FrameInputStream(new ByteArrayInputStream(b)).read();
+	}
+
+	@Test(expected = IOException.class)
+	public void badLengthRejected() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		writeMessage(bo, 1, buildPayload(10));
+		byte[] b = bo.toByteArray();
+		b[3] = 0x7F;
+		new FrameInputStream(new ByteArrayInputStream(b)).read();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of received observation inserts: one insert per row against
+ * bulkInsert in batches, as the sync receive path does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class OurContentProviderTest {
+
+	/** Number of rows inserted each way */
+	static private final int N_ROWS = 2000;
+
+	/** Rows per batch (as in the sync receive path) */
+	static private final int BATCH_SIZE = 256;
+
+	/** Rows inserted before timing, to warm up both paths */
+	static private final int N_WARM = 100;
+
+	private OurContentProvider provider;
+
+	@Before
+	public void setUp() {
+		provider = Robolectric.buildContentProvider(
+			OurContentProvider.class).create().get();
+	}
+
+	/** Create an observation row for a scouter */
+	static private ContentValues createRow(int scouter, int obs) {
+		ContentValues cv = new ContentValues();
+		Scouting2017.initContent(cv, "frc" + obs, "2017mnmi_qm" + obs);
+		cv.put(Scouting2017.COL_SCOUTER, scouter);
+		cv.put(Scouting2017.COL_OBSERVATION, obs);
+		cv.put(Scouting2017.COL_HIGH_GOAL, obs % 40);
+		cv.put(Scouting2017.COL_NOTES, "notes for observation " + obs);
+		return cv;
+	}
+
+	/** Insert rows one at a time (returns elapsed nanoseconds) */
+	private long insertRows(int scouter, int first, int n) {
+		long start = System.nanoTime();
+		for (int i = first; i < first + n; i++) {
+			assertNotNull(provider.insert(Scouting2017.CONTENT_URI,
+				createRow(scouter, i)));
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** Insert rows in batches (returns elapsed nanoseconds) */
+	private long bulkInsertRows(int scouter, int first, int n) {
+		long start = System.nanoTime();
+		for (int b = first; b < first + n; b += BATCH_SIZE) {
+			int len = Math.min(BATCH_SIZE, first + n - b);
+			ContentValues[] values = new ContentValues[len];
+			for (int i = 0; i < len; i++)
+				values[i] = createRow(scouter, b + i);
+			assertEquals(len, provider.bulkInsert(
+				Scouting2017.CONTENT_URI, values));
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** Count rows of a scouter */
+	private int countRows(int scouter) {
+		Cursor c = provider.query(Scouting2017.CONTENT_URI,
+			new String[] { Scouting2017.COL_ID },
+			Scouting2017.COL_SCOUTER + "=?",
+			new String[] { Integer.toString(scouter) }, null);
+		assertNotNull(c);
+		try {
+			return c.getCount();
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/** Get rows per second for an elapsed time */
+	static private long rowsPerSecond(int n, long nanos) {
+		return n * 1000000000L / Math.max(nanos, 1);
+	}
+
+	@Test
+	public void bulkInsertNotSlower() {
+		insertRows(101, 1, N_WARM);
+		bulkInsertRows(102, 1, N_WARM);
+		// Batched rows go in last, into the larger table
+		long single = insertRows(201, 1, N_ROWS);
+		long bulk = bulkInsertRows(202, 1, N_ROWS);
+		assertEquals(N_ROWS, countRows(201));
+		assertEquals(N_ROWS, countRows(202));
+		System.out.println("insert: " + N_ROWS + " rows, " +
+			rowsPerSecond(N_ROWS, single) + " rows/s");
+		System.out.println("bulkInsert: " + N_ROWS + " rows, " +
+			rowsPerSecond(N_ROWS, bulk) + " rows/s");
+		assertTrue("bulkInsert slower than insert", bulk <= single);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reference bundle versions.
+ */
+public class RefBundleTest {
+
+	static private final String TEAMS = RefBundle.buildName("2017mnmi",
+		RefBundle.KIND_TEAMS);
+
+	static private ArrayList<String> newer(long mine, long theirs) {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		HashMap<String, Long> t = new HashMap<String, Long>();
+		m.put(TEAMS, mine);
+		t.put(TEAMS, theirs);
+		return RefBundle.chooseNewer(m, t, new HashSet<String>());
+	}
+
+	@Test
+	public void higherCountWins() {
+		long a = RefBundle.buildVersion(2, 5);
+		long b = RefBundle.buildVersion(3, 1);
+		assertTrue(newer(a, b).isEmpty());
+		assertEquals(1, newer(b, a).size());
+	}
+
+	@Test
+	public void instanceBreaksTie() {
+		long a = RefBundle.buildVersion(4, 7);
+		long b = RefBundle.buildVersion(4, 9);
+		assertTrue(a != b);
+		assertTrue(newer(a, b).isEmpty());
+		assertEquals(1, newer(b, a).size());
+	}
+
+	@Test
+	public void negativeInstanceStaysLow() {
+		long a = RefBundle.buildVersion(4, -1);
+		long b = RefBundle.buildVersion(5, 0);
+		assertTrue(a > 0);
+		assertTrue(a < b);
+		assertEquals(4, a >>> 32);
+	}
+
+	@Test
+	public void badNamesSkipped() {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		HashMap<String, Long> t = new HashMap<String, Long>();
+		m.put("2017mnmi", 5L);
+		m.put("/" + RefBundle.KIND_TEAMS, 5L);
+		m.put("2017mnmi/photos", 5L);
+		m.put(TEAMS, 5L);
+		ArrayList<String> n = RefBundle.chooseNewer(m, t,
+			new HashSet<String>());
+		assertEquals(1, n.size());
+		assertEquals(TEAMS, n.get(0));
+	}
+
+	@Test
+	public void legacyVersionsOlder() {
+		// Bundles from before fetch counters have version 1
+		assertEquals(1, newer(RefBundle.buildVersion(1, 3), 1).size());
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the segment cache.
+ */
+public class SegmentCacheTest {
+
+	/** Size of segments for the eviction test (bytes) */
+	static private final int BIG_LEN = 1024 * 1024;
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	static private SegmentCache.Segment createSegment(int len, long o) {
+		byte[] c = new byte[len];
+		for (int i = 0; i < len; i++)
+			c[i] = (byte) (i + o);
+		return new SegmentCache.Segment(c, 10, len * 2,
+			new long[] { 10, o, o * 7 });
+	}
+
+	@Test
+	public void lookupChecksFingerprint() throws IOException {
+		SegmentCache sc = new SegmentCache(tmp.getRoot());
+		SegmentCache.Segment seg = createSegment(100, 5);
+		String name = SegmentCache.buildName(1000, 0, "d2t", null);
+		assertNull(sc.lookup(name, null, seg.fingerprint));
+		sc.store(name, null, seg);
+		SegmentCache.Segment s = sc.lookup(name, null,
+			seg.fingerprint);
+		assertNotNull(s);
+		assertArrayEquals(seg.chunk, s.chunk);
+		assertEquals(seg.n_rows, s.n_rows);
+		assertEquals(seg.raw_len, s.raw_len);
+		// Rows changed since the segment was stored
+		assertNull(sc.lookup(name, null, new long[] { 11, 5, 35 }));
+		assertTrue(sc.getUsage().endsWith("1 hits, 2 misses"));
+	}
+
+	@Test
+	public void lookupChecksFilter() throws IOException {
+		SegmentCache sc = new SegmentCache(tmp.getRoot());
+		SegmentCache.Segment seg = createSegment(100, 5);
+		String f = "event_key IN ('2017mnmi')";
+		String name = SegmentCache.buildName(1000, 0, "d2t", f);
+		sc.store(name, f, seg);
+		assertNotNull(sc.lookup(name, f, seg.fingerprint));
+		assertNull(sc.lookup(name, "event_key IN ('2017wila')",
+			seg.fingerprint));
+		assertNull(sc.lookup(name, null, seg.fingerprint));
+	}
+
+	@Test
+	public void segmentsSurviveRestart() throws IOException {
+		SegmentCache.Segment seg = createSegment(100, 5);
+		String name = SegmentCache.buildName(1000, 1, "r1t", null);
+		new SegmentCache(tmp.getRoot()).store(name, null, seg);
+		SegmentCache sc = new SegmentCache(tmp.getRoot());
+		assertNotNull(sc.lookup(name, null, seg.fingerprint));
+	}
+
+	@Test
+	public void badFileIsMiss() throws IOException {
+		SegmentCache.Segment seg = createSegment(100, 5);
+		String name = SegmentCache.buildName(1000, 1, "r1t", null);
+		File dir = tmp.newFolder("segments");
+		FileOutputStream fos = new FileOutputStream(new File(dir,
+			name + ".seg"));
+		fos.write(new byte[] { 'S', 'E', 'G', '1', 0, 0, 0, 0 });
+		fos.close();
+		SegmentCache sc = new SegmentCache(dir);
+		assertNull(sc.lookup(name, null, seg.fingerprint));
+		sc.store(name, null, seg);
+		assertNotNull(sc.lookup(name, null, seg.fingerprint));
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws IOException {
+		SegmentCache sc = new SegmentCache(tmp.getRoot());
+		SegmentCache.Segment[] segs = new SegmentCache.Segment[9];
+		String[] names = new String[segs.length];
+		for (int k = 0; k < segs.length; k++) {
+			segs[k] = createSegment(BIG_LEN, k);
+			names[k] = SegmentCache.buildName(1000, k, "d2t", null);
+		}
+		for (int k = 0; k < 8; k++) {
+			sc.store(names[k], null, segs[k]);
+			if (k > 0) {
+				// Keep segment 0 in use
+				assertNotNull(sc.lookup(names[0], null,
+					segs[0].fingerprint));
+			}
+		}
+		sc.store(names[8], null, segs[8]);
+		assertNotNull(sc.lookup(names[0], null, segs[0].fingerprint));
+		assertNull(sc.lookup(names[1], null, segs[1].fingerprint));
+		assertFalse(new File(tmp.getRoot(), names[1] + ".seg")
+			.exists());
+		assertNotNull(sc.lookup(names[8], null, segs[8].fingerprint));
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for sync server wakeups, using a fake transport.
+ */
+public class SyncServerTest {
+
+	/** Fake connection */
+	static private class FakeConnection implements SyncConnection {
+		public String getPeer() {
+			return "fake";
+		}
+		public InputStream getInputStream() {
+			return null;
+		}
+		public OutputStream getOutputStream() {
+			return null;
+		}
+		public void close() { }
+	}
+
+	/** Fake transport, with connections queued by the test */
+	static private class FakeTransport implements SyncTransport {
+		final BlockingQueue<SyncConnection> peers =
+			new LinkedBlockingQueue<SyncConnection>();
+		final AtomicInteger n_listens = new AtomicInteger();
+		final AtomicInteger n_open = new AtomicInteger();
+		volatile boolean broken = false;
+		public String getName() {
+			return "fake";
+		}
+		public boolean isAvailable() {
+			return true;
+		}
+		public SyncConnection connect(String address)
+			throws IOException
+		{
+			throw new IOException("Not supported");
+		}
+		public SyncListener listen() throws IOException {
+			n_listens.incrementAndGet();
+			if (broken)
+				throw new IOException("listen failed");
+			n_open.incrementAndGet();
+			return new SyncListener() {
+				private boolean closed = false;
+				public SyncConnection accept()
+					throws IOException
+				{
+					return accept(0);
+				}
+				public SyncConnection accept(int timeout)
+					throws IOException
+				{
+					try {
+						return peers.poll(timeout,
+							TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				public synchronized void close() {
+					if (!closed)
+						n_open.decrementAndGet();
+					closed = true;
+				}
+			};
+		}
+	}
+
+	private final FakeTransport transport = new FakeTransport();
+
+	private final AtomicInteger n_handled = new AtomicInteger();
+
+	private final SyncServer.SessionHandler handler =
+		new SyncServer.SessionHandler()
+	{
+		public void handle(SyncTransport t, SyncConnection c) {
+			n_handled.incrementAndGet();
+		}
+	};
+
+	private SyncServer server;
+
+	@After
+	public void tearDown() {
+		if (server != null)
+			server.stop();
+	}
+
+	@Test
+	public void idleBlocksWithoutWakeups() throws Exception {
+		server = new SyncServer(transport, handler, 60000);
+		server.wake();
+		Thread.sleep(500);
+		assertEquals(1, transport.n_listens.get());
+		assertEquals(0, server.getWakeups());
+	}
+
+	@Test
+	public void idleServerShutsDownUntilWoken() throws Exception {
+		server = new SyncServer(transport, handler, 100);
+		server.wake();
+		Thread.sleep(500);
+		assertEquals(1, transport.n_listens.get());
+		assertEquals(0, transport.n_open.get());
+		assertEquals(1, server.getWakeups());
+		server.wake();
+		Thread.sleep(50);
+		assertEquals(2, transport.n_listens.get());
+		assertEquals(1, transport.n_open.get());
+	}
+
+	@Test
+	public void servingKeepsListening() throws Exception {
+		server = new SyncServer(transport, handler, 100);
+		server.wake();
+		transport.peers.add(new FakeConnection());
+		Thread.sleep(1000);
+		assertEquals(1, n_handled.get());
+		assertEquals(1, transport.n_listens.get());
+		assertEquals(1, transport.n_open.get());
+		// One wakeup per idle period at most
+		assertTrue(server.getWakeups() <= 12);
+		transport.peers.add(new FakeConnection());
+		Thread.sleep(200);
+		assertEquals(2, n_handled.get());
+	}
+
+	@Test
+	public void errorBacksOffUntilWoken() throws Exception {
+		transport.broken = true;
+		server = new SyncServer(transport, handler, 60000);
+		server.wake();
+		Thread.sleep(500);
+		// First retry is after a one second backoff
+		assertEquals(1, transport.n_listens.get());
+		assertEquals(0, server.getWakeups());
+		transport.broken = false;
+		server.wake();
+		Thread.sleep(200);
+		assertEquals(2, transport.n_listens.get());
+		assertEquals(1, transport.n_open.get());
+	}
+
+	@Test
+	public void stopClosesListener() throws Exception {
+		server = new SyncServer(transport, handler, 60000);
+		server.wake();
+		Thread.sleep(100);
+		assertEquals(1, transport.n_open.get());
+		server.stop();
+		Thread.sleep(100);
+		assertEquals(0, transport.n_open.get());
+		server.wake();
+		Thread.sleep(100);
+		assertEquals(1, transport.n_listens.get());
+	}
+}
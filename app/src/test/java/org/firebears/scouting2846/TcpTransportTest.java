@@ -0,0 +1,128 @@
+/*
+ * Copyright  2017  Douglas P Lau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.firebears.scouting2846;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests for the TCP transport handshake.
+ */
+public class TcpTransportTest {
+
+	static private final byte[] SECRET = "team2846".getBytes();
+
+	private final ExecutorService pool =
+		Executors.newSingleThreadExecutor();
+
+	private int port;
+
+	private SyncListener listener;
+
+	@Before
+	public void setUp() throws IOException {
+		ServerSocket ss = new ServerSocket(0);
+		port = ss.getLocalPort();
+		ss.close();
+		listener = new TcpTransport(port, TcpTransport.LOOPBACK,
+			SECRET).listen();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		listener.close();
+		pool.shutdownNow();
+	}
+
+	/** Accept one authenticated connection and echo a byte */
+	private Future<String> echoOnce() {
+		return pool.submit(new Callable<String>() {
+			public String call() throws IOException {
+				SyncConnection c = listener.accept(10000);
+				if (null == c)
+					return null;
+				try {
+					InputStream is = c.getInputStream();
+					OutputStream os = c.getOutputStream();
+					os.write(is.read());
+					os.flush();
+					return c.getPeer();
+				}
+				finally {
+					c.close();
+				}
+			}
+		});
+	}
+
+	/** Connect and exchange one byte */
+	private void exchange(byte[] sec) throws IOException {
+		SyncConnection c = new TcpTransport(port, TcpTransport.LOOPBACK,
+			sec).connect(TcpTransport.LOOPBACK + ':' + port);
+		try {
+			c.getOutputStream().write(42);
+			c.getOutputStream().flush();
+			assertEquals(42, c.getInputStream().read());
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void sharedSecretConnects() throws Exception {
+		Future<String> f = echoOnce();
+		exchange(SECRET);
+		assertEquals(TcpTransport.LOOPBACK, f.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void wrongSecretRejected() throws Exception {
+		Future<String> f = echoOnce();
+		try {
+			exchange("team1234".getBytes());
+			fail("connected with wrong secret");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		// Listener must survive the bad client
+		exchange(SECRET);
+		assertEquals(TcpTransport.LOOPBACK, f.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptySecretRefused() {
+		new TcpTransport(port, TcpTransport.LOOPBACK, new byte[0]);
+	}
+}